@@ -0,0 +1,82 @@
+package ca.pjer.logback;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.LoggingEvent;
+import ch.qos.logback.core.layout.EchoLayout;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+// AwsLogsAppender.doAppend, through SyncWorker (maxFlushTimeMillis = 0) or AsyncWorker, from 1, 8 and 64 threads.
+// Run with -prof gc to get the allocation rate along with the throughput.
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class AppendBenchmark {
+
+    @Param({"0", "1000"})
+    public long maxFlushTimeMillis;
+
+    @Param({"0", "5"})
+    public long latencyMillis;
+
+    @Param({"false", "true"})
+    public boolean deferEncoding;
+
+    private final LoggerContext loggerContext = new LoggerContext();
+    private AwsLogsAppender awsLogsAppender;
+
+    @State(Scope.Thread)
+    public static class Event {
+
+        ILoggingEvent event;
+
+        @Setup
+        public void setUp(AppendBenchmark benchmark) {
+            event = new LoggingEvent(AppendBenchmark.class.getName(),
+                    benchmark.loggerContext.getLogger(AppendBenchmark.class.getName()), Level.INFO,
+                    "Benchmark message {} with some text", null, new Object[]{42});
+        }
+    }
+
+    @Setup
+    public void setUp() {
+        awsLogsAppender = new AwsLogsAppender();
+        awsLogsAppender.setContext(loggerContext);
+        awsLogsAppender.setName("Benchmark");
+        awsLogsAppender.setLayout(new EchoLayout<ILoggingEvent>());
+        awsLogsAppender.setMaxFlushTimeMillis(maxFlushTimeMillis);
+        awsLogsAppender.setDeferEncoding(deferEncoding);
+        awsLogsAppender.setVerbose(false);
+        awsLogsAppender.setAwsLogsStub(new NoopAWSLogsStub(latencyMillis));
+        awsLogsAppender.start();
+    }
+
+    @TearDown
+    public void tearDown() {
+        awsLogsAppender.stop();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void append1(Event event) {
+        awsLogsAppender.doAppend(event.event);
+    }
+
+    @Benchmark
+    @Threads(8)
+    public void append8(Event event) {
+        awsLogsAppender.doAppend(event.event);
+    }
+
+    @Benchmark
+    @Threads(64)
+    public void append64(Event event) {
+        awsLogsAppender.doAppend(event.event);
+    }
+}
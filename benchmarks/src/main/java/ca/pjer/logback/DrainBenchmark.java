@@ -0,0 +1,64 @@
+package ca.pjer.logback;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.LoggingEvent;
+import ch.qos.logback.core.layout.EchoLayout;
+import org.openjdk.jmh.annotations.*;
+import software.amazon.awssdk.services.cloudwatchlogs.model.InputLogEvent;
+
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+
+// AsyncWorker.drainBatchFromQueue, on a queue refilled with a full batch before each call.
+// The worker is never started, so nothing but the benchmark drains the queue.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class DrainBenchmark {
+
+    @Param({"50", "1000", "10000"})
+    public int maxBatchLogEvents;
+
+    @Param({"arrayBlocking", "ringBuffer"})
+    public String queueType;
+
+    @Param({"false", "true"})
+    public boolean deferEncoding;
+
+    private AsyncWorker asyncWorker;
+    private ILoggingEvent event;
+
+    @Setup
+    public void setUp() {
+        AwsLogsAppender awsLogsAppender = new AwsLogsAppender();
+        awsLogsAppender.setContext(new LoggerContext());
+        awsLogsAppender.setLayout(new EchoLayout<ILoggingEvent>());
+        awsLogsAppender.setMaxBatchLogEvents(maxBatchLogEvents);
+        awsLogsAppender.setMaxFlushTimeMillis(1000);
+        awsLogsAppender.setQueueType(queueType);
+        awsLogsAppender.setDeferEncoding(deferEncoding);
+        awsLogsAppender.setAwsLogsStub(new NoopAWSLogsStub(0));
+        asyncWorker = new AsyncWorker(awsLogsAppender);
+        LoggerContext loggerContext = new LoggerContext();
+        event = new LoggingEvent(DrainBenchmark.class.getName(),
+                loggerContext.getLogger(DrainBenchmark.class.getName()), Level.WARN,
+                "Benchmark message {} with some text", null, new Object[]{42});
+    }
+
+    @Setup(org.openjdk.jmh.annotations.Level.Invocation)
+    public void fill() {
+        for (int i = 0; i < maxBatchLogEvents; i++) {
+            asyncWorker.append(event);
+        }
+    }
+
+    @Benchmark
+    public Collection<InputLogEvent> drainBatchFromQueue() {
+        return asyncWorker.drainBatchFromQueue();
+    }
+}
@@ -0,0 +1,63 @@
+package ca.pjer.logback;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.LoggingEvent;
+import ch.qos.logback.core.layout.EchoLayout;
+import org.openjdk.jmh.annotations.*;
+import software.amazon.awssdk.services.cloudwatchlogs.model.InputLogEvent;
+
+import java.util.concurrent.TimeUnit;
+
+// Worker.asInputLogEvent, eventSize and trimMessage across message sizes, ASCII or not.
+// The largest size is over the CloudWatch limit, so asInputLogEvent also trims it.
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class EncodeBenchmark {
+
+    @Param({"64", "1024", "65536", "300000"})
+    public int messageLength;
+
+    @Param({"false", "true"})
+    public boolean multiByte;
+
+    private Worker worker;
+    private String message;
+    private ILoggingEvent event;
+
+    @Setup
+    public void setUp() {
+        AwsLogsAppender awsLogsAppender = new AwsLogsAppender();
+        awsLogsAppender.setContext(new LoggerContext());
+        awsLogsAppender.setLayout(new EchoLayout<ILoggingEvent>());
+        worker = new SyncWorker(awsLogsAppender);
+        StringBuilder builder = new StringBuilder(messageLength);
+        for (int i = 0; i < messageLength; i++) {
+            builder.append(multiByte && i % 8 == 0 ? '\u00e9' : 'x');
+        }
+        message = builder.toString();
+        LoggerContext loggerContext = new LoggerContext();
+        event = new LoggingEvent(EncodeBenchmark.class.getName(),
+                loggerContext.getLogger(EncodeBenchmark.class.getName()), Level.INFO, message, null, null);
+    }
+
+    @Benchmark
+    public InputLogEvent asInputLogEvent() {
+        return worker.asInputLogEvent(event);
+    }
+
+    @Benchmark
+    public int eventSize() {
+        return Worker.eventSize(message);
+    }
+
+    @Benchmark
+    public String trimMessage() {
+        return Worker.trimMessage(message, messageLength / 2);
+    }
+}
@@ -0,0 +1,79 @@
+package ca.pjer.logback;
+
+import org.openjdk.jmh.annotations.*;
+import software.amazon.awssdk.services.cloudwatchlogs.model.InputLogEvent;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// The preparation AWSLogsStub.logEvents does before calling PutLogEvents: sorting by timestamp (when needed),
+// splitting along 24 hours, and with sequence tokens, clamping the timestamps that went back in time.
+// The stub remembers the last timestamp sent: prepareEventsInSequence gets a new stub for each call, else
+// every call after the first would clamp the whole batch, which prepareEventsInSequenceClamped measures instead.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class LogEventsBenchmark {
+
+    @Param({"50", "1000", "10000"})
+    public int batchSize;
+
+    @Param({"sorted", "reversed", "shuffled"})
+    public String order;
+
+    private AWSLogsStub awsLogsStub;
+    private List<InputLogEvent> events;
+
+    // A stub that never saw a timestamp, for each call, so that only the benchmark using it pays for its setup
+    @State(Scope.Thread)
+    public static class FreshStub {
+
+        AWSLogsStub awsLogsStub;
+
+        @Setup(Level.Invocation)
+        public void setUp() {
+            awsLogsStub = new NoopAWSLogsStub(0);
+        }
+    }
+
+    @Setup
+    public void setUp() {
+        awsLogsStub = new NoopAWSLogsStub(0);
+        events = new ArrayList<InputLogEvent>(batchSize);
+        long timestamp = System.currentTimeMillis();
+        for (int i = 0; i < batchSize; i++) {
+            events.add(InputLogEvent.builder().timestamp(timestamp + i).message("Benchmark message " + i).build());
+        }
+        if ("reversed".equals(order)) {
+            Collections.reverse(events);
+        } else if ("shuffled".equals(order)) {
+            Collections.shuffle(events, new Random(42));
+        }
+    }
+
+    @Benchmark
+    public List<List<InputLogEvent>> prepareBatches() {
+        return awsLogsStub.prepareBatches(events);
+    }
+
+    @Benchmark
+    public List<InputLogEvent> sortByTimestamp() {
+        return awsLogsStub.sortByTimestamp(events);
+    }
+
+    @Benchmark
+    public List<InputLogEvent> prepareEventsInSequence(FreshStub freshStub) {
+        return freshStub.awsLogsStub.prepareEventsInSequence(events);
+    }
+
+    @Benchmark
+    public List<InputLogEvent> prepareEventsInSequenceClamped() {
+        return awsLogsStub.prepareEventsInSequence(events);
+    }
+}
@@ -0,0 +1,29 @@
+package ca.pjer.logback;
+
+import software.amazon.awssdk.services.cloudwatchlogs.model.InputLogEvent;
+
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+// Stands in for CloudWatch: drops the events, after an optional simulated round trip
+class NoopAWSLogsStub extends AWSLogsStub {
+
+    private final long latencyNanos;
+
+    NoopAWSLogsStub(long latencyMillis) {
+        super("BenchmarkGroup", "BenchmarkStream", "us-east-1", 0, null, false, null, null, true);
+        this.latencyNanos = TimeUnit.MILLISECONDS.toNanos(latencyMillis);
+    }
+
+    @Override
+    void logEvents(Collection<InputLogEvent> events) {
+        if (latencyNanos > 0) {
+            LockSupport.parkNanos(latencyNanos);
+        }
+    }
+
+    @Override
+    synchronized void stop() {
+    }
+}
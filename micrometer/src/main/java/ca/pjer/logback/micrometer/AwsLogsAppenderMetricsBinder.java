@@ -0,0 +1,93 @@
+package ca.pjer.logback.micrometer;
+
+import ca.pjer.logback.AwsLogsAppender;
+import ca.pjer.logback.metrics.AppenderMetrics;
+import ca.pjer.logback.metrics.Histogram;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.FunctionTimer;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.binder.MeterBinder;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToDoubleFunction;
+
+// Binds the metrics of an AwsLogsAppender to a MeterRegistry, tagged with the appender name:
+// new AwsLogsAppenderMetricsBinder(appender).bindTo(registry)
+public class AwsLogsAppenderMetricsBinder implements MeterBinder {
+
+    private static final String[] LEVELS = {"TRACE", "DEBUG", "INFO", "WARN", "ERROR", "UNKNOWN"};
+    private static final String[] CIRCUIT_BREAKER_STATES = {"CLOSED", "OPEN", "HALF_OPEN"};
+
+    private final AppenderMetrics metrics;
+    private final Tags tags;
+
+    public AwsLogsAppenderMetricsBinder(AwsLogsAppender appender) {
+        this(appender.getMetrics(), Tags.of("appender", String.valueOf(appender.getName())));
+    }
+
+    public AwsLogsAppenderMetricsBinder(AppenderMetrics metrics, Tags tags) {
+        this.metrics = metrics;
+        this.tags = tags;
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        gauge(registry, "awslogs.queue.depth", "events", AppenderMetrics::getQueueDepth);
+        gauge(registry, "awslogs.queue.bytes", "bytes", AppenderMetrics::getQueuedBytes);
+        gauge(registry, "awslogs.queue.oldest.age", "milliseconds", AppenderMetrics::getOldestQueuedEventAgeMillis);
+        counter(registry, "awslogs.events.sent", AppenderMetrics::getLogEvents);
+        counter(registry, "awslogs.putlogevents.failed", AppenderMetrics::getPutLogEventsFailed);
+        counter(registry, "awslogs.putlogevents.retried", AppenderMetrics::getPutLogEventsRetried);
+        counter(registry, "awslogs.flush.failed", AppenderMetrics::getFlushFailed);
+        for (final String level : LEVELS) {
+            FunctionCounter.builder("awslogs.events.lost", metrics,
+                    appenderMetrics -> appenderMetrics.getLostEventsByLevel().getOrDefault(level, 0L))
+                    .tags(tags.and("level", level))
+                    .register(registry);
+        }
+        for (final String state : CIRCUIT_BREAKER_STATES) {
+            Gauge.builder("awslogs.circuitbreaker.state", metrics,
+                    appenderMetrics -> state.equals(appenderMetrics.getCircuitBreakerState()) ? 1 : 0)
+                    .tags(tags.and("state", state))
+                    .register(registry);
+            FunctionCounter.builder("awslogs.circuitbreaker.transitions", metrics,
+                    appenderMetrics -> appenderMetrics.getCircuitBreakerTransitions().getOrDefault(state, 0L))
+                    .tags(tags.and("state", state))
+                    .register(registry);
+        }
+        timer(registry, "awslogs.putlogevents", metrics.putLogEventsLatencyMillis());
+        timer(registry, "awslogs.flush", metrics.flushDurationMillis());
+        timer(registry, "awslogs.queue.wait", metrics.queueWaitMillis());
+        timer(registry, "awslogs.append.to.ack", metrics.appendToAckMillis());
+        summary(registry, "awslogs.append.duration", "microseconds", metrics.appendDurationMicros());
+        summary(registry, "awslogs.batch.events", "events", metrics.batchEvents());
+        summary(registry, "awslogs.batch.bytes", "bytes", metrics.batchBytes());
+    }
+
+    private void gauge(MeterRegistry registry, String name, String baseUnit, ToDoubleFunction<AppenderMetrics> value) {
+        Gauge.builder(name, metrics, value).tags(tags).baseUnit(baseUnit).register(registry);
+    }
+
+    private void counter(MeterRegistry registry, String name, ToDoubleFunction<AppenderMetrics> value) {
+        FunctionCounter.builder(name, metrics, value).tags(tags).register(registry);
+    }
+
+    // The histograms are in milliseconds: count and total as a timer, max and p99 (over the last minute) as gauges
+    private void timer(MeterRegistry registry, String name, Histogram histogram) {
+        FunctionTimer.builder(name, histogram, Histogram::getCount, Histogram::getSum, TimeUnit.MILLISECONDS)
+                .tags(tags)
+                .register(registry);
+        Gauge.builder(name + ".max", histogram, Histogram::getMax).tags(tags).baseUnit("milliseconds").register(registry);
+        Gauge.builder(name + ".p99", histogram, h -> h.getPercentile(0.99)).tags(tags).baseUnit("milliseconds")
+                .register(registry);
+    }
+
+    private void summary(MeterRegistry registry, String name, String baseUnit, Histogram histogram) {
+        Gauge.builder(name + ".mean", histogram, Histogram::getMean).tags(tags).baseUnit(baseUnit).register(registry);
+        Gauge.builder(name + ".max", histogram, Histogram::getMax).tags(tags).baseUnit(baseUnit).register(registry);
+        Gauge.builder(name + ".p99", histogram, h -> h.getPercentile(0.99)).tags(tags).baseUnit(baseUnit)
+                .register(registry);
+    }
+}
@@ -0,0 +1,35 @@
+package ca.pjer.logback.micrometer;
+
+import ca.pjer.logback.metrics.AppenderMetrics;
+import io.micrometer.core.instrument.FunctionTimer;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class AwsLogsAppenderMetricsBinderTest {
+
+    @Test
+    public void testShouldRegisterMetersOfTheAppender() {
+        AppenderMetrics metrics = new AppenderMetrics();
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        new AwsLogsAppenderMetricsBinder(metrics, Tags.of("appender", "Fake")).bindTo(registry);
+        metrics.recordPutLogEventsLatency(TimeUnit.MILLISECONDS.toNanos(20));
+        metrics.recordPutLogEventsLatency(TimeUnit.MILLISECONDS.toNanos(100));
+
+        FunctionTimer timer = registry.get("awslogs.putlogevents").tag("appender", "Fake").functionTimer();
+        assertEquals(2, timer.count(), 0.001);
+        assertEquals(120, timer.totalTime(TimeUnit.MILLISECONDS), 0.001);
+        assertEquals(100, registry.get("awslogs.putlogevents.max").tag("appender", "Fake").gauge().value(), 0.001);
+        assertEquals(100, registry.get("awslogs.putlogevents.p99").tag("appender", "Fake").gauge().value(), 0.001);
+        assertNotNull(registry.get("awslogs.queue.wait").functionTimer());
+        assertNotNull(registry.get("awslogs.append.to.ack").functionTimer());
+        assertNotNull(registry.get("awslogs.batch.bytes.mean").gauge());
+        assertEquals(0, registry.get("awslogs.events.lost").tag("level", "INFO").functionCounter().count(), 0.001);
+        // without circuit breaker, it is in none of the states
+        assertEquals(0, registry.get("awslogs.circuitbreaker.state").tag("state", "CLOSED").gauge().value(), 0.001);
+    }
+}
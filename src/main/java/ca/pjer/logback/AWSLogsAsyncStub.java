@@ -0,0 +1,212 @@
+package ca.pjer.logback;
+
+import software.amazon.awssdk.services.cloudwatchlogs.CloudWatchLogsAsyncClient;
+import software.amazon.awssdk.services.cloudwatchlogs.model.DataAlreadyAcceptedException;
+import software.amazon.awssdk.services.cloudwatchlogs.model.InputLogEvent;
+import software.amazon.awssdk.services.cloudwatchlogs.model.InvalidSequenceTokenException;
+import software.amazon.awssdk.services.cloudwatchlogs.model.PutLogEventsRequest;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+// A stub backed by CloudWatchLogsAsyncClient: requests are sent without tying up a thread while in flight.
+// With sequence tokens, each request is chained after the previous one completes.
+class AWSLogsAsyncStub extends AWSLogsStub {
+
+    private final Lazy<CloudWatchLogsAsyncClient> lazyAwsLogsAsync = new Lazy<>();
+    private final Object sequenceLock = new Object();
+    private CompletableFuture<Void> lastInSequence = CompletableFuture.completedFuture(null);
+    private volatile String sequenceToken;
+
+    AWSLogsAsyncStub(String logGroupName, String logStreamName, String logRegion, int retentionTimeInDays
+            , String cloudWatchEndpoint, boolean verbose, String accessKeyId, String secretAccessKey
+            , boolean useSequenceToken) {
+        super(logGroupName, logStreamName, logRegion, retentionTimeInDays
+                , cloudWatchEndpoint, verbose, accessKeyId, secretAccessKey, useSequenceToken);
+    }
+
+    @Override
+    AWSLogsStub newStub(String logGroupName, String logStreamName, String logRegion, int retentionTimeInDays
+            , String cloudWatchEndpoint, boolean verbose, String accessKeyId, String secretAccessKey
+            , boolean useSequenceToken) {
+        return new AWSLogsAsyncStub(logGroupName, logStreamName, logRegion, retentionTimeInDays
+                , cloudWatchEndpoint, verbose, accessKeyId, secretAccessKey, useSequenceToken);
+    }
+
+    private CloudWatchLogsAsyncClient awsLogsAsync() {
+        return lazyAwsLogsAsync.getOrCompute(() -> {
+            CloudWatchLogsAsyncClient awsLogs = CloudWatchLogsClients.acquire(clientKey(true), () -> {
+                if (getVerbose()) {
+                    System.out.println("Creating AWSLogs Async Client");
+                }
+                return configure(CloudWatchLogsAsyncClient.builder()).build();
+            });
+            initLogGroup(request -> join(awsLogs.createLogGroup(request))
+                    , request -> join(awsLogs.putRetentionPolicy(request))
+                    , request -> join(awsLogs.createLogStream(request)));
+            return awsLogs;
+        });
+    }
+
+    @Override
+    synchronized void stop() {
+        if (lazyAwsLogsAsync.peek() != null) {
+            releaseClient(clientKey(true));
+        }
+    }
+
+    @Override
+    boolean isAsync() {
+        return true;
+    }
+
+    @Override
+    void logEvents(Collection<InputLogEvent> events) {
+        join(logEventsAsync(events));
+    }
+
+    @Override
+    CompletableFuture<Void> logEventsAsync(Collection<InputLogEvent> events) {
+        List<List<InputLogEvent>> batches = prepareBatches(events);
+        if (!getUseSequenceToken()) {
+            CompletableFuture<?>[] futures = new CompletableFuture<?>[batches.size()];
+            for (int i = 0; i < futures.length; i++) {
+                List<InputLogEvent> sortedEvents = batches.get(i);
+                try {
+                    checkCircuitBreaker();
+                } catch (RuntimeException e) {
+                    futures[i] = failed(e);
+                    continue;
+                }
+                getMetrics().incrementLogEvents(sortedEvents.size());
+                getMetrics().incrementPutLog();
+                getRetryEngine().onRequest();
+                futures[i] = putLogEvents(sortedEvents, false, 0);
+            }
+            return failedBatches(events, batches, futures);
+        }
+        synchronized (sequenceLock) {
+            CompletableFuture<?>[] futures = new CompletableFuture<?>[batches.size()];
+            for (int i = 0; i < futures.length; i++) {
+                List<InputLogEvent> batch = batches.get(i);
+                // whatever happened to the previous request, this one goes after it
+                lastInSequence = lastInSequence
+                        .handle((ignored, t) -> (Void) null)
+                        .thenCompose(ignored -> {
+                            checkCircuitBreaker();
+                            getRetryEngine().onRequest();
+                            return putLogEvents(prepareEventsInSequence(batch), true, 0);
+                        });
+                futures[i] = lastInSequence;
+            }
+            return failedBatches(events, batches, futures);
+        }
+    }
+
+    // Completes once all the batches are sent, failing with the events of the batches that were not
+    // when some were sent (or dropped)
+    private static CompletableFuture<Void> failedBatches(Collection<InputLogEvent> events,
+                                                        List<List<InputLogEvent>> batches, CompletableFuture<?>[] futures) {
+        return CompletableFuture.allOf(futures).handle((ignored, t) -> {
+            if (t == null) {
+                return null;
+            }
+            List<List<InputLogEvent>> unsentBatches = new ArrayList<List<InputLogEvent>>();
+            for (int i = 0; i < futures.length; i++) {
+                if (futures[i].isCompletedExceptionally()) {
+                    unsentBatches.add(batches.get(i));
+                }
+            }
+            Throwable cause = unwrap(t);
+            throwIfPartial(events, unsentBatches, cause);
+            throw cause instanceof RuntimeException ? (RuntimeException) cause : new CompletionException(cause);
+        });
+    }
+
+    private CompletableFuture<Void> putLogEvents(List<InputLogEvent> events, boolean inSequence, int retries) {
+        // this runs on SDK and retry scheduler threads too, so the rate limit wait is scheduled instead of slept
+        long waitNanos = reservePutLogEventsPermit();
+        if (waitNanos > 0) {
+            return RetryEngine.after(waitNanos).thenCompose(ready -> sendLogEvents(events, inSequence, retries));
+        }
+        return sendLogEvents(events, inSequence, retries);
+    }
+
+    private CompletableFuture<Void> sendLogEvents(List<InputLogEvent> events, boolean inSequence, int retries) {
+        CompletableFuture<Void> future;
+        try {
+            long start = System.nanoTime();
+            future = awsLogsAsync().putLogEvents(PutLogEventsRequest.builder()
+                    .logGroupName(getLogGroupName())
+                    .logStreamName(getLogStreamName())
+                    .sequenceToken(inSequence ? sequenceToken : null)
+                    .logEvents(events)
+                    .build())
+                    .whenComplete((result, t) -> getMetrics().recordPutLogEventsLatency(System.nanoTime() - start))
+                    .thenApply(result -> {
+                        if (inSequence) {
+                            sequenceToken = result.nextSequenceToken();
+                        }
+                        return (Void) null;
+                    });
+        } catch (Throwable t) {
+            future = failed(t);
+        }
+        return future
+                .handle((ignored, t) -> {
+                    if (t == null) {
+                        putLogEventsSucceeded();
+                        return CompletableFuture.<Void>completedFuture(null);
+                    }
+                    Throwable cause = unwrap(t);
+                    if (inSequence && cause instanceof DataAlreadyAcceptedException) {
+                        sequenceToken = ((DataAlreadyAcceptedException) cause).expectedSequenceToken();
+                        putLogEventsSucceeded();
+                        return CompletableFuture.<Void>completedFuture(null);
+                    }
+                    if (inSequence && cause instanceof InvalidSequenceTokenException) {
+                        sequenceToken = ((InvalidSequenceTokenException) cause).expectedSequenceToken();
+                        return putLogEvents(events, true, retries);
+                    }
+                    if (getRetryEngine().shouldRetry(cause, retries)) {
+                        return getRetryEngine().delay(retries)
+                                .thenCompose(delayed -> putLogEvents(events, inSequence, retries + 1));
+                    }
+                    putLogEventsFailed(cause);
+                    return AWSLogsAsyncStub.<Void>failed(cause);
+                })
+                .thenCompose(next -> next);
+    }
+
+    private static <T> CompletableFuture<T> failed(Throwable t) {
+        CompletableFuture<T> future = new CompletableFuture<T>();
+        future.completeExceptionally(t);
+        return future;
+    }
+
+    private static Throwable unwrap(Throwable t) {
+        while (t instanceof CompletionException && t.getCause() != null) {
+            t = t.getCause();
+        }
+        return t;
+    }
+
+    // Waits for the future, rethrowing its failure as is (like the blocking client would have thrown it)
+    private static <T> T join(CompletableFuture<T> future) {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            Throwable cause = unwrap(e);
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw e;
+        }
+    }
+}
@@ -1,20 +1,23 @@
 package ca.pjer.logback;
 
-import ca.pjer.logback.metrics.AwsLogsMetricsHolder;
+import ca.pjer.logback.metrics.AppenderMetrics;
 import software.amazon.awssdk.auth.credentials.AwsBasicCredentials;
 import software.amazon.awssdk.auth.credentials.AwsCredentialsProvider;
 import software.amazon.awssdk.auth.credentials.StaticCredentialsProvider;
+import software.amazon.awssdk.awscore.client.builder.AwsClientBuilder;
+import software.amazon.awssdk.core.retry.RetryPolicy;
 import software.amazon.awssdk.regions.Region;
 import software.amazon.awssdk.services.cloudwatchlogs.CloudWatchLogsClient;
-import software.amazon.awssdk.services.cloudwatchlogs.CloudWatchLogsClientBuilder;
 import software.amazon.awssdk.services.cloudwatchlogs.model.*;
 
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
 
 class AWSLogsStub {
-    private final Comparator<InputLogEvent> inputLogEventByTimestampComparator = Comparator.comparing(InputLogEvent::timestamp);
     private final String logGroupName;
     private final String logStreamName;
     private final String logRegion;
@@ -22,14 +25,32 @@ class AWSLogsStub {
     private final boolean verbose;
     private final String accessKeyId;
     private final String secretAccessKey;
+    private final boolean useSequenceToken;
     private String sequenceToken;
     private Long lastTimestamp;
     private int retentionTimeInDays;
 
+    private RetryEngine retryEngine = RetryEngine.NONE;
+    private RateLimiter rateLimiter;
+    private AppenderMetrics metrics = new AppenderMetrics();
+    private BatchPreparer batchPreparer;
+    private CircuitBreaker circuitBreaker;
+    // the log groups and log streams already created (or found to exist), not to try again for each stub
+    private Set<String> existing = Collections.newSetFromMap(new LinkedHashMap<String, Boolean>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+            return size() > MAX_EXISTING;
+        }
+    });
+    private static final int MAX_EXISTING = 10000;
+    // the log groups and log streams being created, so stubs at the same time create them only once
+    private Map<String, Object> creating = new ConcurrentHashMap<>();
+
     private final Lazy<CloudWatchLogsClient> lazyAwsLogs = new Lazy<>();
 
     AWSLogsStub(String logGroupName, String logStreamName, String logRegion, int retentionTimeInDays
-            , String cloudWatchEndpoint, boolean verbose, String accessKeyId, String secretAccessKey) {
+            , String cloudWatchEndpoint, boolean verbose, String accessKeyId, String secretAccessKey
+            , boolean useSequenceToken) {
         this.logGroupName = logGroupName;
         this.logStreamName = logStreamName;
         this.logRegion = logRegion;
@@ -38,106 +59,395 @@ class AWSLogsStub {
         this.verbose = verbose;
         this.accessKeyId = accessKeyId;
         this.secretAccessKey = secretAccessKey;
+        this.useSequenceToken = useSequenceToken;
+        this.batchPreparer = new BatchPreparer(retentionTimeInDays, BatchPreparer.DROP);
+    }
+
+    // A stub for another log stream, with its own rate limit (the limit is per log stream, as on CloudWatch), sharing
+    // the retries, the metrics, the circuit breaker and the log groups and log streams known to exist of this one.
+    // The circuit breaker covers all the log streams together: what opens it (throttling, server or network
+    // errors) is rarely specific to one log stream
+    AWSLogsStub forLogStream(String logGroupName, String logStreamName) {
+        AWSLogsStub stub = newStub(logGroupName, logStreamName, logRegion, retentionTimeInDays
+                , cloudWatchEndpoint, verbose, accessKeyId, secretAccessKey, useSequenceToken);
+        stub.retryEngine = retryEngine;
+        stub.rateLimiter = rateLimiter != null ? rateLimiter.copy() : null;
+        stub.metrics = metrics;
+        stub.batchPreparer = batchPreparer;
+        stub.circuitBreaker = circuitBreaker;
+        stub.existing = existing;
+        stub.creating = creating;
+        return stub;
+    }
+
+    AWSLogsStub newStub(String logGroupName, String logStreamName, String logRegion, int retentionTimeInDays
+            , String cloudWatchEndpoint, boolean verbose, String accessKeyId, String secretAccessKey
+            , boolean useSequenceToken) {
+        return new AWSLogsStub(logGroupName, logStreamName, logRegion, retentionTimeInDays
+                , cloudWatchEndpoint, verbose, accessKeyId, secretAccessKey, useSequenceToken);
     }
 
     private CloudWatchLogsClient awsLogs() {
         return lazyAwsLogs.getOrCompute(() -> {
-            if (verbose) {
-                System.out.println("Creating AWSLogs Client");
-            }
+            CloudWatchLogsClient awsLogs = CloudWatchLogsClients.acquire(clientKey(false), () -> {
+                if (verbose) {
+                    System.out.println("Creating AWSLogs Client");
+                }
+                return configure(CloudWatchLogsClient.builder()).build();
+            });
+            initLogGroup(awsLogs::createLogGroup, awsLogs::putRetentionPolicy, awsLogs::createLogStream);
+            return awsLogs;
+        });
+    }
 
-            CloudWatchLogsClientBuilder builder = CloudWatchLogsClient.builder();
+    // Stubs with the same key configure their client the same way, so they can share it
+    CloudWatchLogsClients.Key clientKey(boolean async) {
+        return new CloudWatchLogsClients.Key(async, logRegion, cloudWatchEndpoint, accessKeyId, secretAccessKey
+                , !retryEngine.isEnabled());
+    }
 
-            if (Objects.nonNull(cloudWatchEndpoint)) {
-                try {
-                    builder = builder.endpointOverride(new URI(cloudWatchEndpoint));
-                } catch (URISyntaxException e) {
-                    if (verbose) {
-                        System.out.println("Invalid endpoint endpoint URL: " + cloudWatchEndpoint);
-                    }
+    <B extends AwsClientBuilder<B, ?>> B configure(B builder) {
+        if (Objects.nonNull(cloudWatchEndpoint)) {
+            try {
+                builder = builder.endpointOverride(new URI(cloudWatchEndpoint));
+            } catch (URISyntaxException e) {
+                if (verbose) {
+                    System.out.println("Invalid endpoint endpoint URL: " + cloudWatchEndpoint);
                 }
             }
+        }
 
-            if (Objects.nonNull(logRegion)) {
-                builder = builder.region(Region.of(logRegion));
-            }
+        if (Objects.nonNull(logRegion)) {
+            builder = builder.region(Region.of(logRegion));
+        }
 
-            if (Objects.nonNull(this.accessKeyId) && Objects.nonNull(this.secretAccessKey)) {
-                AwsCredentialsProvider credentialProvider = StaticCredentialsProvider.create(
-                        AwsBasicCredentials.create(this.accessKeyId, this.secretAccessKey));
-                builder.credentialsProvider(credentialProvider);
-            }
+        if (Objects.nonNull(this.accessKeyId) && Objects.nonNull(this.secretAccessKey)) {
+            AwsCredentialsProvider credentialProvider = StaticCredentialsProvider.create(
+                    AwsBasicCredentials.create(this.accessKeyId, this.secretAccessKey));
+            builder.credentialsProvider(credentialProvider);
+        }
 
-            CloudWatchLogsClient awsLogs = builder.build();
-            initLogGroup(awsLogs);
-            return awsLogs;
-        });
+        if (retryEngine.isEnabled()) {
+            // retries are handled by the RetryEngine, do not multiply them
+            builder = builder.overrideConfiguration(configuration -> configuration.retryPolicy(RetryPolicy.none()));
+        }
+
+        return builder;
     }
 
-    private void initLogGroup(CloudWatchLogsClient awsLogs) {
-        try {
-            awsLogs.createLogGroup(CreateLogGroupRequest.builder()
+    void initLogGroup(Consumer<CreateLogGroupRequest> createLogGroup
+            , Consumer<PutRetentionPolicyRequest> putRetentionPolicy
+            , Consumer<CreateLogStreamRequest> createLogStream) {
+        createOnce(logGroupName, () -> {
+            createLogGroup.accept(CreateLogGroupRequest.builder()
                     .logGroupName(logGroupName)
                     .build());
             if (retentionTimeInDays > 0) {
-                awsLogs.putRetentionPolicy(PutRetentionPolicyRequest.builder()
+                putRetentionPolicy.accept(PutRetentionPolicyRequest.builder()
                         .logGroupName(logGroupName)
                         .retentionInDays(retentionTimeInDays)
                         .build());
             }
-        } catch (ResourceAlreadyExistsException e) {
+        });
+        // log group names cannot contain ':'
+        createOnce(logGroupName + ":" + logStreamName, () -> createLogStream.accept(CreateLogStreamRequest.builder()
+                .logGroupName(logGroupName)
+                .logStreamName(logStreamName)
+                .build()));
+    }
+
+    private void createOnce(String key, Runnable create) {
+        if (isExisting(key)) {
+            return;
+        }
+        Object lock = creating.computeIfAbsent(key, k -> new Object());
+        synchronized (lock) {
+            try {
+                if (!isExisting(key)) {
+                    create.run();
+                    setExisting(key);
+                }
+            } catch (ResourceAlreadyExistsException e) {
+                setExisting(key);
+            } catch (Throwable t) {
+                if (verbose) {
+                    t.printStackTrace();
+                }
+            } finally {
+                creating.remove(key, lock);
+            }
+        }
+    }
+
+    private boolean isExisting(String key) {
+        synchronized (existing) {
+            return existing.contains(key);
+        }
+    }
+
+    private void setExisting(String key) {
+        synchronized (existing) {
+            existing.add(key);
+        }
+    }
+
+    synchronized void start() {
+    }
+
+    synchronized void stop() {
+        // the client was never created if nothing was logged
+        if (lazyAwsLogs.peek() != null) {
+            releaseClient(clientKey(false));
+        }
+    }
+
+    void releaseClient(CloudWatchLogsClients.Key key) {
+        try {
+            CloudWatchLogsClients.release(key);
+        } catch (Exception e) {
             // ignore
-        } catch (Throwable t) {
+        }
+    }
+
+    RetryEngine getRetryEngine() {
+        return retryEngine;
+    }
+
+    void setRetryEngine(RetryEngine retryEngine) {
+        this.retryEngine = retryEngine;
+    }
+
+    AppenderMetrics getMetrics() {
+        return metrics;
+    }
+
+    void setMetrics(AppenderMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    void setOutOfRangeHandler(BatchPreparer.OutOfRangeHandler outOfRangeHandler) {
+        this.batchPreparer = new BatchPreparer(retentionTimeInDays, outOfRangeHandler);
+    }
+
+    // Splits the events in batches PutLogEvents accepts, counting the events the out of range handler dropped
+    List<List<InputLogEvent>> prepareBatches(Collection<InputLogEvent> events) {
+        List<List<InputLogEvent>> batches = batchPreparer.prepare(events);
+        int prepared = 0;
+        for (List<InputLogEvent> batch : batches) {
+            prepared += batch.size();
+        }
+        if (prepared < events.size()) {
             if (verbose) {
-                t.printStackTrace();
+                System.out.println((events.size() - prepared) + " events dropped, their timestamp is out of range");
             }
+            metrics.incrementLostCount(null, events.size() - prepared);
         }
+        return batches;
+    }
+
+    CircuitBreaker getCircuitBreaker() {
+        return circuitBreaker;
+    }
+
+    void setCircuitBreaker(CircuitBreaker circuitBreaker) {
+        this.circuitBreaker = circuitBreaker;
+    }
+
+    // Fails fast while the circuit breaker is open
+    void checkCircuitBreaker() {
+        if (circuitBreaker != null && !circuitBreaker.allowRequest()) {
+            throw new IllegalStateException("Circuit breaker is open, PutLogEvents is not called");
+        }
+    }
+
+    // After a PutLogEvents call, retries included
+    void putLogEventsSucceeded() {
+        if (circuitBreaker != null) {
+            circuitBreaker.onSuccess();
+        }
+    }
+
+    void putLogEventsFailed(Throwable t) {
+        if (verbose) {
+            t.printStackTrace();
+        }
+        metrics.incrementPutLogFailed(t);
+        if (circuitBreaker != null) {
+            circuitBreaker.onFailure(t);
+        }
+    }
+
+    void setRateLimiter(RateLimiter rateLimiter) {
+        this.rateLimiter = rateLimiter;
+    }
+
+    // Waits for the PutLogEvents rate limit, if any
+    void acquirePutLogEventsPermit() {
+        if (rateLimiter != null) {
+            rateLimiter.acquire();
+        }
+    }
+
+    // Takes a PutLogEvents permit and returns how long to wait before using it, 0 without rate limit
+    long reservePutLogEventsPermit() {
+        return rateLimiter != null ? rateLimiter.reserveNanos() : 0;
+    }
+
+    String getLogGroupName() {
+        return logGroupName;
+    }
+
+    String getLogStreamName() {
+        return logStreamName;
+    }
+
+    boolean getUseSequenceToken() {
+        return useSequenceToken;
+    }
+
+    boolean getVerbose() {
+        return verbose;
+    }
+
+    // With sequence tokens, calls are serialized, because each one needs the token returned by the previous one
+    boolean allowsConcurrentCalls() {
+        return !useSequenceToken;
+    }
+
+    // Whether logEventsAsync sends without blocking the calling thread
+    boolean isAsync() {
+        return false;
+    }
+
+    CompletableFuture<Void> logEventsAsync(Collection<InputLogEvent> events) {
+        CompletableFuture<Void> future = new CompletableFuture<Void>();
         try {
-            awsLogs.createLogStream(CreateLogStreamRequest.builder()
+            logEvents(events);
+            future.complete(null);
+        } catch (Throwable t) {
+            future.completeExceptionally(t);
+        }
+        return future;
+    }
+
+    void logEvents(Collection<InputLogEvent> events) {
+        List<List<InputLogEvent>> batches = prepareBatches(events);
+        if (useSequenceToken) {
+            logEventsInSequence(events, batches);
+            return;
+        }
+        // PutLogEvents no longer needs a sequence token, so concurrent calls (even from other processes) are fine,
+        // only the events within a batch have to be in chronological order
+        for (int i = 0; i < batches.size(); i++) {
+            List<InputLogEvent> sortedEvents = batches.get(i);
+            try {
+                checkCircuitBreaker();
+            } catch (RuntimeException e) {
+                throwIfPartial(events, batches.subList(i, batches.size()), e);
+                throw e;
+            }
+            metrics.incrementLogEvents(sortedEvents.size());
+            metrics.incrementPutLog();
+            PutLogEventsRequest request = PutLogEventsRequest.builder()
                     .logGroupName(logGroupName)
                     .logStreamName(logStreamName)
-                    .build());
-        } catch (ResourceAlreadyExistsException e) {
-            // ignore
-        } catch (Throwable t) {
-            if (verbose) {
-                t.printStackTrace();
+                    .logEvents(sortedEvents)
+                    .build();
+            try {
+                retryEngine.call(() -> putLogEvents(request));
+            } catch (Throwable t) {
+                putLogEventsFailed(t);
+                throwIfPartial(events, batches.subList(i, batches.size()), t);
+                throw t;
             }
+            putLogEventsSucceeded();
         }
     }
 
-    synchronized void start() {
+    // Rethrows the failure with the events that were not sent, when some of the batch was sent or dropped,
+    // so that only those are sent again
+    static void throwIfPartial(Collection<InputLogEvent> events, List<List<InputLogEvent>> unsentBatches, Throwable t) {
+        if (!(t instanceof RuntimeException)) {
+            return;
+        }
+        int unsentCount = 0;
+        for (List<InputLogEvent> batch : unsentBatches) {
+            unsentCount += batch.size();
+        }
+        if (unsentCount < events.size()) {
+            List<InputLogEvent> unsentEvents = new ArrayList<InputLogEvent>(unsentCount);
+            for (List<InputLogEvent> batch : unsentBatches) {
+                unsentEvents.addAll(batch);
+            }
+            throw new UnsentEventsException(unsentEvents, t);
+        }
     }
 
-    synchronized void stop() {
-        try {
-            awsLogs().close();
-        } catch (Exception e) {
-            // ignore
+    // Returns the events themselves when already sorted
+    List<InputLogEvent> sortByTimestamp(Collection<InputLogEvent> events) {
+        if (events instanceof List && BatchPreparer.isSorted(events)) {
+            return (List<InputLogEvent>) events;
         }
+        List<InputLogEvent> sortedEvents = new ArrayList<InputLogEvent>(events);
+        sortedEvents.sort(BatchPreparer.BY_TIMESTAMP);
+        return sortedEvents;
     }
 
-    synchronized void logEvents(Collection<InputLogEvent> events) {
-        if (events.size() > 1) {
-            List<InputLogEvent> sortedEvents = new ArrayList<InputLogEvent>(events);
-            Collections.sort(sortedEvents, inputLogEventByTimestampComparator);
-            events = sortedEvents;
+    private synchronized void logEventsInSequence(Collection<InputLogEvent> events, List<List<InputLogEvent>> batches) {
+        for (int i = 0; i < batches.size(); i++) {
+            try {
+                checkCircuitBreaker();
+            } catch (RuntimeException e) {
+                throwIfPartial(events, batches.subList(i, batches.size()), e);
+                throw e;
+            }
+            List<InputLogEvent> preparedEvents = prepareEventsInSequence(batches.get(i));
+            try {
+                retryEngine.run(() -> logPreparedEvents(preparedEvents));
+            } catch (Throwable t) {
+                putLogEventsFailed(t);
+                throwIfPartial(events, batches.subList(i, batches.size()), t);
+                throw t;
+            }
+            putLogEventsSucceeded();
         }
+    }
 
-        ArrayList<InputLogEvent> correctedEvents = new ArrayList<InputLogEvent>(events.size());
-        for (InputLogEvent event : events) {
-            if (lastTimestamp != null && event.timestamp() < lastTimestamp) {
-                correctedEvents.add(event.toBuilder()
-                        .timestamp(lastTimestamp)
-                        .build());
-            } else {
-                correctedEvents.add(event);
-                lastTimestamp = event.timestamp();
+    private PutLogEventsResponse putLogEvents(PutLogEventsRequest request) {
+        acquirePutLogEventsPermit();
+        long start = System.nanoTime();
+        try {
+            return awsLogs().putLogEvents(request);
+        } finally {
+            metrics.recordPutLogEventsLatency(System.nanoTime() - start);
+        }
+    }
+
+    // Callers must make sure this is never called concurrently
+    // Only the events that went back in time are copied, to clamp their timestamp
+    List<InputLogEvent> prepareEventsInSequence(Collection<InputLogEvent> events) {
+        List<InputLogEvent> sortedEvents = sortByTimestamp(events);
+
+        List<InputLogEvent> correctedEvents = sortedEvents;
+        if (!sortedEvents.isEmpty() && lastTimestamp != null && sortedEvents.get(0).timestamp() < lastTimestamp) {
+            correctedEvents = new ArrayList<InputLogEvent>(sortedEvents.size());
+            for (InputLogEvent event : sortedEvents) {
+                if (event.timestamp() < lastTimestamp) {
+                    correctedEvents.add(event.toBuilder()
+                            .timestamp(lastTimestamp)
+                            .build());
+                } else {
+                    correctedEvents.add(event);
+                }
             }
         }
-        AwsLogsMetricsHolder.get().incrementLogEvents(correctedEvents.size());
-        AwsLogsMetricsHolder.get().incrementPutLog();
-        logPreparedEvents(correctedEvents);
+        if (!sortedEvents.isEmpty()) {
+            lastTimestamp = Math.max(lastTimestamp == null ? Long.MIN_VALUE : lastTimestamp,
+                    sortedEvents.get(sortedEvents.size() - 1).timestamp());
+        }
+        metrics.incrementLogEvents(correctedEvents.size());
+        metrics.incrementPutLog();
+        return correctedEvents;
     }
 
     private void logPreparedEvents(Collection<InputLogEvent> events) {
@@ -148,19 +458,13 @@ class AWSLogsStub {
                     .sequenceToken(sequenceToken)
                     .logEvents(events)
                     .build();
-            PutLogEventsResponse result = awsLogs().putLogEvents(request);
+            PutLogEventsResponse result = putLogEvents(request);
             sequenceToken = result.nextSequenceToken();
         } catch (DataAlreadyAcceptedException e) {
             sequenceToken = e.expectedSequenceToken();
         } catch (InvalidSequenceTokenException e) {
             sequenceToken = e.expectedSequenceToken();
             logPreparedEvents(events);
-        } catch (Throwable t) {
-            if (verbose) {
-                t.printStackTrace();
-            }
-            AwsLogsMetricsHolder.get().incrementPutLogFailed(t);
-            throw t;
         }
     }
 }
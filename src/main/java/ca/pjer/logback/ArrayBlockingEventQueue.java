@@ -0,0 +1,55 @@
+package ca.pjer.logback;
+
+import java.util.Collection;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+class ArrayBlockingEventQueue<E> implements EventQueue<E> {
+
+    private final BlockingQueue<E> queue;
+
+    ArrayBlockingEventQueue(int capacity) {
+        queue = new ArrayBlockingQueue<E>(capacity);
+    }
+
+    @Override
+    public boolean offer(E e) {
+        return queue.offer(e);
+    }
+
+    @Override
+    public boolean offer(E e, long timeout, TimeUnit unit) throws InterruptedException {
+        return queue.offer(e, timeout, unit);
+    }
+
+    @Override
+    public E poll() {
+        return queue.poll();
+    }
+
+    @Override
+    public E peek() {
+        return queue.peek();
+    }
+
+    @Override
+    public int drainTo(Collection<? super E> collection, int maxElements) {
+        return queue.drainTo(collection, maxElements);
+    }
+
+    @Override
+    public int size() {
+        return queue.size();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return queue.isEmpty();
+    }
+
+    @Override
+    public void clear() {
+        queue.clear();
+    }
+}
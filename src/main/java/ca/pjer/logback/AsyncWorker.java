@@ -1,17 +1,27 @@
 package ca.pjer.logback;
 
 import static ca.pjer.logback.AwsLogsAppender.MAX_BATCH_LOG_EVENTS;
+import static ca.pjer.logback.LogEventBatch.MAX_BATCH_SIZE;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Deque;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
+import java.util.function.ToLongFunction;
 
-import ca.pjer.logback.metrics.AwsLogsMetricsHolder;
+import ca.pjer.logback.metrics.AppenderMetrics;
 
 import ch.qos.logback.classic.Level;
 import ch.qos.logback.classic.spi.ILoggingEvent;
@@ -19,100 +29,730 @@ import software.amazon.awssdk.services.cloudwatchlogs.model.InputLogEvent;
 
 class AsyncWorker extends Worker implements Runnable {
 
+    // flushState values
+    private static final int IDLE = 0;
+    private static final int FLUSHING = 1;
+    private static final int FLUSH_REQUESTED = 2;
+
+    private static final long SHUTDOWN_GRACE_MILLIS = 1000;
+    // delays between attempts to send spilled events back, after failures
+    private static final long REPLAY_BACKOFF_MIN_MILLIS = 1000;
+    private static final long REPLAY_BACKOFF_MAX_MILLIS = 60000;
+
     private final int maxBatchLogEvents;
-    private final int discardThreshold;
+    private final boolean deferEncoding;
+    private final boolean includeCallerData;
     private final AtomicBoolean running;
-    private final BlockingQueue<InputLogEvent> queue;
+    private final EventQueue<QueuedLogEvent> queue;
+    // events at or above priorityLevel, in their own lane when priorityQueueSize > 0, else null
+    private final EventQueue<QueuedLogEvent> priorityQueue;
+    private final Level priorityLevel;
+    private final long priorityMaxBlockTimeMillis;
+    // samples the events that are not important under pressure, else null: they are all discarded past a threshold
+    private final LoadShedder loadShedder;
+    // while the circuit breaker is not closed, logging threads never wait, events are dropped (when they do not fit),
+    // sampled by degradedShedder, or spilled straight away with degradedSpill
+    private final CircuitBreaker circuitBreaker;
+    private final LoadShedder degradedShedder;
+    private final boolean degradedSpill;
     private final AtomicLong lostCount;
+    private final long maxQueueBytes;
+    private final long blockThresholdBytes;
+    private final long discardThresholdBytes;
+    private final long flushThresholdBytes;
+    private final boolean trackQueuedBytes;
+    private final AtomicLong queuedBytes;
+    // lets appending threads signal the worker with a single CAS, without taking a monitor
+    private final AtomicInteger flushState;
+    private final AppenderMetrics metrics;
+    private final FlushController flushController;
+    private final long shutdownTimeoutMillis;
+    // when stop must be done, with shutdownTimeoutMillis > 0
+    private volatile long shutdownDeadlineNanos;
+    // what the last stop with shutdownTimeoutMillis > 0 did
+    private volatile long shutdownFlushedEvents;
+    private volatile long shutdownAbandonedEvents;
+    // when the last flush ended, written by the thread flushing
+    private volatile long lastFlushNanos;
 
-    private Thread thread;
+    // only touched by the worker thread
+    private final Deque<QueuedLogEvent> pending;
+    private QueuedLogEvent overflow;
+    // the last shedding summary event added to pending
+    private QueuedLogEvent lastSummary;
+    // the oldest of pending and overflow, for the oldest queued event age gauge
+    private volatile QueuedLogEvent oldestDrained;
+
+    private volatile Thread thread;
+    private volatile boolean sharedScheduler;
+    private ScheduledFuture<?> scheduledFlush;
+    private PipelinedSender sender;
+    private SpillBuffer spillBuffer;
+    // failures in a row sending spilled events back, and when to try again
+    private int replayFailures;
+    private long replayNotBeforeNanos;
 
     AsyncWorker(AwsLogsAppender awsLogsAppender) {
-        super(awsLogsAppender);
+        this(awsLogsAppender, null, null);
+    }
+
+    AsyncWorker(AwsLogsAppender awsLogsAppender, AWSLogsStub awsLogsStub, String name) {
+        this(awsLogsAppender, awsLogsStub, name, null);
+    }
+
+    AsyncWorker(AwsLogsAppender awsLogsAppender, AWSLogsStub awsLogsStub, String name, File spillDirectory) {
+        super(awsLogsAppender, awsLogsStub, name, spillDirectory);
         maxBatchLogEvents = awsLogsAppender.getMaxBatchLogEvents();
-        discardThreshold = (int) Math.ceil(maxBatchLogEvents * 1.5);
+        deferEncoding = awsLogsAppender.getDeferEncoding();
+        includeCallerData = awsLogsAppender.getIncludeCallerData();
+        maxQueueBytes = awsLogsAppender.getMaxQueueBytes();
+        blockThresholdBytes = awsLogsAppender.getBlockThresholdBytes() > 0 ?
+                Math.min(awsLogsAppender.getBlockThresholdBytes(), maxQueueBytes) :
+                maxQueueBytes;
+        discardThresholdBytes = awsLogsAppender.getDiscardThresholdBytes() > 0 ?
+                awsLogsAppender.getDiscardThresholdBytes() :
+                maxQueueBytes / 4 * 3;
+        flushThresholdBytes = awsLogsAppender.getFlushThresholdBytes() > 0 ?
+                awsLogsAppender.getFlushThresholdBytes() :
+                Math.min(MAX_BATCH_SIZE, maxQueueBytes / 2);
+        trackQueuedBytes = maxQueueBytes > 0 || discardThresholdBytes > 0 || flushThresholdBytes > 0;
         running = new AtomicBoolean(false);
-        queue = new ArrayBlockingQueue<InputLogEvent>(maxBatchLogEvents * 2);
+        metrics = awsLogsAppender.getMetrics();
+        flushController = new FlushController(awsLogsAppender.getAdaptiveFlush(), metrics, maxBatchLogEvents,
+                awsLogsAppender.getMinFlushTimeMillis(), awsLogsAppender.getMaxFlushTimeMillis());
+        // when bounded by bytes, or when batches can grow, the event count capacity is only there
+        // to bound the number of queue slots
+        queue = createQueue(awsLogsAppender, maxQueueBytes > 0 || flushController.isAdaptive() ?
+                MAX_BATCH_LOG_EVENTS * 2 :
+                maxBatchLogEvents * 2);
+        priorityQueue = awsLogsAppender.getPriorityQueueSize() > 0 ?
+                createQueue(awsLogsAppender, awsLogsAppender.getPriorityQueueSize()) :
+                null;
+        priorityLevel = Level.toLevel(awsLogsAppender.getPriorityLevel(), Level.WARN);
+        priorityMaxBlockTimeMillis = awsLogsAppender.getPriorityMaxBlockTimeMillis() >= 0 ?
+                awsLogsAppender.getPriorityMaxBlockTimeMillis() :
+                awsLogsAppender.getMaxBlockTimeMillis();
+        loadShedder = AwsLogsAppender.LOAD_SHEDDING_SAMPLE.equalsIgnoreCase(awsLogsAppender.getLoadShedding()) ?
+                new LoadShedder(awsLogsAppender.getSheddingSummaryIntervalMillis()) :
+                null;
+        shutdownTimeoutMillis = awsLogsAppender.getShutdownTimeoutMillis();
+        circuitBreaker = getAwsLogsStub() != null ? getAwsLogsStub().getCircuitBreaker() : null;
+        String degradedMode = awsLogsAppender.getDegradedMode();
+        degradedShedder = circuitBreaker == null || !AwsLogsAppender.DEGRADED_MODE_SAMPLE.equalsIgnoreCase(degradedMode) ?
+                null :
+                loadShedder != null ? loadShedder : new LoadShedder(awsLogsAppender.getSheddingSummaryIntervalMillis());
+        degradedSpill = circuitBreaker != null && AwsLogsAppender.DEGRADED_MODE_SPILL.equalsIgnoreCase(degradedMode);
         lostCount = new AtomicLong(0);
+        queuedBytes = new AtomicLong(0);
+        pending = new ArrayDeque<QueuedLogEvent>();
+        flushState = new AtomicInteger(IDLE);
+    }
+
+    private static <E> EventQueue<E> createQueue(AwsLogsAppender awsLogsAppender, int capacity) {
+        if (AwsLogsAppender.QUEUE_TYPE_RING_BUFFER.equalsIgnoreCase(awsLogsAppender.getQueueType())) {
+            return new RingBufferEventQueue<E>(capacity, WaitStrategy.of(awsLogsAppender.getQueueWaitStrategy()));
+        }
+        return new ArrayBlockingEventQueue<E>(capacity);
     }
 
     @Override
     public synchronized void start() {
         super.start();
         if (running.compareAndSet(false, true)) {
-            thread = new Thread(this);
-            thread.setDaemon(true);
-            thread.setName(getAwsLogsAppender().getName() + " Async Worker");
+            AWSLogsStub awsLogsStub = getAwsLogsStub();
+            if (getAwsLogsAppender().getMaxInFlightBatches() > 1 || awsLogsStub.isAsync()) {
+                sender = new PipelinedSender(this, getAwsLogsAppender().getMaxInFlightBatches(),
+                        !awsLogsStub.allowsConcurrentCalls(), awsLogsStub.isAsync(), this::sendFailed);
+            }
+            File directory = getSpillDirectory();
+            if (directory != null) {
+                try {
+                    spillBuffer = new SpillBuffer(directory, getAwsLogsAppender().getSpillSegmentBytes(),
+                            getAwsLogsAppender().getMaxSpillBytes(), getAwsLogsAppender()::addWarn);
+                } catch (IOException e) {
+                    getAwsLogsAppender().addError("Unable to spill events to " + directory, e);
+                }
+            }
+            replayFailures = 0;
+            flushState.set(IDLE);
+            lastFlushNanos = System.nanoTime();
+            // as part of a ShardedWorker or a RoutingWorker, the queues of all the workers are reported together
+            if (!hasOwnStub()) {
+                metrics.setQueueGauges(this::queuedEvents, queuedBytes::get, this::oldestQueuedEventAgeMillis);
+            }
+            String workerScheduler = getAwsLogsAppender().getWorkerScheduler();
+            sharedScheduler = WorkerScheduler.SHARED.equalsIgnoreCase(workerScheduler);
+            if (sharedScheduler) {
+                // when adaptive, tick often enough to follow the linger time, it can shrink
+                long periodMillis = flushController.isAdaptive() ?
+                        Math.max(1, flushController.getMinLingerMillis() / 2) :
+                        Math.max(1, getAwsLogsAppender().getMaxFlushTimeMillis());
+                scheduledFlush = WorkerScheduler.shared().scheduleWithFixedDelay(this::tick,
+                        periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+                return;
+            }
+            String name = getName() + " Async Worker";
+            Thread thread = null;
+            if (WorkerScheduler.VIRTUAL.equalsIgnoreCase(workerScheduler)) {
+                thread = WorkerScheduler.newVirtualThread(name, this);
+                if (thread == null) {
+                    getAwsLogsAppender().addWarn("Virtual threads are not available, using a platform thread");
+                }
+            }
+            if (thread == null) {
+                thread = new Thread(this);
+                thread.setDaemon(true);
+                thread.setName(name);
+            }
+            this.thread = thread;
             thread.start();
         }
     }
 
     @Override
     public synchronized void stop() {
+        shutdownDeadlineNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(shutdownTimeoutMillis);
         if (running.compareAndSet(true, false)) {
-            synchronized (running) {
-                running.notifyAll();
+            if (scheduledFlush != null) {
+                scheduledFlush.cancel(false);
+                scheduledFlush = null;
+                flushFinally();
             }
             if (thread != null) {
+                LockSupport.unpark(thread);
+                boolean stopped = true;
                 try {
-                    thread.join();
+                    if (shutdownTimeoutMillis > 0) {
+                        // the drain gives up at the deadline, only spilling what is left can take longer
+                        thread.join(shutdownTimeoutMillis + SHUTDOWN_GRACE_MILLIS);
+                        stopped = !thread.isAlive();
+                    } else {
+                        thread.join();
+                    }
                 } catch (InterruptedException e) {
                     thread.interrupt();
                 }
+                if (!stopped) {
+                    // still stuck, its events are abandoned, and it must not race with the cleanup below
+                    thread.interrupt();
+                    getAwsLogsAppender().addWarn("Worker did not stop within " + shutdownTimeoutMillis + " ms");
+                    thread = null;
+                    clearQueueGauges();
+                    super.stop();
+                    return;
+                }
                 thread = null;
             }
+            if (sender != null) {
+                sender.stop();
+                sender = null;
+            }
+            if (spillBuffer != null) {
+                // keep what could not be sent for the next start
+                spillRemaining();
+                spillBuffer.close();
+                spillBuffer = null;
+            }
             queue.clear();
+            if (priorityQueue != null) {
+                priorityQueue.clear();
+            }
+            pending.clear();
+            lastSummary = null;
+            overflow = null;
+            queuedBytes.set(0);
+            oldestDrained = null;
+            clearQueueGauges();
         }
         super.stop();
     }
 
     @Override
-    public void append(ILoggingEvent event) {
-        // don't log if discardThreshold is met and event is not important (< WARN)
-        if (queue.size() >= discardThreshold && !event.getLevel().isGreaterOrEqual(Level.WARN)) {
+    public void append(ILoggingEvent event, long appendNanos) {
+        long start = System.nanoTime();
+        boolean degraded = circuitBreaker != null && !circuitBreaker.isClosed();
+        // don't log if discard threshold is met (or when sampled out) and event is not important (< WARN)
+        if (!event.getLevel().isGreaterOrEqual(Level.WARN) && (degraded && degradedShedder != null ?
+                degradedShedder.shouldDrop(event, 1) :
+                loadShedder != null ? loadShedder.shouldDrop(event, sheddingPressure()) : discardThresholdReached())) {
             lostCount.incrementAndGet();
-            AwsLogsMetricsHolder.get().incrementLostCount();
-            synchronized (running) {
-                running.notifyAll();
+            metrics.incrementLostCount(event.getLevel(), 1);
+            if (!degraded) {
+                wakeUp();
+            }
+            return;
+        }
+        QueuedLogEvent logEvent;
+        if (deferEncoding) {
+            // only snapshot what is bound to this thread, encoding will happen on the worker thread
+            event.prepareForDeferredProcessing();
+            if (includeCallerData) {
+                event.getCallerData();
+            }
+            logEvent = QueuedLogEvent.deferred(event, estimateEventSize(event));
+        } else {
+            logEvent = asQueuedLogEvent(event);
+        }
+        logEvent.setAppendNanos(appendNanos);
+        logEvent.setQueuedNanos(System.nanoTime());
+        boolean priority = priorityQueue != null && event.getLevel().isGreaterOrEqual(priorityLevel);
+        boolean queued = !(degraded && degradedSpill && spillBuffer != null)
+                && (priority ? enqueuePriority(logEvent, degraded) : enqueue(logEvent, degraded));
+        if (!queued && !spill(logEvent)) {
+            lostCount.incrementAndGet();
+            metrics.incrementLostCount(event.getLevel(), 1);
+        }
+        metrics.recordAppendDuration(System.nanoTime() - start);
+        // trigger a flush if queue is full, or right away for priority events, unless there is no point in trying
+        if (!degraded && (priority || flushThresholdReached())) {
+            wakeUp();
+        }
+    }
+
+    private void clearQueueGauges() {
+        if (!hasOwnStub()) {
+            metrics.setQueueGauges(null, null, null);
+        }
+    }
+
+    // Reports the queues of several workers as one
+    static void setQueueGauges(AppenderMetrics metrics, Supplier<List<Worker>> workers) {
+        metrics.setQueueGauges(() -> sum(workers.get(), AsyncWorker::queuedEvents),
+                () -> sum(workers.get(), AsyncWorker::queuedBytes),
+                () -> max(workers.get(), AsyncWorker::oldestQueuedEventAgeMillis));
+    }
+
+    private static long sum(List<Worker> workers, ToLongFunction<AsyncWorker> gauge) {
+        long sum = 0;
+        for (Worker worker : workers) {
+            if (worker instanceof AsyncWorker) {
+                sum += gauge.applyAsLong((AsyncWorker) worker);
+            }
+        }
+        return sum;
+    }
+
+    private static long max(List<Worker> workers, ToLongFunction<AsyncWorker> gauge) {
+        long max = 0;
+        for (Worker worker : workers) {
+            if (worker instanceof AsyncWorker) {
+                max = Math.max(max, gauge.applyAsLong((AsyncWorker) worker));
+            }
+        }
+        return max;
+    }
+
+    long queuedEvents() {
+        return queue.size() + (priorityQueue != null ? priorityQueue.size() : 0);
+    }
+
+    long queuedBytes() {
+        return queuedBytes.get();
+    }
+
+    private boolean hasQueued() {
+        return !queue.isEmpty() || hasPriorityQueued();
+    }
+
+    private boolean hasPriorityQueued() {
+        return priorityQueue != null && !priorityQueue.isEmpty();
+    }
+
+    long oldestQueuedEventAgeMillis() {
+        QueuedLogEvent oldest = oldestDrained;
+        if (oldest == null) {
+            oldest = queue.peek();
+        }
+        QueuedLogEvent oldestPriority = priorityQueue != null ? priorityQueue.peek() : null;
+        if (oldest == null || (oldestPriority != null && oldestPriority.getQueuedNanos() < oldest.getQueuedNanos())) {
+            oldest = oldestPriority;
+        }
+        return oldest == null ? 0 : TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - oldest.getQueuedNanos());
+    }
+
+    private boolean spill(QueuedLogEvent logEvent) {
+        SpillBuffer spillBuffer = this.spillBuffer;
+        return spillBuffer != null
+                && spillBuffer.append(Collections.singletonList(logEvent.encode(this).getInputLogEvent())) == 0;
+    }
+
+    private void spillRemaining() {
+        List<InputLogEvent> remaining = new ArrayList<InputLogEvent>();
+        if (overflow != null) {
+            remaining.add(overflow.getInputLogEvent());
+        }
+        List<QueuedLogEvent> queued = new ArrayList<QueuedLogEvent>(pending);
+        if (priorityQueue != null) {
+            priorityQueue.drainTo(queued, Integer.MAX_VALUE);
+        }
+        queue.drainTo(queued, Integer.MAX_VALUE);
+        for (QueuedLogEvent queuedLogEvent : queued) {
+            remaining.add(queuedLogEvent.encode(this).getInputLogEvent());
+        }
+        int rejected = spillBuffer.append(remaining);
+        if (rejected > 0) {
+            lost(rejected);
+            if (getAwsLogsAppender().getVerbose()) {
+                getAwsLogsAppender().addWarn(rejected + " events lost");
             }
+        }
+    }
+
+    private void sendFailed(Collection<InputLogEvent> batch, Throwable t) {
+        // the events already sent must not be spilled, they would be sent twice
+        if (t instanceof UnsentEventsException) {
+            batch = ((UnsentEventsException) t).getUnsentEvents();
+            t = t.getCause();
+        }
+        metrics.incrementFlushFailed(t);
+        if (getAwsLogsAppender().getVerbose()) {
+            getAwsLogsAppender().addError("Unable to flush events to AWS", t);
+        }
+        SpillBuffer spillBuffer = this.spillBuffer;
+        if (spillBuffer != null) {
+            lost(spillBuffer.append(batch));
+        }
+    }
+
+    private void lost(int count) {
+        lostCount.addAndGet(count);
+        if (count > 0) {
+            // the level is not kept once the events are encoded
+            metrics.incrementLostCount(null, count);
+        }
+    }
+
+    // Sends back what was spilled, oldest first, stopping at the first failure.
+    // After a failure, the queue is still sent, and spilled events are only tried again after a growing delay:
+    // spilled events that keep failing must not hold back the others.
+    private void replaySpilled() {
+        if (spillBuffer == null || replayFailures > 0 && System.nanoTime() - replayNotBeforeNanos < 0) {
             return;
         }
-        InputLogEvent logEvent = asInputLogEvent(event);
-        // are we allowed to block ?
-        if (getAwsLogsAppender().getMaxBlockTimeMillis() > 0) {
-            // we are allowed to block, offer uninterruptibly for the configured maximum blocking time
-            boolean interrupted = false;
-            long until = System.currentTimeMillis() + getAwsLogsAppender().getMaxBlockTimeMillis();
+        while (true) {
+            List<InputLogEvent> batch = spillBuffer.peek(MAX_BATCH_LOG_EVENTS, MAX_BATCH_SIZE, EVENT_SIZE_PADDING);
+            if (batch.isEmpty()) {
+                replayFailures = 0;
+                return;
+            }
             try {
-                long now = System.currentTimeMillis();
-                while (now < until) {
-                    try {
-                        if (!queue.offer(logEvent, until - now, TimeUnit.MILLISECONDS)) {
-                            lostCount.incrementAndGet();
-                            AwsLogsMetricsHolder.get().incrementLostCount();
+                getAwsLogsStub().logEvents(batch);
+            } catch (RuntimeException e) {
+                Throwable t = e;
+                List<InputLogEvent> unsent = batch;
+                if (e instanceof UnsentEventsException) {
+                    unsent = ((UnsentEventsException) e).getUnsentEvents();
+                    t = e.getCause();
+                }
+                // what was not sent stays first
+                lost(spillBuffer.commit(unsent));
+                metrics.incrementFlushFailed(t);
+                if (getAwsLogsAppender().getVerbose()) {
+                    getAwsLogsAppender().addError("Unable to send spilled events to AWS", t);
+                }
+                long backoffMillis = Math.min(REPLAY_BACKOFF_MAX_MILLIS,
+                        REPLAY_BACKOFF_MIN_MILLIS << Math.min(replayFailures, 16));
+                replayFailures++;
+                replayNotBeforeNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(backoffMillis);
+                return;
+            }
+            spillBuffer.commit();
+        }
+    }
+
+    private boolean discardThresholdReached() {
+        return discardThresholdBytes > 0 ?
+                queuedBytes.get() >= discardThresholdBytes :
+                queue.size() >= discardThreshold();
+    }
+
+    private int discardThreshold() {
+        return (int) Math.ceil(flushController.getBatchThreshold() * 1.5);
+    }
+
+    // From 0 when the queue is below half the discard threshold, up to 1 at 1.25 times it,
+    // just before the queue is full with the default thresholds
+    private double sheddingPressure() {
+        double fill = discardThresholdBytes > 0 ?
+                (double) queuedBytes.get() / discardThresholdBytes :
+                (double) queue.size() / discardThreshold();
+        return Math.min(1, Math.max(0, (fill - 0.5) / 0.75));
+    }
+
+    // At most one summary waits in pending at a time: until it is drained, what is dropped is counted in the next
+    // one, so summaries cannot pile up while nothing is sent
+    private void queueSheddingSummary(LoadShedder loadShedder) {
+        if (lastSummary != null && pending.contains(lastSummary)) {
+            return;
+        }
+        List<String> summary = loadShedder.takeSummary();
+        if (summary == null) {
+            return;
+        }
+        for (String message : summary) {
+            int size = eventSize(message);
+            QueuedLogEvent logEvent = QueuedLogEvent.encoded(InputLogEvent.builder()
+                    .timestamp(System.currentTimeMillis())
+                    .message(message)
+                    .build(), size);
+            logEvent.setAppendNanos(System.nanoTime());
+            logEvent.setQueuedNanos(logEvent.getAppendNanos());
+            // straight to pending, the worker must never wait on its own queue
+            pending.add(logEvent);
+            lastSummary = logEvent;
+            if (trackQueuedBytes) {
+                queuedBytes.addAndGet(size);
+            }
+        }
+    }
+
+    private boolean flushThresholdReached() {
+        return queue.size() >= flushController.getBatchThreshold()
+                || (flushThresholdBytes > 0 && queuedBytes.get() >= flushThresholdBytes);
+    }
+
+    private void wakeUp() {
+        while (true) {
+            int state = flushState.get();
+            if (state == FLUSH_REQUESTED) {
+                return;
+            }
+            if (flushState.compareAndSet(state, FLUSH_REQUESTED)) {
+                // a flush in progress will loop again, only an idle worker needs to be dispatched
+                if (state == IDLE) {
+                    Thread thread = this.thread;
+                    if (thread != null) {
+                        LockSupport.unpark(thread);
+                    } else if (sharedScheduler) {
+                        try {
+                            WorkerScheduler.flushes().execute(this::flushShared);
+                        } catch (RejectedExecutionException e) {
+                            // all the shared flushers are busy, the next tick (or append) tries again
+                            flushState.compareAndSet(FLUSH_REQUESTED, IDLE);
                         }
-                        break;
+                    }
+                }
+                return;
+            }
+        }
+    }
+
+    private void tick() {
+        if (!flushController.isAdaptive() || System.nanoTime() - lastFlushNanos
+                >= TimeUnit.MILLISECONDS.toNanos(flushController.getLingerMillis())) {
+            wakeUp();
+        }
+    }
+
+    // Runs on the shared flushes, never concurrently for the same worker: it is only dispatched from IDLE
+    private void flushShared() {
+        do {
+            flushState.set(FLUSHING);
+            if (running.get()) {
+                flushAndAdapt();
+            }
+        } while (!flushState.compareAndSet(FLUSHING, IDLE));
+        // give the other workers a turn before sending the next batches
+        if (running.get() && (flushThresholdReached() || hasPending() || hasPriorityQueued())
+                && !waitingForCircuitBreaker()) {
+            wakeUp();
+        }
+    }
+
+    // Waits for the running shared flush, if any, and takes over to send everything left
+    private void flushFinally() {
+        while (!flushState.compareAndSet(IDLE, FLUSHING)) {
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+        }
+        flushOnStop();
+    }
+
+    private void flushOnStop() {
+        if (shutdownTimeoutMillis > 0) {
+            drainUntilDeadline();
+        } else {
+            flush(true);
+        }
+    }
+
+    // Sends everything left in parallel until the shutdown deadline, then spills (if possible) or abandons the rest
+    private void drainUntilDeadline() {
+        long deadline = shutdownDeadlineNanos;
+        AWSLogsStub awsLogsStub = getAwsLogsStub();
+        long totalEvents = 0;
+        long sentEvents = 0;
+        long abandonedEvents = 0;
+        List<InputLogEvent> left = new ArrayList<InputLogEvent>();
+        boolean interrupted = false;
+        try {
+            // let the pipelined sender finish what it is sending, and take back what it did not start
+            Deque<Collection<InputLogEvent>> batches = new ArrayDeque<Collection<InputLogEvent>>();
+            if (sender != null) {
+                batches.addAll(sender.stop(deadline - System.nanoTime()));
+                // may still make it, but cannot be spilled
+                abandonedEvents += sender.getInFlightEvents();
+                sender = null;
+            }
+            // then send the rest with as many calls at once as allowed
+            PipelinedSender drainSender = new PipelinedSender(this,
+                    getAwsLogsAppender().getShutdownParallelism(), !awsLogsStub.allowsConcurrentCalls(),
+                    awsLogsStub.isAsync(), this::sendFailed);
+            boolean givenUp = false;
+            while (!batches.isEmpty() || hasQueued() || hasPending()) {
+                Collection<InputLogEvent> batch = batches.isEmpty() ? drainBatchFromQueue() : batches.poll();
+                if (batch.isEmpty()) {
+                    break;
+                }
+                totalEvents += batch.size();
+                if (!givenUp) {
+                    try {
+                        givenUp = !drainSender.send(batch, deadline - System.nanoTime());
                     } catch (InterruptedException e) {
-                        interrupted = true;
-                        now = System.currentTimeMillis();
+                        interrupted = givenUp = true;
                     }
                 }
-            } finally {
-                if (interrupted) {
-                    Thread.currentThread().interrupt();
+                if (givenUp) {
+                    left.addAll(batch);
                 }
             }
+            // failed (spilled by sendFailed), waiting (spilled below) or in flight at the deadline, they are abandoned
+            for (Collection<InputLogEvent> batch : drainSender.stop(deadline - System.nanoTime())) {
+                left.addAll(batch);
+            }
+            sentEvents = drainSender.getSentEvents();
+            abandonedEvents += totalEvents - sentEvents;
+        } catch (Exception e) {
+            metrics.incrementFlushFailed(e);
+            getAwsLogsAppender().addError("Unable to flush events to AWS on stop", e);
+        }
+        if (!left.isEmpty()) {
+            if (spillBuffer != null) {
+                lost(spillBuffer.append(left));
+            } else {
+                lost(left.size());
+            }
+        }
+        shutdownFlushedEvents = sentEvents;
+        shutdownAbandonedEvents = abandonedEvents;
+        String message = "Flushed " + sentEvents + " events on stop, abandoned " + abandonedEvents
+                + (spillBuffer != null ? " (spilled when possible)" : "");
+        if (abandonedEvents > 0) {
+            getAwsLogsAppender().addWarn(message);
         } else {
-            // we are not allowed to block, offer without blocking
-            if (!queue.offer(logEvent)) {
-                lostCount.incrementAndGet();
-                AwsLogsMetricsHolder.get().incrementLostCount();
+            getAwsLogsAppender().addInfo(message);
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    long getShutdownFlushedEvents() {
+        return shutdownFlushedEvents;
+    }
+
+    long getShutdownAbandonedEvents() {
+        return shutdownAbandonedEvents;
+    }
+
+    private boolean enqueue(QueuedLogEvent logEvent, boolean degraded) {
+        // when allowed to block, offer uninterruptibly for the configured maximum blocking time
+        long until = System.currentTimeMillis() + (degraded ? 0 : getAwsLogsAppender().getMaxBlockTimeMillis());
+        boolean interrupted = false;
+        try {
+            while (maxQueueBytes > 0) {
+                try {
+                    if (!reserveBytes(logEvent.getSize(), until)) {
+                        return false;
+                    }
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
             }
         }
-        // trigger a flush if queue is full
-        if (queue.size() >= maxBatchLogEvents) {
-            synchronized (running) {
-                running.notifyAll();
+        boolean offered = offer(queue, logEvent, until);
+        if (offered) {
+            if (maxQueueBytes <= 0 && trackQueuedBytes) {
+                queuedBytes.addAndGet(logEvent.getSize());
+            }
+        } else if (maxQueueBytes > 0) {
+            releaseBytes(logEvent.getSize());
+        }
+        return offered;
+    }
+
+    // The priority lane has its own capacity and maximum blocking time, and is not bounded by bytes.
+    // When it stays full, events fall back to the main queue, where they are never discarded by threshold.
+    private boolean enqueuePriority(QueuedLogEvent logEvent, boolean degraded) {
+        if (offer(priorityQueue, logEvent, System.currentTimeMillis() + (degraded ? 0 : priorityMaxBlockTimeMillis))) {
+            return true;
+        }
+        return enqueue(logEvent, degraded);
+    }
+
+    // Offers uninterruptibly, waiting until the given time at most
+    private static boolean offer(EventQueue<QueuedLogEvent> queue, QueuedLogEvent logEvent, long until) {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    long now = System.currentTimeMillis();
+                    return now < until ?
+                            queue.offer(logEvent, until - now, TimeUnit.MILLISECONDS) :
+                            queue.offer(logEvent);
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private boolean reserveBytes(int size, long until) throws InterruptedException {
+        while (true) {
+            long current = queuedBytes.get();
+            long next = current + size;
+            // below the block threshold, or alone in the queue, go ahead
+            if (next <= blockThresholdBytes || current == 0) {
+                if (queuedBytes.compareAndSet(current, next)) {
+                    return true;
+                }
+                continue;
+            }
+            long now = System.currentTimeMillis();
+            if (now >= until) {
+                // done waiting, still accept the event as long as the ceiling is not exceeded
+                if (next > maxQueueBytes) {
+                    return false;
+                }
+                if (queuedBytes.compareAndSet(current, next)) {
+                    return true;
+                }
+                continue;
+            }
+            wakeUp();
+            synchronized (queuedBytes) {
+                if (queuedBytes.get() == current) {
+                    queuedBytes.wait(until - now);
+                }
+            }
+        }
+    }
+
+    private void releaseBytes(long size) {
+        if (trackQueuedBytes && size > 0) {
+            queuedBytes.addAndGet(-size);
+            if (maxQueueBytes > 0) {
+                synchronized (queuedBytes) {
+                    queuedBytes.notifyAll();
+                }
             }
         }
     }
@@ -120,21 +760,41 @@ class AsyncWorker extends Worker implements Runnable {
     @Override
     public void run() {
         while (running.get()) {
-            flush(false);
-            try {
-                synchronized (running) {
-                    if (running.get()) {
-                        running.wait(getAwsLogsAppender().getMaxFlushTimeMillis());
-                    }
-                }
-            } catch (InterruptedException e) {
+            // an unpark between this check and the park is not lost, it makes the park return immediately
+            if (flushState.get() == IDLE && (!flushThresholdReached() && !hasPending() || waitingForCircuitBreaker())) {
+                LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(flushController.getLingerMillis()));
+            }
+            if (Thread.interrupted() || !running.get()) {
                 break;
             }
+            flushState.set(FLUSHING);
+            flushAndAdapt();
+            flushState.compareAndSet(FLUSHING, IDLE);
         }
-        flush(true);
+        flushOnStop();
     }
 
-    private void flush(boolean all) {
+    private void flushAndAdapt() {
+        boolean full = flushThresholdReached();
+        int events = flush(false);
+        long now = System.nanoTime();
+        flushController.onFlush(events, now - lastFlushNanos, full);
+        lastFlushNanos = now;
+    }
+
+    // Whether the circuit breaker is open, and not ready for a probe yet
+    private boolean waitingForCircuitBreaker() {
+        return circuitBreaker != null && !circuitBreaker.isClosed() && !circuitBreaker.canProbe();
+    }
+
+    // events already drained from the queue, but left out of the last batch because it hit the limits
+    private boolean hasPending() {
+        return overflow != null || !pending.isEmpty();
+    }
+
+    // Returns the number of events sent (or handed to the sender)
+    private int flush(boolean all) {
+        int events = 0;
         try {
             long lostCount = this.lostCount.getAndSet(0);
             if (lostCount > 0) {
@@ -142,47 +802,93 @@ class AsyncWorker extends Worker implements Runnable {
                     getAwsLogsAppender().addWarn(lostCount + " events lost");
                 }
             }
-            if (!queue.isEmpty()) {
+            // events wait (or are spilled) while the circuit breaker is open, until it is time for a probe,
+            // and what is dropped meanwhile is only summarized once they can be sent
+            if (waitingForCircuitBreaker()) {
+                return events;
+            }
+            if (loadShedder != null) {
+                queueSheddingSummary(loadShedder);
+            }
+            if (degradedShedder != null && degradedShedder != loadShedder) {
+                queueSheddingSummary(degradedShedder);
+            }
+            replaySpilled();
+            if (hasQueued() || hasPending()) {
+                long start = System.nanoTime();
                 do {
                     Collection<InputLogEvent> batch = drainBatchFromQueue();
-                    getAwsLogsAppender().getAwsLogsStub().logEvents(batch);
-                } while (queue.size() >= maxBatchLogEvents || (all && !queue.isEmpty()));
+                    events += batch.size();
+                    if (sender != null) {
+                        // keep building the next batches while this one is sent
+                        sender.send(batch);
+                    } else {
+                        try {
+                            getAwsLogsStub().logEvents(batch);
+                            acknowledged(batch);
+                        } catch (RuntimeException e) {
+                            sendFailed(batch, e);
+                            break;
+                        }
+                    }
+                    // after a probe, go on only once it closed the circuit breaker
+                } while ((flushThresholdReached() || hasPending() || hasPriorityQueued() || (all && !queue.isEmpty()))
+                        && (circuitBreaker == null || circuitBreaker.isClosed()));
+                metrics.recordFlushDuration(System.nanoTime() - start);
             }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         } catch (Exception e) {
-            AwsLogsMetricsHolder.get().incrementFlushFailed(e);
+            metrics.incrementFlushFailed(e);
             if (getAwsLogsAppender().getVerbose()) {
                 getAwsLogsAppender().addError("Unable to flush events to AWS", e);
             }
         }
+        return events;
     }
     
-    // See http://docs.aws.amazon.com/AmazonCloudWatchLogs/latest/APIReference/API_PutLogEvents.html
-    private static final int MAX_BATCH_SIZE = 1048576;
-
-    private Collection<InputLogEvent> drainBatchFromQueue() {
-        Deque<InputLogEvent> batch = new ArrayDeque<InputLogEvent>(maxBatchLogEvents);
-        queue.drainTo(batch, MAX_BATCH_LOG_EVENTS);
-        int batchSize = batchSize(batch);
-        while (batchSize > MAX_BATCH_SIZE) {
-            InputLogEvent removed = batch.removeLast();
-            batchSize -= eventSize(removed);
-            if (!queue.offer(removed)) {
-                AwsLogsMetricsHolder.get().incrementBatchRequeueFailed();
-                if (getAwsLogsAppender().getVerbose()) {
-                    getAwsLogsAppender().addWarn("Failed requeuing message from too big batch");
-                }
+    // Builds the next batch while draining, stopping at the PutLogEvents limits.
+    // Events drained past those limits stay in pending (and an encoded one in overflow) for the next batch,
+    // they are never pushed back into the queue.
+    // The priority lane is drained first, the batch is sorted by timestamp when sent anyway.
+    Collection<InputLogEvent> drainBatchFromQueue() {
+        LogEventBatch batch = new LogEventBatch(MAX_BATCH_LOG_EVENTS, MAX_BATCH_SIZE);
+        long now = System.nanoTime();
+        if (overflow != null) {
+            batch.add(overflow);
+            metrics.recordQueueWait(now - overflow.getQueuedNanos());
+            overflow = null;
+        }
+        while (priorityQueue != null && overflow == null && !batch.isFull()) {
+            QueuedLogEvent queuedLogEvent = priorityQueue.poll();
+            if (queuedLogEvent == null) {
+                break;
+            }
+            QueuedLogEvent encoded = queuedLogEvent.encode(this);
+            if (!batch.add(encoded)) {
+                overflow = encoded;
+                break;
             }
+            metrics.recordQueueWait(now - encoded.getQueuedNanos());
         }
-
-        AwsLogsMetricsHolder.get().incrementBatch(batchSize);
-        return batch;
-    }
-    
-    private static int batchSize(Collection<InputLogEvent> batch) {
-        int size = 0;
-        for (InputLogEvent event : batch) {
-            size += eventSize(event);
+        long drainedSize = 0;
+        while (overflow == null && !batch.isFull()) {
+            if (pending.isEmpty() && queue.drainTo(pending, Math.min(batch.remainingEvents(), maxBatchLogEvents)) == 0) {
+                break;
+            }
+            QueuedLogEvent queuedLogEvent = pending.poll();
+            drainedSize += queuedLogEvent.getSize();
+            QueuedLogEvent encoded = queuedLogEvent.encode(this);
+            if (!batch.add(encoded)) {
+                overflow = encoded;
+                break;
+            }
+            metrics.recordQueueWait(now - encoded.getQueuedNanos());
         }
-        return size;
+        oldestDrained = overflow != null ? overflow : pending.peekFirst();
+        releaseBytes(drainedSize);
+
+        metrics.recordBatch(batch.getEvents().size(), batch.getSize());
+        return batch.getEvents();
     }
 }
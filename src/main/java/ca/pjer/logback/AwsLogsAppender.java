@@ -1,5 +1,7 @@
 package ca.pjer.logback;
 
+import ca.pjer.logback.metrics.AppenderMetrics;
+import ch.qos.logback.classic.Level;
 import ch.qos.logback.classic.spi.ILoggingEvent;
 import ch.qos.logback.core.Layout;
 import ch.qos.logback.core.UnsynchronizedAppenderBase;
@@ -7,6 +9,7 @@ import ch.qos.logback.core.encoder.Encoder;
 import ch.qos.logback.core.layout.EchoLayout;
 import ch.qos.logback.core.status.WarnStatus;
 
+import javax.management.JMException;
 import java.nio.charset.StandardCharsets;
 import java.text.SimpleDateFormat;
 import java.util.Date;
@@ -29,7 +32,50 @@ public class AwsLogsAppender extends UnsynchronizedAppenderBase<ILoggingEvent> {
     private boolean verbose = true;
     private String accessKeyId;
     private String secretAccessKey;
-
+    private String queueType = QUEUE_TYPE_ARRAY_BLOCKING;
+    private String queueWaitStrategy = "park";
+    private String workerScheduler = WorkerScheduler.THREAD;
+    private boolean deferEncoding = false;
+    private boolean includeCallerData = false;
+    private long maxQueueBytes = 0;
+    private long blockThresholdBytes = 0;
+    private long discardThresholdBytes = 0;
+    private long flushThresholdBytes = 0;
+    private int maxInFlightBatches = 1;
+    private boolean groupCommit = false;
+    private int priorityQueueSize = 0;
+    private String priorityLevel = "WARN";
+    private long priorityMaxBlockTimeMillis = -1;
+    private String loadShedding = LOAD_SHEDDING_DISCARD;
+    private String outOfRangeEvents = OUT_OF_RANGE_DROP;
+    private long shutdownTimeoutMillis = 0;
+    private int shutdownParallelism = 4;
+    private int circuitBreakerFailures = 0;
+    private long circuitBreakerOpenMillis = 30000;
+    private String degradedMode = DEGRADED_MODE_DROP;
+    private int shards = 1;
+    private String shardBy = SHARD_BY_THREAD;
+    private String shardKey;
+    private String logGroupPattern;
+    private String logStreamPattern;
+    private int maxRoutes = 100;
+    private long routeIdleTimeoutMillis = 300000;
+    private long sheddingSummaryIntervalMillis = 10000;
+    private boolean useSequenceToken = true;
+    private boolean useAsyncClient = false;
+    private String spillDirectory;
+    private int spillSegmentBytes = 8 * 1024 * 1024;
+    private long maxSpillBytes = 256L * 1024 * 1024;
+    private int maxRetries = 0;
+    private long retryBaseDelayMillis = 100;
+    private long retryMaxDelayMillis = 20000;
+    private int retryBudgetPercent = 10;
+    private double maxPutLogEventsPerSecond = 0;
+    private boolean registerMBean = false;
+    private boolean adaptiveFlush = false;
+    private long minFlushTimeMillis = 0;
+
+    private final AppenderMetrics metrics = new AppenderMetrics();
     private AWSLogsStub awsLogsStub;
     private Worker worker;
 
@@ -142,6 +188,42 @@ public class AwsLogsAppender extends UnsynchronizedAppenderBase<ILoggingEvent> {
         this.maxBlockTimeMillis = maxBlockTimeMillis;
     }
 
+    @SuppressWarnings({"unused", "WeakerAccess"})
+    public int getPriorityQueueSize() {
+        return priorityQueueSize;
+    }
+
+    @SuppressWarnings({"unused", "WeakerAccess"})
+    public void setPriorityQueueSize(int priorityQueueSize) {
+        if (priorityQueueSize < 0) {
+            throw new IllegalArgumentException("priorityQueueSize must not be negative");
+        }
+        this.priorityQueueSize = priorityQueueSize;
+    }
+
+    @SuppressWarnings({"unused", "WeakerAccess"})
+    public String getPriorityLevel() {
+        return priorityLevel;
+    }
+
+    @SuppressWarnings({"unused", "WeakerAccess"})
+    public void setPriorityLevel(String priorityLevel) {
+        if (Level.toLevel(priorityLevel, null) == null) {
+            throw new IllegalArgumentException("priorityLevel must be a level, like WARN or ERROR");
+        }
+        this.priorityLevel = priorityLevel;
+    }
+
+    @SuppressWarnings({"unused", "WeakerAccess"})
+    public long getPriorityMaxBlockTimeMillis() {
+        return priorityMaxBlockTimeMillis;
+    }
+
+    @SuppressWarnings({"unused", "WeakerAccess"})
+    public void setPriorityMaxBlockTimeMillis(long priorityMaxBlockTimeMillis) {
+        this.priorityMaxBlockTimeMillis = priorityMaxBlockTimeMillis;
+    }
+
     @SuppressWarnings({"unused", "WeakerAccess"})
     public int getRetentionTimeDays() {
         return retentionTimeDays;
@@ -152,6 +234,482 @@ public class AwsLogsAppender extends UnsynchronizedAppenderBase<ILoggingEvent> {
         this.retentionTimeDays = days;
     }
 
+    static final String QUEUE_TYPE_ARRAY_BLOCKING = "arrayBlocking";
+    static final String QUEUE_TYPE_RING_BUFFER = "ringBuffer";
+
+    @SuppressWarnings({"unused", "WeakerAccess"})
+    public String getQueueType() {
+        return queueType;
+    }
+
+    @SuppressWarnings({"unused", "WeakerAccess"})
+    public void setQueueType(String queueType) {
+        if (!QUEUE_TYPE_ARRAY_BLOCKING.equalsIgnoreCase(queueType) && !QUEUE_TYPE_RING_BUFFER.equalsIgnoreCase(queueType)) {
+            throw new IllegalArgumentException("queueType must be arrayBlocking or ringBuffer");
+        }
+        this.queueType = queueType;
+    }
+
+    @SuppressWarnings({"unused", "WeakerAccess"})
+    public String getQueueWaitStrategy() {
+        return queueWaitStrategy;
+    }
+
+    @SuppressWarnings({"unused", "WeakerAccess"})
+    public void setQueueWaitStrategy(String queueWaitStrategy) {
+        WaitStrategy.of(queueWaitStrategy);
+        this.queueWaitStrategy = queueWaitStrategy;
+    }
+
+    @SuppressWarnings({"unused", "WeakerAccess"})
+    public long getShutdownTimeoutMillis() {
+        return shutdownTimeoutMillis;
+    }
+
+    @SuppressWarnings({"unused", "WeakerAccess"})
+    public void setShutdownTimeoutMillis(long shutdownTimeoutMillis) {
+        if (shutdownTimeoutMillis < 0) {
+            throw new IllegalArgumentException("shutdownTimeoutMillis must not be negative");
+        }
+        this.shutdownTimeoutMillis = shutdownTimeoutMillis;
+    }
+
+    @SuppressWarnings({"unused", "WeakerAccess"})
+    public int getShutdownParallelism() {
+        return shutdownParallelism;
+    }
+
+    @SuppressWarnings({"unused", "WeakerAccess"})
+    public void setShutdownParallelism(int shutdownParallelism) {
+        if (shutdownParallelism < 1) {
+            throw new IllegalArgumentException("shutdownParallelism must be at least 1");
+        }
+        this.shutdownParallelism = shutdownParallelism;
+    }
+
+    @SuppressWarnings({"unused", "WeakerAccess"})
+    public int getCircuitBreakerFailures() {
+        return circuitBreakerFailures;
+    }
+
+    @SuppressWarnings({"unused", "WeakerAccess"})
+    public void setCircuitBreakerFailures(int circuitBreakerFailures) {
+        if (circuitBreakerFailures < 0) {
+            throw new IllegalArgumentException("circuitBreakerFailures must not be negative");
+        }
+        this.circuitBreakerFailures = circuitBreakerFailures;
+    }
+
+    @SuppressWarnings({"unused", "WeakerAccess"})
+    public long getCircuitBreakerOpenMillis() {
+        return circuitBreakerOpenMillis;
+    }
+
+    @SuppressWarnings({"unused", "WeakerAccess"})
+    public void setCircuitBreakerOpenMillis(long circuitBreakerOpenMillis) {
+        if (circuitBreakerOpenMillis <= 0) {
+            throw new IllegalArgumentException("circuitBreakerOpenMillis must be greater than 0");
+        }
+        this.circuitBreakerOpenMillis = circuitBreakerOpenMillis;
+    }
+
+    static final String DEGRADED_MODE_DROP = "drop";
+    static final String DEGRADED_MODE_SAMPLE = "sample";
+    static final String DEGRADED_MODE_SPILL = "spill";
+
+    @SuppressWarnings({"unused", "WeakerAccess"})
+    public String getDegradedMode() {
+        return degradedMode;
+    }
+
+    @SuppressWarnings({"unused", "WeakerAccess"})
+    public void setDegradedMode(String degradedMode) {
+        if (!DEGRADED_MODE_DROP.equalsIgnoreCase(degradedMode) && !DEGRADED_MODE_SAMPLE.equalsIgnoreCase(degradedMode)
+                && !DEGRADED_MODE_SPILL.equalsIgnoreCase(degradedMode)) {
+            throw new IllegalArgumentException("degradedMode must be one of drop, sample or spill");
+        }
+        this.degradedMode = degradedMode;
+    }
+
+    @SuppressWarnings({"unused", "WeakerAccess"})
+    public int getShards() {
+        return shards;
+    }
+
+    @SuppressWarnings({"unused", "WeakerAccess"})
+    public void setShards(int shards) {
+        if (shards < 1) {
+            throw new IllegalArgumentException("shards must be at least 1");
+        }
+        this.shards = shards;
+    }
+
+    static final String SHARD_BY_THREAD = "thread";
+    static final String SHARD_BY_KEY = "key";
+    static final String SHARD_BY_ROUND_ROBIN = "roundRobin";
+
+    @SuppressWarnings({"unused", "WeakerAccess"})
+    public String getShardBy() {
+        return shardBy;
+    }
+
+    @SuppressWarnings({"unused", "WeakerAccess"})
+    public void setShardBy(String shardBy) {
+        if (!SHARD_BY_THREAD.equalsIgnoreCase(shardBy) && !SHARD_BY_KEY.equalsIgnoreCase(shardBy)
+                && !SHARD_BY_ROUND_ROBIN.equalsIgnoreCase(shardBy)) {
+            throw new IllegalArgumentException("shardBy must be one of thread, key or roundRobin");
+        }
+        this.shardBy = shardBy;
+    }
+
+    @SuppressWarnings({"unused", "WeakerAccess"})
+    public String getShardKey() {
+        return shardKey;
+    }
+
+    @SuppressWarnings({"unused", "WeakerAccess"})
+    public void setShardKey(String shardKey) {
+        if (isNotBlank(shardKey)) {
+            this.shardKey = shardKey;
+        }
+    }
+
+    @SuppressWarnings({"unused", "WeakerAccess"})
+    public String getLogGroupPattern() {
+        return logGroupPattern;
+    }
+
+    @SuppressWarnings({"unused", "WeakerAccess"})
+    public void setLogGroupPattern(String logGroupPattern) {
+        if (isNotBlank(logGroupPattern)) {
+            this.logGroupPattern = logGroupPattern;
+        }
+    }
+
+    @SuppressWarnings({"unused", "WeakerAccess"})
+    public String getLogStreamPattern() {
+        return logStreamPattern;
+    }
+
+    @SuppressWarnings({"unused", "WeakerAccess"})
+    public void setLogStreamPattern(String logStreamPattern) {
+        if (isNotBlank(logStreamPattern)) {
+            this.logStreamPattern = logStreamPattern;
+        }
+    }
+
+    @SuppressWarnings({"unused", "WeakerAccess"})
+    public int getMaxRoutes() {
+        return maxRoutes;
+    }
+
+    @SuppressWarnings({"unused", "WeakerAccess"})
+    public void setMaxRoutes(int maxRoutes) {
+        if (maxRoutes < 1) {
+            throw new IllegalArgumentException("maxRoutes must be at least 1");
+        }
+        this.maxRoutes = maxRoutes;
+    }
+
+    @SuppressWarnings({"unused", "WeakerAccess"})
+    public long getRouteIdleTimeoutMillis() {
+        return routeIdleTimeoutMillis;
+    }
+
+    @SuppressWarnings({"unused", "WeakerAccess"})
+    public void setRouteIdleTimeoutMillis(long routeIdleTimeoutMillis) {
+        if (routeIdleTimeoutMillis < 0) {
+            throw new IllegalArgumentException("routeIdleTimeoutMillis must not be negative");
+        }
+        this.routeIdleTimeoutMillis = routeIdleTimeoutMillis;
+    }
+
+    static final String OUT_OF_RANGE_DROP = "drop";
+    static final String OUT_OF_RANGE_CLAMP = "clamp";
+
+    @SuppressWarnings({"unused", "WeakerAccess"})
+    public String getOutOfRangeEvents() {
+        return outOfRangeEvents;
+    }
+
+    @SuppressWarnings({"unused", "WeakerAccess"})
+    public void setOutOfRangeEvents(String outOfRangeEvents) {
+        if (!OUT_OF_RANGE_DROP.equalsIgnoreCase(outOfRangeEvents) && !OUT_OF_RANGE_CLAMP.equalsIgnoreCase(outOfRangeEvents)) {
+            throw new IllegalArgumentException("outOfRangeEvents must be drop or clamp");
+        }
+        this.outOfRangeEvents = outOfRangeEvents;
+    }
+
+    static final String LOAD_SHEDDING_DISCARD = "discard";
+    static final String LOAD_SHEDDING_SAMPLE = "sample";
+
+    @SuppressWarnings({"unused", "WeakerAccess"})
+    public String getLoadShedding() {
+        return loadShedding;
+    }
+
+    @SuppressWarnings({"unused", "WeakerAccess"})
+    public void setLoadShedding(String loadShedding) {
+        if (!LOAD_SHEDDING_DISCARD.equalsIgnoreCase(loadShedding) && !LOAD_SHEDDING_SAMPLE.equalsIgnoreCase(loadShedding)) {
+            throw new IllegalArgumentException("loadShedding must be discard or sample");
+        }
+        this.loadShedding = loadShedding;
+    }
+
+    @SuppressWarnings({"unused", "WeakerAccess"})
+    public long getSheddingSummaryIntervalMillis() {
+        return sheddingSummaryIntervalMillis;
+    }
+
+    @SuppressWarnings({"unused", "WeakerAccess"})
+    public void setSheddingSummaryIntervalMillis(long sheddingSummaryIntervalMillis) {
+        if (sheddingSummaryIntervalMillis <= 0) {
+            throw new IllegalArgumentException("sheddingSummaryIntervalMillis must be greater than 0");
+        }
+        this.sheddingSummaryIntervalMillis = sheddingSummaryIntervalMillis;
+    }
+
+    @SuppressWarnings({"unused", "WeakerAccess"})
+    public String getWorkerScheduler() {
+        return workerScheduler;
+    }
+
+    @SuppressWarnings({"unused", "WeakerAccess"})
+    public void setWorkerScheduler(String workerScheduler) {
+        WorkerScheduler.validate(workerScheduler);
+        this.workerScheduler = workerScheduler;
+    }
+
+    @SuppressWarnings({"unused", "WeakerAccess"})
+    public boolean getDeferEncoding() {
+        return deferEncoding;
+    }
+
+    @SuppressWarnings({"unused", "WeakerAccess"})
+    public void setDeferEncoding(boolean deferEncoding) {
+        this.deferEncoding = deferEncoding;
+    }
+
+    @SuppressWarnings({"unused", "WeakerAccess"})
+    public boolean getIncludeCallerData() {
+        return includeCallerData;
+    }
+
+    @SuppressWarnings({"unused", "WeakerAccess"})
+    public void setIncludeCallerData(boolean includeCallerData) {
+        this.includeCallerData = includeCallerData;
+    }
+
+    @SuppressWarnings({"unused", "WeakerAccess"})
+    public long getMaxQueueBytes() {
+        return maxQueueBytes;
+    }
+
+    @SuppressWarnings({"unused", "WeakerAccess"})
+    public void setMaxQueueBytes(long maxQueueBytes) {
+        this.maxQueueBytes = maxQueueBytes;
+    }
+
+    @SuppressWarnings({"unused", "WeakerAccess"})
+    public long getBlockThresholdBytes() {
+        return blockThresholdBytes;
+    }
+
+    @SuppressWarnings({"unused", "WeakerAccess"})
+    public void setBlockThresholdBytes(long blockThresholdBytes) {
+        this.blockThresholdBytes = blockThresholdBytes;
+    }
+
+    @SuppressWarnings({"unused", "WeakerAccess"})
+    public long getDiscardThresholdBytes() {
+        return discardThresholdBytes;
+    }
+
+    @SuppressWarnings({"unused", "WeakerAccess"})
+    public void setDiscardThresholdBytes(long discardThresholdBytes) {
+        this.discardThresholdBytes = discardThresholdBytes;
+    }
+
+    @SuppressWarnings({"unused", "WeakerAccess"})
+    public long getFlushThresholdBytes() {
+        return flushThresholdBytes;
+    }
+
+    @SuppressWarnings({"unused", "WeakerAccess"})
+    public void setFlushThresholdBytes(long flushThresholdBytes) {
+        this.flushThresholdBytes = flushThresholdBytes;
+    }
+
+    @SuppressWarnings({"unused", "WeakerAccess"})
+    public boolean getGroupCommit() {
+        return groupCommit;
+    }
+
+    @SuppressWarnings({"unused", "WeakerAccess"})
+    public void setGroupCommit(boolean groupCommit) {
+        this.groupCommit = groupCommit;
+    }
+
+    @SuppressWarnings({"unused", "WeakerAccess"})
+    public int getMaxInFlightBatches() {
+        return maxInFlightBatches;
+    }
+
+    @SuppressWarnings({"unused", "WeakerAccess"})
+    public void setMaxInFlightBatches(int maxInFlightBatches) {
+        if (maxInFlightBatches <= 0) {
+            throw new IllegalArgumentException("maxInFlightBatches must be greater than 0");
+        }
+        this.maxInFlightBatches = maxInFlightBatches;
+    }
+
+    @SuppressWarnings({"unused", "WeakerAccess"})
+    public boolean getUseSequenceToken() {
+        return useSequenceToken;
+    }
+
+    @SuppressWarnings({"unused", "WeakerAccess"})
+    public void setUseSequenceToken(boolean useSequenceToken) {
+        this.useSequenceToken = useSequenceToken;
+    }
+
+    @SuppressWarnings({"unused", "WeakerAccess"})
+    public boolean getUseAsyncClient() {
+        return useAsyncClient;
+    }
+
+    @SuppressWarnings({"unused", "WeakerAccess"})
+    public void setUseAsyncClient(boolean useAsyncClient) {
+        this.useAsyncClient = useAsyncClient;
+    }
+
+    @SuppressWarnings({"unused", "WeakerAccess"})
+    public String getSpillDirectory() {
+        return spillDirectory;
+    }
+
+    @SuppressWarnings({"unused", "WeakerAccess"})
+    public void setSpillDirectory(String spillDirectory) {
+        if (isNotBlank(spillDirectory)) {
+            this.spillDirectory = spillDirectory;
+        }
+    }
+
+    @SuppressWarnings({"unused", "WeakerAccess"})
+    public int getSpillSegmentBytes() {
+        return spillSegmentBytes;
+    }
+
+    @SuppressWarnings({"unused", "WeakerAccess"})
+    public void setSpillSegmentBytes(int spillSegmentBytes) {
+        if (spillSegmentBytes <= 0) {
+            throw new IllegalArgumentException("spillSegmentBytes must be greater than 0");
+        }
+        this.spillSegmentBytes = spillSegmentBytes;
+    }
+
+    @SuppressWarnings({"unused", "WeakerAccess"})
+    public long getMaxSpillBytes() {
+        return maxSpillBytes;
+    }
+
+    @SuppressWarnings({"unused", "WeakerAccess"})
+    public void setMaxSpillBytes(long maxSpillBytes) {
+        this.maxSpillBytes = maxSpillBytes;
+    }
+
+    @SuppressWarnings({"unused", "WeakerAccess"})
+    public int getMaxRetries() {
+        return maxRetries;
+    }
+
+    @SuppressWarnings({"unused", "WeakerAccess"})
+    public void setMaxRetries(int maxRetries) {
+        this.maxRetries = maxRetries;
+    }
+
+    @SuppressWarnings({"unused", "WeakerAccess"})
+    public long getRetryBaseDelayMillis() {
+        return retryBaseDelayMillis;
+    }
+
+    @SuppressWarnings({"unused", "WeakerAccess"})
+    public void setRetryBaseDelayMillis(long retryBaseDelayMillis) {
+        this.retryBaseDelayMillis = retryBaseDelayMillis;
+    }
+
+    @SuppressWarnings({"unused", "WeakerAccess"})
+    public long getRetryMaxDelayMillis() {
+        return retryMaxDelayMillis;
+    }
+
+    @SuppressWarnings({"unused", "WeakerAccess"})
+    public void setRetryMaxDelayMillis(long retryMaxDelayMillis) {
+        this.retryMaxDelayMillis = retryMaxDelayMillis;
+    }
+
+    @SuppressWarnings({"unused", "WeakerAccess"})
+    public int getRetryBudgetPercent() {
+        return retryBudgetPercent;
+    }
+
+    @SuppressWarnings({"unused", "WeakerAccess"})
+    public void setRetryBudgetPercent(int retryBudgetPercent) {
+        if (retryBudgetPercent < 0) {
+            throw new IllegalArgumentException("retryBudgetPercent must not be negative");
+        }
+        this.retryBudgetPercent = retryBudgetPercent;
+    }
+
+    @SuppressWarnings({"unused", "WeakerAccess"})
+    public double getMaxPutLogEventsPerSecond() {
+        return maxPutLogEventsPerSecond;
+    }
+
+    @SuppressWarnings({"unused", "WeakerAccess"})
+    public void setMaxPutLogEventsPerSecond(double maxPutLogEventsPerSecond) {
+        this.maxPutLogEventsPerSecond = maxPutLogEventsPerSecond;
+    }
+
+    @SuppressWarnings({"unused", "WeakerAccess"})
+    public boolean getAdaptiveFlush() {
+        return adaptiveFlush;
+    }
+
+    @SuppressWarnings({"unused", "WeakerAccess"})
+    public void setAdaptiveFlush(boolean adaptiveFlush) {
+        this.adaptiveFlush = adaptiveFlush;
+    }
+
+    @SuppressWarnings({"unused", "WeakerAccess"})
+    public long getMinFlushTimeMillis() {
+        return minFlushTimeMillis;
+    }
+
+    @SuppressWarnings({"unused", "WeakerAccess"})
+    public void setMinFlushTimeMillis(long minFlushTimeMillis) {
+        if (minFlushTimeMillis < 0) {
+            throw new IllegalArgumentException("minFlushTimeMillis must not be negative");
+        }
+        this.minFlushTimeMillis = minFlushTimeMillis;
+    }
+
+    @SuppressWarnings({"unused", "WeakerAccess"})
+    public boolean getRegisterMBean() {
+        return registerMBean;
+    }
+
+    @SuppressWarnings({"unused", "WeakerAccess"})
+    public void setRegisterMBean(boolean registerMBean) {
+        this.registerMBean = registerMBean;
+    }
+
+    // The metrics of this appender only, see also AwsLogsMetricsHolder for the metrics of all of them
+    @SuppressWarnings({"unused", "WeakerAccess"})
+    public AppenderMetrics getMetrics() {
+        return metrics;
+    }
+
     AWSLogsStub getAwsLogsStub() {
         return awsLogsStub;
     }
@@ -214,17 +772,48 @@ public class AwsLogsAppender extends UnsynchronizedAppenderBase<ILoggingEvent> {
                 }
             }
             if (this.awsLogsStub == null) {
-                this.awsLogsStub = new AWSLogsStub(logGroupName, logStreamName, logRegion, retentionTimeDays
-                        , cloudWatchEndpoint, verbose, accessKeyId, secretAccessKey);
+                this.awsLogsStub = useAsyncClient ?
+                        new AWSLogsAsyncStub(logGroupName, logStreamName, logRegion, retentionTimeDays
+                                , cloudWatchEndpoint, verbose, accessKeyId, secretAccessKey, useSequenceToken) :
+                        new AWSLogsStub(logGroupName, logStreamName, logRegion, retentionTimeDays
+                                , cloudWatchEndpoint, verbose, accessKeyId, secretAccessKey, useSequenceToken);
+                this.awsLogsStub.setMetrics(metrics);
+                this.awsLogsStub.setOutOfRangeHandler(BatchPreparer.outOfRangeHandler(outOfRangeEvents));
+                if (maxRetries > 0) {
+                    this.awsLogsStub.setRetryEngine(new RetryEngine(maxRetries, retryBaseDelayMillis
+                            , retryMaxDelayMillis, retryBudgetPercent, metrics));
+                }
+                if (circuitBreakerFailures > 0) {
+                    this.awsLogsStub.setCircuitBreaker(new CircuitBreaker(circuitBreakerFailures
+                            , circuitBreakerOpenMillis, metrics));
+                }
+                if (maxPutLogEventsPerSecond > 0) {
+                    this.awsLogsStub.setRateLimiter(new RateLimiter(maxPutLogEventsPerSecond, maxPutLogEventsPerSecond));
+                }
                 this.awsLogsStub.start();
             }
             if (this.worker == null) {
-                Worker worker = maxFlushTimeMillis > 0 ?
-                        new AsyncWorker(this) :
-                        new SyncWorker(this);
+                boolean routing = logGroupPattern != null || logStreamPattern != null;
+                if (routing && shards > 1) {
+                    addWarn("shards is ignored with logGroupPattern or logStreamPattern");
+                }
+                Worker worker = routing ?
+                        new RoutingWorker(this) :
+                        shards > 1 ?
+                                ShardedWorker.create(this) :
+                                maxFlushTimeMillis > 0 ?
+                                        new AsyncWorker(this) :
+                                        new SyncWorker(this);
                 this.worker = worker;
                 worker.start();
             }
+            if (registerMBean) {
+                try {
+                    metrics.registerMBean(getName());
+                } catch (JMException e) {
+                    addWarn("Unable to register the metrics MBean", e);
+                }
+            }
             layout.start();
             super.start();
         }
@@ -234,7 +823,11 @@ public class AwsLogsAppender extends UnsynchronizedAppenderBase<ILoggingEvent> {
     public synchronized void stop() {
         if (isStarted()) {
             super.stop();
-            layout.stop();
+            try {
+                metrics.unregisterMBean();
+            } catch (JMException e) {
+                addWarn("Unable to unregister the metrics MBean", e);
+            }
             if (worker != null) {
                 worker.stop();
                 worker = null;
@@ -243,13 +836,17 @@ public class AwsLogsAppender extends UnsynchronizedAppenderBase<ILoggingEvent> {
                 awsLogsStub.stop();
                 awsLogsStub = null;
             }
+            // only once the worker is stopped: deferred events are still encoded while it flushes
+            layout.stop();
         }
     }
 
     @Override
     protected void append(ILoggingEvent event) {
+        // timed from here until PutLogEvents acknowledges the event
+        long appendNanos = System.nanoTime();
         if (worker != null) {
-            worker.append(event);
+            worker.append(event, appendNanos);
         }
     }
 
@@ -0,0 +1,131 @@
+package ca.pjer.logback;
+
+import software.amazon.awssdk.services.cloudwatchlogs.model.InputLogEvent;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// Turns a batch into what PutLogEvents accepts, see
+// http://docs.aws.amazon.com/AmazonCloudWatchLogs/latest/APIReference/API_PutLogEvents.html
+// - events in chronological order, only sorted when they are not already,
+// - no event more than 2 hours in the future, or older than 14 days or the retention period,
+// those are given to the OutOfRangeHandler,
+// - no batch spanning more than 24 hours, those are split.
+// The events themselves are left as is, unless the handler replaces them.
+class BatchPreparer {
+
+    static final long MAX_BATCH_SPAN_MILLIS = TimeUnit.HOURS.toMillis(24);
+    static final long MAX_AGE_MILLIS = TimeUnit.DAYS.toMillis(14);
+    static final long MAX_FUTURE_MILLIS = TimeUnit.HOURS.toMillis(2);
+    // kept away from the limits, the clocks of this host and of CloudWatch can differ a bit
+    static final long MARGIN_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+    static final Comparator<InputLogEvent> BY_TIMESTAMP = Comparator.comparing(InputLogEvent::timestamp);
+
+    // What to do with an event PutLogEvents would reject because of its timestamp
+    interface OutOfRangeHandler {
+
+        // Returns the event to send instead, or null to drop it.
+        // oldest and newest are the timestamps accepted at the time of the call.
+        InputLogEvent handle(InputLogEvent event, long oldest, long newest);
+    }
+
+    static final OutOfRangeHandler DROP = (event, oldest, newest) -> null;
+
+    static final OutOfRangeHandler CLAMP = (event, oldest, newest) -> event.toBuilder()
+            .timestamp(Math.max(oldest, Math.min(newest, event.timestamp())))
+            .build();
+
+    static OutOfRangeHandler outOfRangeHandler(String name) {
+        if (AwsLogsAppender.OUT_OF_RANGE_CLAMP.equalsIgnoreCase(name)) {
+            return CLAMP;
+        }
+        return DROP;
+    }
+
+    private final long maxAgeMillis;
+    private final OutOfRangeHandler outOfRangeHandler;
+
+    BatchPreparer(int retentionTimeInDays, OutOfRangeHandler outOfRangeHandler) {
+        this.maxAgeMillis = retentionTimeInDays > 0 ?
+                Math.min(MAX_AGE_MILLIS, TimeUnit.DAYS.toMillis(retentionTimeInDays)) :
+                MAX_AGE_MILLIS;
+        this.outOfRangeHandler = outOfRangeHandler;
+    }
+
+    // The batches to send, in chronological order, each one sorted, without the events dropped by the handler
+    List<List<InputLogEvent>> prepare(Collection<InputLogEvent> events) {
+        return prepare(events, System.currentTimeMillis());
+    }
+
+    List<List<InputLogEvent>> prepare(Collection<InputLogEvent> events, long now) {
+        long oldest = now - maxAgeMillis + MARGIN_MILLIS;
+        long newest = now + MAX_FUTURE_MILLIS - MARGIN_MILLIS;
+
+        // the common case, a sorted batch within range, is checked in one pass without copying
+        boolean sorted = true;
+        boolean inRange = true;
+        long previous = Long.MIN_VALUE;
+        for (InputLogEvent event : events) {
+            long timestamp = event.timestamp();
+            sorted &= timestamp >= previous;
+            inRange &= timestamp >= oldest && timestamp <= newest;
+            previous = timestamp;
+        }
+        List<InputLogEvent> list;
+        if (inRange) {
+            list = events instanceof List ? (List<InputLogEvent>) events : new ArrayList<InputLogEvent>(events);
+        } else {
+            list = new ArrayList<InputLogEvent>(events.size());
+            for (InputLogEvent event : events) {
+                long timestamp = event.timestamp();
+                if (timestamp < oldest || timestamp > newest) {
+                    event = outOfRangeHandler.handle(event, oldest, newest);
+                    if (event == null) {
+                        continue;
+                    }
+                    sorted = false;
+                }
+                list.add(event);
+            }
+        }
+        if (!sorted) {
+            if (list == events) {
+                list = new ArrayList<InputLogEvent>(list);
+            }
+            list.sort(BY_TIMESTAMP);
+        }
+        if (list.isEmpty()) {
+            return Collections.emptyList();
+        }
+        if (list.get(list.size() - 1).timestamp() - list.get(0).timestamp() < MAX_BATCH_SPAN_MILLIS) {
+            return Collections.singletonList(list);
+        }
+        List<List<InputLogEvent>> batches = new ArrayList<List<InputLogEvent>>();
+        int start = 0;
+        for (int i = 1; i < list.size(); i++) {
+            if (list.get(i).timestamp() - list.get(start).timestamp() >= MAX_BATCH_SPAN_MILLIS) {
+                batches.add(list.subList(start, i));
+                start = i;
+            }
+        }
+        batches.add(list.subList(start, list.size()));
+        return batches;
+    }
+
+    // Whether the events are in chronological order, in O(n)
+    static boolean isSorted(Collection<InputLogEvent> events) {
+        long previous = Long.MIN_VALUE;
+        for (InputLogEvent event : events) {
+            if (event.timestamp() < previous) {
+                return false;
+            }
+            previous = event.timestamp();
+        }
+        return true;
+    }
+}
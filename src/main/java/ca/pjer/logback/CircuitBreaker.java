@@ -0,0 +1,92 @@
+package ca.pjer.logback;
+
+import ca.pjer.logback.metrics.AppenderMetrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Stops calling PutLogEvents after failureThreshold consecutive failures worth retrying (throttling, server errors,
+// I/O errors), so that an outage does not turn every log call into a wait. After openMillis, a single probe call
+// is let through (half open): when it succeeds the circuit closes again, when it fails it opens for openMillis more.
+// Other failures (invalid parameters...) mean CloudWatch answered, they count as successes.
+class CircuitBreaker {
+
+    static final int CLOSED = 0;
+    static final int OPEN = 1;
+    static final int HALF_OPEN = 2;
+    private static final String[] STATE_NAMES = {"CLOSED", "OPEN", "HALF_OPEN"};
+
+    private final int failureThreshold;
+    private final long openNanos;
+    private final AppenderMetrics metrics;
+    private final AtomicInteger state = new AtomicInteger(CLOSED);
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+    private volatile long openedNanos;
+
+    CircuitBreaker(int failureThreshold, long openMillis, AppenderMetrics metrics) {
+        this.failureThreshold = failureThreshold;
+        this.openNanos = TimeUnit.MILLISECONDS.toNanos(openMillis);
+        this.metrics = metrics;
+        metrics.setCircuitBreakerState(STATE_NAMES[CLOSED]);
+    }
+
+    // Whether to call PutLogEvents now. When it was open long enough, the first caller gets to probe.
+    boolean allowRequest() {
+        int state = this.state.get();
+        if (state == CLOSED) {
+            return true;
+        }
+        return state == OPEN && System.nanoTime() - openedNanos >= openNanos && transition(OPEN, HALF_OPEN);
+    }
+
+    boolean isClosed() {
+        return state.get() == CLOSED;
+    }
+
+    // Whether allowRequest would let a probe through, without taking it
+    boolean canProbe() {
+        return state.get() == OPEN && System.nanoTime() - openedNanos >= openNanos;
+    }
+
+    int getState() {
+        return state.get();
+    }
+
+    void onSuccess() {
+        consecutiveFailures.set(0);
+        int state = this.state.get();
+        if (state != CLOSED) {
+            transition(state, CLOSED);
+        }
+    }
+
+    void onFailure(Throwable t) {
+        if (!RetryEngine.isRetryable(t)) {
+            onSuccess();
+            return;
+        }
+        int state = this.state.get();
+        if (state == HALF_OPEN) {
+            open(HALF_OPEN);
+        } else if (state == CLOSED && consecutiveFailures.incrementAndGet() >= failureThreshold) {
+            open(CLOSED);
+        }
+    }
+
+    private void open(int from) {
+        // published before the state, so that allowRequest never reads an old opening time
+        openedNanos = System.nanoTime();
+        transition(from, OPEN);
+    }
+
+    private boolean transition(int from, int to) {
+        if (!state.compareAndSet(from, to)) {
+            return false;
+        }
+        if (to == CLOSED) {
+            consecutiveFailures.set(0);
+        }
+        metrics.recordCircuitBreakerTransition(STATE_NAMES[to]);
+        return true;
+    }
+}
@@ -0,0 +1,97 @@
+package ca.pjer.logback;
+
+import software.amazon.awssdk.utils.SdkAutoCloseable;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.Supplier;
+
+// Reference counted clients, shared by the stubs that would configure them the same way,
+// so appenders share one HTTP connection pool and credentials provider.
+// A client is closed when the last stub using it releases it.
+final class CloudWatchLogsClients {
+
+    private static final Map<Key, Entry> clients = new HashMap<Key, Entry>();
+
+    private CloudWatchLogsClients() {
+    }
+
+    @SuppressWarnings("unchecked")
+    static synchronized <C extends SdkAutoCloseable> C acquire(Key key, Supplier<C> factory) {
+        Entry entry = clients.get(key);
+        if (entry == null) {
+            entry = new Entry(factory.get());
+            clients.put(key, entry);
+        }
+        entry.references++;
+        return (C) entry.client;
+    }
+
+    static void release(Key key) {
+        SdkAutoCloseable client = null;
+        synchronized (CloudWatchLogsClients.class) {
+            Entry entry = clients.get(key);
+            if (entry != null && --entry.references <= 0) {
+                clients.remove(key);
+                client = entry.client;
+            }
+        }
+        if (client != null) {
+            client.close();
+        }
+    }
+
+
+    private static class Entry {
+
+        private final SdkAutoCloseable client;
+        private int references;
+
+        private Entry(SdkAutoCloseable client) {
+            this.client = client;
+        }
+    }
+
+    static final class Key {
+
+        private final boolean async;
+        private final String logRegion;
+        private final String cloudWatchEndpoint;
+        private final String accessKeyId;
+        private final String secretAccessKey;
+        private final boolean sdkRetries;
+
+        Key(boolean async, String logRegion, String cloudWatchEndpoint, String accessKeyId, String secretAccessKey
+                , boolean sdkRetries) {
+            this.async = async;
+            this.logRegion = logRegion;
+            this.cloudWatchEndpoint = cloudWatchEndpoint;
+            this.accessKeyId = accessKeyId;
+            this.secretAccessKey = secretAccessKey;
+            this.sdkRetries = sdkRetries;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) o;
+            return async == key.async
+                    && sdkRetries == key.sdkRetries
+                    && Objects.equals(logRegion, key.logRegion)
+                    && Objects.equals(cloudWatchEndpoint, key.cloudWatchEndpoint)
+                    && Objects.equals(accessKeyId, key.accessKeyId)
+                    && Objects.equals(secretAccessKey, key.secretAccessKey);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(async, logRegion, cloudWatchEndpoint, accessKeyId, secretAccessKey, sdkRetries);
+        }
+    }
+}
@@ -0,0 +1,25 @@
+package ca.pjer.logback;
+
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+
+interface EventQueue<E> {
+
+    boolean offer(E e);
+
+    boolean offer(E e, long timeout, TimeUnit unit) throws InterruptedException;
+
+    E poll();
+
+    // safe to call from any thread, but only the consumer is guaranteed to get the element poll would return
+    E peek();
+
+    int drainTo(Collection<? super E> collection, int maxElements);
+
+    // may be approximate, but must be cheap enough to be read on every append
+    int size();
+
+    boolean isEmpty();
+
+    void clear();
+}
@@ -0,0 +1,120 @@
+package ca.pjer.logback;
+
+import static ca.pjer.logback.AwsLogsAppender.MAX_BATCH_LOG_EVENTS;
+
+import ca.pjer.logback.metrics.AppenderMetrics;
+
+import java.util.concurrent.TimeUnit;
+
+// When AsyncWorker flushes: after lingering for lingerMillis, or as soon as batchThreshold events are queued.
+// Fixed at maxFlushTimeMillis and maxBatchLogEvents, unless adaptive, then after each flush:
+// - when PutLogEvents calls get throttled, fail, or get slow, back off: linger longer and send bigger batches,
+// - when batches fill up before the linger time, grow them toward the PutLogEvents limit,
+// - when traffic is light, shrink both, so events do not wait for batches that will never fill up.
+// Only the worker thread calls onFlush, the getters can be read from any thread.
+class FlushController {
+
+    // weight of the last flush in the moving averages
+    private static final double ALPHA = 0.3;
+    // an average round trip above this many times the best one seen means PutLogEvents is getting slow
+    private static final double SLOW_ROUND_TRIP_FACTOR = 2;
+
+    private final boolean adaptive;
+    private final AppenderMetrics metrics;
+    private final int minBatchThreshold;
+    private final long minLingerMillis;
+    private final long maxLingerMillis;
+
+    private volatile int batchThreshold;
+    private volatile long lingerMillis;
+
+    // only touched by the worker thread
+    private double arrivalRate = -1;
+    private double roundTripMillis = -1;
+    private double bestRoundTripMillis = Double.MAX_VALUE;
+    private long putLogEvents;
+    private long putLogEventsLatencySum;
+    private long putLogEventsRetriedOrFailed;
+
+    FlushController(boolean adaptive, AppenderMetrics metrics, int maxBatchLogEvents, long minFlushTimeMillis,
+                    long maxFlushTimeMillis) {
+        this.adaptive = adaptive;
+        this.metrics = metrics;
+        this.minBatchThreshold = maxBatchLogEvents;
+        this.maxLingerMillis = Math.max(1, maxFlushTimeMillis);
+        this.minLingerMillis = minFlushTimeMillis > 0 ?
+                Math.min(minFlushTimeMillis, this.maxLingerMillis) :
+                Math.max(1, this.maxLingerMillis / 10);
+        this.batchThreshold = maxBatchLogEvents;
+        this.lingerMillis = maxFlushTimeMillis;
+        // do not count the calls made before this worker started
+        takeDeltas();
+    }
+
+    boolean isAdaptive() {
+        return adaptive;
+    }
+
+    int getBatchThreshold() {
+        return batchThreshold;
+    }
+
+    long getLingerMillis() {
+        return lingerMillis;
+    }
+
+    long getMinLingerMillis() {
+        return adaptive ? minLingerMillis : lingerMillis;
+    }
+
+    // After a flush that sent the given number of events, intervalNanos after the previous one.
+    // full tells whether it was triggered by batchThreshold, rather than by the linger time.
+    void onFlush(int events, long intervalNanos, boolean full) {
+        if (!adaptive || intervalNanos <= 0) {
+            return;
+        }
+        double rate = events * (double) TimeUnit.SECONDS.toNanos(1) / intervalNanos;
+        arrivalRate = arrivalRate < 0 ? rate : ALPHA * rate + (1 - ALPHA) * arrivalRate;
+        boolean congested = takeDeltas();
+
+        int batchThreshold = this.batchThreshold;
+        long lingerMillis = this.lingerMillis;
+        if (congested) {
+            batchThreshold = Math.min(MAX_BATCH_LOG_EVENTS, batchThreshold * 2);
+            lingerMillis = Math.min(maxLingerMillis, lingerMillis * 2);
+        } else if (full) {
+            batchThreshold = Math.min(MAX_BATCH_LOG_EVENTS, batchThreshold * 2);
+        } else {
+            // events expected while lingering at most
+            double expected = arrivalRate * maxLingerMillis / 1000;
+            if (expected < batchThreshold / 2.0) {
+                batchThreshold = Math.max(minBatchThreshold, batchThreshold / 2);
+            }
+            lingerMillis = expected < minBatchThreshold ?
+                    Math.max(minLingerMillis, lingerMillis / 2) :
+                    Math.min(maxLingerMillis, lingerMillis + Math.max(1, lingerMillis / 4));
+        }
+        this.batchThreshold = batchThreshold;
+        this.lingerMillis = lingerMillis;
+    }
+
+    // Whether PutLogEvents was throttled, failed or got slow since the last call
+    private boolean takeDeltas() {
+        long putLogEvents = metrics.putLogEventsLatencyMillis().getCount();
+        long putLogEventsLatencySum = metrics.putLogEventsLatencyMillis().getSum();
+        long putLogEventsRetriedOrFailed = metrics.getPutLogEventsRetried() + metrics.getPutLogEventsFailed();
+        long calls = putLogEvents - this.putLogEvents;
+        boolean congested = putLogEventsRetriedOrFailed > this.putLogEventsRetriedOrFailed;
+        if (calls > 0) {
+            double rtt = (double) (putLogEventsLatencySum - this.putLogEventsLatencySum) / calls;
+            roundTripMillis = roundTripMillis < 0 ? rtt : ALPHA * rtt + (1 - ALPHA) * roundTripMillis;
+            // slowly forget the best round trip, in case the network path changed for good
+            bestRoundTripMillis = Math.min(bestRoundTripMillis * 1.01, Math.max(1, rtt));
+            congested |= roundTripMillis > SLOW_ROUND_TRIP_FACTOR * bestRoundTripMillis;
+        }
+        this.putLogEvents = putLogEvents;
+        this.putLogEventsLatencySum = putLogEventsLatencySum;
+        this.putLogEventsRetriedOrFailed = putLogEventsRetriedOrFailed;
+        return congested;
+    }
+}
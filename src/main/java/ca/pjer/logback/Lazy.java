@@ -12,6 +12,11 @@ class Lazy<T> {
         return result == null ? maybeCompute(supplier) : result;
     }
 
+    // The value if it was already computed, null otherwise
+    T peek() {
+        return value;
+    }
+
     private synchronized T maybeCompute(Supplier<T> supplier) {
         if (value == null) {
             value = requireNonNull(supplier.get());
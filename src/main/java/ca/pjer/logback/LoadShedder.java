@@ -0,0 +1,122 @@
+package ca.pjer.logback;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+
+// Sheds events that are not important (< WARN) by sampling, instead of dropping all of them past a threshold.
+// The pressure goes from 0 (keep everything) to 1 (drop everything) as the queue fills up, and events are kept
+// with probability 1 - pressure. The first event of each logger in each summary interval is always kept,
+// so that quiet loggers stay visible next to the noisy ones.
+// What was dropped is counted by logger and level, and reported by takeSummary once per interval.
+class LoadShedder {
+
+    // above this many loggers, the others are counted together
+    static final int MAX_LOGGERS = 1000;
+    static final String OTHER_LOGGERS = "*";
+    // lines in a summary, past it the loggers and levels that dropped the least are counted together
+    static final int MAX_SUMMARY_LINES = 50;
+
+    private final long summaryIntervalNanos;
+    private final Map<String, Stats> stats = new ConcurrentHashMap<String, Stats>();
+    private final AtomicLong window = new AtomicLong();
+    private volatile long windowStartNanos;
+
+    LoadShedder(long summaryIntervalMillis) {
+        this.summaryIntervalNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, summaryIntervalMillis));
+        this.windowStartNanos = System.nanoTime();
+    }
+
+    // Whether the event should be dropped, under the given pressure
+    boolean shouldDrop(ILoggingEvent event, double pressure) {
+        if (pressure <= 0 || event.getLevel().isGreaterOrEqual(Level.WARN)) {
+            return false;
+        }
+        Stats stats = stats(event.getLoggerName());
+        long window = this.window.get();
+        if (stats.keptWindow.get() != window && stats.keptWindow.getAndSet(window) != window) {
+            return false;
+        }
+        if (pressure < 1 && ThreadLocalRandom.current().nextDouble() >= pressure) {
+            return false;
+        }
+        stats.dropped(event.getLevel());
+        return true;
+    }
+
+    private Stats stats(String loggerName) {
+        Stats stats = this.stats.get(loggerName);
+        if (stats == null) {
+            if (this.stats.size() >= MAX_LOGGERS) {
+                loggerName = OTHER_LOGGERS;
+            }
+            stats = this.stats.computeIfAbsent(loggerName, name -> new Stats());
+        }
+        return stats;
+    }
+
+    // Once per interval, what was dropped since the last summary, one line per logger and level, else null
+    List<String> takeSummary() {
+        long now = System.nanoTime();
+        if (now - windowStartNanos < summaryIntervalNanos) {
+            return null;
+        }
+        windowStartNanos = now;
+        window.incrementAndGet();
+        List<Map.Entry<String, Long>> counts = new ArrayList<Map.Entry<String, Long>>();
+        for (Map.Entry<String, Stats> entry : stats.entrySet()) {
+            Stats stats = entry.getValue();
+            boolean dropped = false;
+            for (int i = 0; i < Stats.LEVELS.length; i++) {
+                long count = stats.dropped[i].sumThenReset();
+                if (count > 0) {
+                    dropped = true;
+                    counts.add(new AbstractMap.SimpleImmutableEntry<String, Long>(
+                            "logger " + entry.getKey() + " at level " + Stats.LEVELS[i], count));
+                }
+            }
+            // forget the loggers that went quiet
+            if (!dropped && stats.keptWindow.get() != window.get() - 1) {
+                this.stats.remove(entry.getKey(), stats);
+            }
+        }
+        int lines = counts.size() > MAX_SUMMARY_LINES ? MAX_SUMMARY_LINES - 1 : counts.size();
+        if (lines < counts.size()) {
+            counts.sort(Map.Entry.<String, Long>comparingByValue().reversed());
+        }
+        List<String> summary = new ArrayList<String>();
+        for (int i = 0; i < lines; i++) {
+            summary.add("Dropped " + counts.get(i).getValue() + " events from " + counts.get(i).getKey());
+        }
+        if (lines < counts.size()) {
+            long others = 0;
+            for (int i = lines; i < counts.size(); i++) {
+                others += counts.get(i).getValue();
+            }
+            summary.add("Dropped " + others + " events from " + (counts.size() - lines) + " other loggers and levels");
+        }
+        return summary;
+    }
+
+    private static final class Stats {
+
+        // the levels that can be shed
+        static final Level[] LEVELS = {Level.TRACE, Level.DEBUG, Level.INFO};
+
+        final AtomicLong keptWindow = new AtomicLong(-1);
+        final LongAdder[] dropped = {new LongAdder(), new LongAdder(), new LongAdder()};
+
+        void dropped(Level level) {
+            dropped[level.isGreaterOrEqual(Level.INFO) ? 2 : level.isGreaterOrEqual(Level.DEBUG) ? 1 : 0].increment();
+        }
+    }
+}
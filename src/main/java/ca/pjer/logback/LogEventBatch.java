@@ -0,0 +1,85 @@
+package ca.pjer.logback;
+
+import ca.pjer.logback.metrics.AppenderMetrics;
+import software.amazon.awssdk.services.cloudwatchlogs.model.InputLogEvent;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// Accumulates encoded events up to the PutLogEvents limits
+class LogEventBatch {
+
+    // See http://docs.aws.amazon.com/AmazonCloudWatchLogs/latest/APIReference/API_PutLogEvents.html
+    static final int MAX_BATCH_SIZE = 1048576;
+
+    private final int maxEvents;
+    private final int maxSize;
+    private final Events events;
+    private int size;
+
+    LogEventBatch(int maxEvents, int maxSize) {
+        this.maxEvents = maxEvents;
+        this.maxSize = maxSize;
+        this.events = new Events(Math.min(maxEvents, 1024));
+    }
+
+    // Adds the event if it fits, a single event always fits in an empty batch
+    boolean add(QueuedLogEvent event) {
+        if (!events.isEmpty() && (events.size() >= maxEvents || size + event.getSize() > maxSize)) {
+            return false;
+        }
+        events.add(event.getInputLogEvent(), event.getAppendNanos());
+        size += event.getSize();
+        return true;
+    }
+
+    boolean isFull() {
+        return events.size() >= maxEvents || size >= maxSize;
+    }
+
+    boolean isEmpty() {
+        return events.isEmpty();
+    }
+
+    int remainingEvents() {
+        return maxEvents - events.size();
+    }
+
+    int getSize() {
+        return size;
+    }
+
+    List<InputLogEvent> getEvents() {
+        return events;
+    }
+
+    // The events sent, with when each one was appended, to time them until PutLogEvents acknowledges them
+    static final class Events extends ArrayList<InputLogEvent> {
+
+        private static final long serialVersionUID = 1L;
+
+        private long[] appendNanos;
+        private int appended;
+
+        Events(int capacity) {
+            super(capacity);
+            appendNanos = new long[Math.max(1, capacity)];
+        }
+
+        void add(InputLogEvent event, long appendNanos) {
+            if (appended == this.appendNanos.length) {
+                this.appendNanos = Arrays.copyOf(this.appendNanos, appended * 2);
+            }
+            this.appendNanos[appended++] = appendNanos;
+            add(event);
+        }
+
+        void recordAppendToAck(AppenderMetrics metrics) {
+            long now = System.nanoTime();
+            for (int i = 0; i < appended; i++) {
+                metrics.recordAppendToAck(now - appendNanos[i]);
+            }
+        }
+    }
+}
@@ -0,0 +1,181 @@
+package ca.pjer.logback;
+
+import software.amazon.awssdk.services.cloudwatchlogs.model.InputLogEvent;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+// Sends batches from other threads, so the worker can build the next batch while previous ones are in flight.
+// When the stub does not allow concurrent calls, batches are sent one at a time, in order, by a single thread.
+// When the stub is asynchronous, no thread is needed at all, only the number of batches in flight is bounded.
+class PipelinedSender {
+
+    private final Worker worker;
+    private final BiConsumer<Collection<InputLogEvent>, Throwable> failureHandler;
+    private final int maxInFlightBatches;
+    private final Semaphore inFlight;
+    private final ExecutorService executor;
+    // handed to send, but neither sent nor failed yet
+    private final AtomicLong inFlightEvents = new AtomicLong();
+    private final AtomicLong sentEvents = new AtomicLong();
+
+    PipelinedSender(final Worker worker, int maxInFlightBatches, boolean ordered, boolean async
+            , BiConsumer<Collection<InputLogEvent>, Throwable> failureHandler) {
+        this.worker = worker;
+        this.failureHandler = failureHandler;
+        this.maxInFlightBatches = maxInFlightBatches;
+        this.inFlight = new Semaphore(maxInFlightBatches);
+        if (async) {
+            this.executor = null;
+            return;
+        }
+        int threads = ordered ? 1 : maxInFlightBatches;
+        this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger(0);
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable);
+                thread.setDaemon(true);
+                thread.setName(worker.getName() + " Sender " + count.incrementAndGet());
+                return thread;
+            }
+        });
+    }
+
+    // Blocks while maxInFlightBatches batches are already waiting or being sent
+    void send(final Collection<InputLogEvent> batch) throws InterruptedException {
+        inFlight.acquire();
+        dispatch(batch);
+    }
+
+    // Same, but gives up after the timeout, returning false when the batch was not sent
+    boolean send(final Collection<InputLogEvent> batch, long timeoutNanos) throws InterruptedException {
+        if (!inFlight.tryAcquire(Math.max(0, timeoutNanos), TimeUnit.NANOSECONDS)) {
+            return false;
+        }
+        dispatch(batch);
+        return true;
+    }
+
+    private void dispatch(final Collection<InputLogEvent> batch) {
+        inFlightEvents.addAndGet(batch.size());
+        if (executor == null) {
+            CompletableFuture<Void> future;
+            try {
+                future = worker.getAwsLogsStub().logEventsAsync(batch);
+            } catch (RuntimeException e) {
+                inFlightEvents.addAndGet(-batch.size());
+                inFlight.release();
+                throw e;
+            }
+            future.whenComplete((ignored, t) -> {
+                inFlightEvents.addAndGet(-batch.size());
+                inFlight.release();
+                if (t == null) {
+                    sentEvents.addAndGet(batch.size());
+                    worker.acknowledged(batch);
+                } else {
+                    failureHandler.accept(batch, t instanceof CompletionException && t.getCause() != null ? t.getCause() : t);
+                }
+            });
+            return;
+        }
+        try {
+            executor.execute(new Send(batch));
+        } catch (RejectedExecutionException e) {
+            inFlightEvents.addAndGet(-batch.size());
+            inFlight.release();
+            throw e;
+        }
+    }
+
+    private class Send implements Runnable {
+
+        private final Collection<InputLogEvent> batch;
+
+        Send(Collection<InputLogEvent> batch) {
+            this.batch = batch;
+        }
+
+        @Override
+        public void run() {
+            try {
+                worker.getAwsLogsStub().logEvents(batch);
+                sentEvents.addAndGet(batch.size());
+                worker.acknowledged(batch);
+            } catch (Exception e) {
+                failureHandler.accept(batch, e);
+            } finally {
+                inFlightEvents.addAndGet(-batch.size());
+                inFlight.release();
+            }
+        }
+    }
+
+    // Events sent successfully so far
+    long getSentEvents() {
+        return sentEvents.get();
+    }
+
+    // Events being sent, neither sent nor failed yet
+    long getInFlightEvents() {
+        return inFlightEvents.get();
+    }
+
+    // Sends what is still in flight, then stops the sending threads
+    void stop() {
+        stop(Long.MAX_VALUE);
+    }
+
+    // Same, but gives up after the timeout, interrupting the sending threads.
+    // Returns the batches that were still waiting for a sending thread when giving up, they were not sent.
+    List<Collection<InputLogEvent>> stop(long timeoutNanos) {
+        long deadline = System.nanoTime() + Math.max(0, Math.min(timeoutNanos, Long.MAX_VALUE / 2));
+        boolean interrupted = false;
+        boolean done = false;
+        while (!done) {
+            long remaining = timeoutNanos == Long.MAX_VALUE ? Long.MAX_VALUE : deadline - System.nanoTime();
+            try {
+                if (executor != null) {
+                    executor.shutdown();
+                    done = executor.awaitTermination(Math.max(0, remaining), TimeUnit.NANOSECONDS);
+                } else if (inFlight.tryAcquire(maxInFlightBatches, Math.max(0, remaining), TimeUnit.NANOSECONDS)) {
+                    inFlight.release(maxInFlightBatches);
+                    done = true;
+                }
+                if (!done && remaining <= 0) {
+                    break;
+                }
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        List<Collection<InputLogEvent>> unsent = new ArrayList<Collection<InputLogEvent>>();
+        if (!done && executor != null) {
+            for (Runnable runnable : executor.shutdownNow()) {
+                Collection<InputLogEvent> batch = ((Send) runnable).batch;
+                inFlightEvents.addAndGet(-batch.size());
+                unsent.add(batch);
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        return unsent;
+    }
+}
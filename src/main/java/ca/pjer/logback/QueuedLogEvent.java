@@ -0,0 +1,65 @@
+package ca.pjer.logback;
+
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import software.amazon.awssdk.services.cloudwatchlogs.model.InputLogEvent;
+
+// What AsyncWorker keeps in its queue: either an already encoded event,
+// or a logging event whose encoding is deferred to the worker thread.
+// The size is computed once, when queued (estimated for deferred events).
+class QueuedLogEvent {
+
+    private final ILoggingEvent loggingEvent;
+    private final InputLogEvent inputLogEvent;
+    private final int size;
+    // System.nanoTime() when appended, and when queued, published to the worker by the queue
+    private long appendNanos;
+    private long queuedNanos;
+
+    private QueuedLogEvent(ILoggingEvent loggingEvent, InputLogEvent inputLogEvent, int size) {
+        this.loggingEvent = loggingEvent;
+        this.inputLogEvent = inputLogEvent;
+        this.size = size;
+    }
+
+    static QueuedLogEvent encoded(InputLogEvent inputLogEvent, int size) {
+        return new QueuedLogEvent(null, inputLogEvent, size);
+    }
+
+    static QueuedLogEvent deferred(ILoggingEvent loggingEvent, int estimatedSize) {
+        return new QueuedLogEvent(loggingEvent, null, estimatedSize);
+    }
+
+    int getSize() {
+        return size;
+    }
+
+    long getAppendNanos() {
+        return appendNanos;
+    }
+
+    void setAppendNanos(long appendNanos) {
+        this.appendNanos = appendNanos;
+    }
+
+    long getQueuedNanos() {
+        return queuedNanos;
+    }
+
+    void setQueuedNanos(long queuedNanos) {
+        this.queuedNanos = queuedNanos;
+    }
+
+    InputLogEvent getInputLogEvent() {
+        return inputLogEvent;
+    }
+
+    QueuedLogEvent encode(Worker worker) {
+        if (inputLogEvent != null) {
+            return this;
+        }
+        QueuedLogEvent encoded = worker.asQueuedLogEvent(loggingEvent);
+        encoded.appendNanos = appendNanos;
+        encoded.queuedNanos = queuedNanos;
+        return encoded;
+    }
+}
@@ -0,0 +1,51 @@
+package ca.pjer.logback;
+
+import java.util.concurrent.TimeUnit;
+
+// Token bucket: permitsPerSecond permits are refilled continuously, up to burst permits
+class RateLimiter {
+
+    private final double permitsPerSecond;
+    private final double permitsPerNano;
+    private final double burst;
+    private double permits;
+    private long lastRefillNanos;
+
+    RateLimiter(double permitsPerSecond, double burst) {
+        if (permitsPerSecond <= 0) {
+            throw new IllegalArgumentException("permitsPerSecond must be greater than 0");
+        }
+        this.permitsPerSecond = permitsPerSecond;
+        this.permitsPerNano = permitsPerSecond / TimeUnit.SECONDS.toNanos(1);
+        this.burst = Math.max(1, burst);
+        this.permits = this.burst;
+        this.lastRefillNanos = System.nanoTime();
+    }
+
+    // Another limiter with the same rate and burst, full
+    RateLimiter copy() {
+        return new RateLimiter(permitsPerSecond, burst);
+    }
+
+    // Blocks until a permit is available, an interrupt only cuts the wait short
+    void acquire() {
+        long waitNanos = reserveNanos();
+        if (waitNanos > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(waitNanos);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    // Takes a permit, possibly in advance, and returns how long to wait before using it, without blocking:
+    // what cannot wait on its thread schedules the use after that long instead
+    synchronized long reserveNanos() {
+        long now = System.nanoTime();
+        permits = Math.min(burst, permits + (now - lastRefillNanos) * permitsPerNano);
+        lastRefillNanos = now;
+        permits -= 1;
+        return permits >= 0 ? 0 : (long) Math.ceil(-permits / permitsPerNano);
+    }
+}
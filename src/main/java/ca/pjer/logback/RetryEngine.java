@@ -0,0 +1,134 @@
+package ca.pjer.logback;
+
+import ca.pjer.logback.metrics.AppenderMetrics;
+import ca.pjer.logback.metrics.AwsLogsMetrics;
+import software.amazon.awssdk.core.exception.SdkClientException;
+import software.amazon.awssdk.core.exception.SdkServiceException;
+import software.amazon.awssdk.services.cloudwatchlogs.model.ServiceUnavailableException;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+// Retries throttled, unavailable and IO failures with an exponential backoff and full jitter.
+// A budget bounds retries to a fraction of the requests, so a long outage does not multiply the load.
+class RetryEngine {
+
+    static final RetryEngine NONE = new RetryEngine(0, 0, 0, 0, new AppenderMetrics());
+
+    // Retries allowed in a row before the budget has to be earned back by requests
+    private static final double MAX_RETRY_TOKENS = 10;
+
+    private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable);
+        thread.setDaemon(true);
+        thread.setName("AwsLogsAppender Retry Scheduler");
+        return thread;
+    });
+
+    private final int maxRetries;
+    private final long baseDelayMillis;
+    private final long maxDelayMillis;
+    private final double retryTokensPerRequest;
+    private final AwsLogsMetrics metrics;
+    private double retryTokens;
+
+    RetryEngine(int maxRetries, long baseDelayMillis, long maxDelayMillis, int retryBudgetPercent
+            , AwsLogsMetrics metrics) {
+        this.maxRetries = maxRetries;
+        this.baseDelayMillis = baseDelayMillis;
+        this.maxDelayMillis = maxDelayMillis;
+        this.retryTokensPerRequest = retryBudgetPercent / 100.0;
+        this.metrics = metrics;
+        this.retryTokens = MAX_RETRY_TOKENS;
+    }
+
+    boolean isEnabled() {
+        return maxRetries > 0;
+    }
+
+    static boolean isRetryable(Throwable t) {
+        if (t instanceof ServiceUnavailableException) {
+            return true;
+        }
+        if (t instanceof SdkServiceException) {
+            SdkServiceException e = (SdkServiceException) t;
+            return e.isThrottlingException() || e.statusCode() >= 500;
+        }
+        if (t instanceof SdkClientException || t instanceof UncheckedIOException) {
+            for (Throwable cause = t.getCause(); cause != null; cause = cause.getCause()) {
+                if (cause instanceof IOException) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    synchronized void onRequest() {
+        retryTokens = Math.min(MAX_RETRY_TOKENS, retryTokens + retryTokensPerRequest);
+    }
+
+    // Whether the request that just failed with t, after the given number of retries, should be retried
+    boolean shouldRetry(Throwable t, int retries) {
+        if (retries >= maxRetries || !isRetryable(t)) {
+            return false;
+        }
+        synchronized (this) {
+            if (retryTokens < 1) {
+                return false;
+            }
+            retryTokens -= 1;
+        }
+        metrics.incrementPutLogRetried(t);
+        return true;
+    }
+
+    long backoffMillis(int retries) {
+        long ceiling = Math.min(maxDelayMillis, baseDelayMillis << Math.min(retries, 30));
+        return ceiling <= 0 ? 0 : ThreadLocalRandom.current().nextLong(ceiling + 1);
+    }
+
+    <T> T call(Supplier<T> request) {
+        onRequest();
+        for (int retries = 0; ; retries++) {
+            try {
+                return request.get();
+            } catch (RuntimeException e) {
+                if (!shouldRetry(e, retries)) {
+                    throw e;
+                }
+                try {
+                    Thread.sleep(backoffMillis(retries));
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw e;
+                }
+            }
+        }
+    }
+
+    void run(Runnable request) {
+        call(() -> {
+            request.run();
+            return null;
+        });
+    }
+
+    // Completes after the backoff delay, on the shared retry scheduler thread
+    CompletableFuture<Void> delay(int retries) {
+        return after(TimeUnit.MILLISECONDS.toNanos(backoffMillis(retries)));
+    }
+
+    // Completes after delayNanos, on the shared retry scheduler thread: what follows must not block it
+    static CompletableFuture<Void> after(long delayNanos) {
+        CompletableFuture<Void> future = new CompletableFuture<Void>();
+        scheduler.schedule(() -> future.complete(null), delayNanos, TimeUnit.NANOSECONDS);
+        return future;
+    }
+}
@@ -0,0 +1,161 @@
+package ca.pjer.logback;
+
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+// Bounded lock-free multi-producer/single-consumer ring buffer.
+// Each slot carries a sequence number telling whether it is free for the producer claiming position p
+// (sequence == p) or published for the consumer reading position p (sequence == p + 1),
+// see http://www.1024cores.net/home/lock-free-algorithms/queues/bounded-mpmc-queue
+// The slots are rounded up to a power of two, but it never holds more than the capacity it was created with.
+class RingBufferEventQueue<E> implements EventQueue<E> {
+
+    private final int capacity;
+    // the capacity asked for, at most capacity
+    private final int limit;
+    private final int mask;
+    private final AtomicReferenceArray<E> slots;
+    private final AtomicLongArray sequences;
+    private final AtomicLong tail;
+    private final WaitStrategy waitStrategy;
+
+    // only written by the single consumer
+    private volatile long head;
+
+    RingBufferEventQueue(int capacity, WaitStrategy waitStrategy) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be greater than 0");
+        }
+        this.limit = Math.min(capacity, 1 << 30);
+        this.capacity = roundUpToPowerOfTwo(limit);
+        this.mask = this.capacity - 1;
+        this.slots = new AtomicReferenceArray<E>(this.capacity);
+        this.sequences = new AtomicLongArray(this.capacity);
+        for (int i = 0; i < this.capacity; i++) {
+            sequences.set(i, i);
+        }
+        this.tail = new AtomicLong(0);
+        this.waitStrategy = waitStrategy;
+    }
+
+    private static int roundUpToPowerOfTwo(int value) {
+        int highestOneBit = Integer.highestOneBit(value);
+        return highestOneBit == value ? value : highestOneBit << 1;
+    }
+
+    int capacity() {
+        return capacity;
+    }
+
+    int limit() {
+        return limit;
+    }
+
+    @Override
+    public boolean offer(E e) {
+        if (e == null) {
+            throw new NullPointerException();
+        }
+        long position = tail.get();
+        for (; ; ) {
+            int index = (int) position & mask;
+            long difference = sequences.get(index) - position;
+            if (difference == 0) {
+                // head may be stale, then it only looks fuller than it is
+                if (position - head >= limit) {
+                    return false;
+                }
+                if (tail.compareAndSet(position, position + 1)) {
+                    slots.lazySet(index, e);
+                    // publish: the slot write is ordered before the sequence write
+                    sequences.lazySet(index, position + 1);
+                    return true;
+                }
+                position = tail.get();
+            } else if (difference < 0) {
+                // the consumer has not released this slot yet, we are full
+                return false;
+            } else {
+                // another producer claimed this position
+                position = tail.get();
+            }
+        }
+    }
+
+    @Override
+    public boolean offer(E e, long timeout, TimeUnit unit) throws InterruptedException {
+        if (offer(e)) {
+            return true;
+        }
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        for (int attempt = 0; ; attempt++) {
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            if (deadline - System.nanoTime() <= 0) {
+                return false;
+            }
+            waitStrategy.idle(attempt);
+            if (offer(e)) {
+                return true;
+            }
+        }
+    }
+
+    @Override
+    public E poll() {
+        long position = head;
+        int index = (int) position & mask;
+        if (sequences.get(index) != position + 1) {
+            return null;
+        }
+        E e = slots.get(index);
+        slots.lazySet(index, null);
+        sequences.lazySet(index, position + capacity);
+        head = position + 1;
+        return e;
+    }
+
+    @Override
+    public E peek() {
+        long position = head;
+        int index = (int) position & mask;
+        if (sequences.get(index) != position + 1) {
+            return null;
+        }
+        // from another thread, the slot may have been consumed and reused since
+        return slots.get(index);
+    }
+
+    @Override
+    public int drainTo(Collection<? super E> collection, int maxElements) {
+        int count = 0;
+        E e;
+        while (count < maxElements && (e = poll()) != null) {
+            collection.add(e);
+            count++;
+        }
+        return count;
+    }
+
+    @Override
+    public int size() {
+        long size = tail.get() - head;
+        return size <= 0 ? 0 : size >= limit ? limit : (int) size;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    @Override
+    public void clear() {
+        while (poll() != null) {
+            // discard
+        }
+    }
+}
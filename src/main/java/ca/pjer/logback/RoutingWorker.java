@@ -0,0 +1,407 @@
+package ca.pjer.logback;
+
+import ch.qos.logback.classic.PatternLayout;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+// Sends each event to the log stream (and log group) resolved from it with logStreamPattern (and logGroupPattern),
+// for example %X{tenant} to have one log stream per tenant, the configured names are used when they resolve to
+// nothing. Each log stream gets its own worker, created with the first event to it, of the same kind as without
+// routing. At most maxRoutes workers are kept, the least recently used one is stopped (so flushed) to make room,
+// and those not used for routeIdleTimeoutMillis are stopped by a timer. Either way, the route is only removed
+// where it is found, then stopped by a thread of its own, so logging threads never wait for a flush. When events
+// come back to its log stream in the meantime, the route is used again if its stop did not start yet, else they
+// wait for it to end, so the log stream keeps its order and its spill directory.
+// Each route spills to a directory of its own, <appender name>-routes/<key hash>, along with its key, so that
+// what is left there after a restart is sent again by the route created for it on start.
+// Stubs all share the same client, and remember the log groups and log streams already created.
+class RoutingWorker extends Worker {
+
+    // See http://docs.aws.amazon.com/AmazonCloudWatchLogs/latest/APIReference/API_CreateLogStream.html
+    private static final int MAX_NAME_LENGTH = 512;
+    private static final String ROUTE_FILE = ".route";
+
+    private final PatternLayout logGroupLayout;
+    private final PatternLayout logStreamLayout;
+    private final int maxRoutes;
+    private final long routeIdleTimeoutNanos;
+    private final Map<String, Route> routes = new ConcurrentHashMap<String, Route>();
+    // the routes removed but not stopped yet, guarded by routes
+    private final Map<String, Route> stoppingRoutes = new HashMap<String, Route>();
+    private final File spillDirectory;
+    private ScheduledFuture<?> idleCheck;
+    private volatile ThreadPoolExecutor stopper;
+
+    RoutingWorker(AwsLogsAppender awsLogsAppender) {
+        super(awsLogsAppender);
+        logGroupLayout = layout(awsLogsAppender, awsLogsAppender.getLogGroupPattern());
+        logStreamLayout = layout(awsLogsAppender, awsLogsAppender.getLogStreamPattern());
+        maxRoutes = awsLogsAppender.getMaxRoutes();
+        routeIdleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(awsLogsAppender.getRouteIdleTimeoutMillis());
+        spillDirectory = awsLogsAppender.getSpillDirectory() == null ? null :
+                new File(awsLogsAppender.getSpillDirectory(),
+                        String.valueOf(getName()).replaceAll("[^A-Za-z0-9._-]", "_") + "-routes");
+    }
+
+    private static PatternLayout layout(AwsLogsAppender awsLogsAppender, String pattern) {
+        if (pattern == null) {
+            return null;
+        }
+        PatternLayout layout = new PatternLayout();
+        layout.setContext(awsLogsAppender.getContext());
+        layout.setPattern(pattern);
+        // no stack trace of the exceptions in names
+        layout.setPostCompileProcessor(null);
+        return layout;
+    }
+
+    @Override
+    public synchronized void start() {
+        super.start();
+        if (logGroupLayout != null) {
+            logGroupLayout.start();
+        }
+        if (logStreamLayout != null) {
+            logStreamLayout.start();
+        }
+        AsyncWorker.setQueueGauges(getAwsLogsAppender().getMetrics(), this::workers);
+        final String name = getName() + " Route Stopper";
+        ThreadPoolExecutor stopper = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), runnable -> {
+            Thread thread = new Thread(runnable);
+            thread.setDaemon(true);
+            thread.setName(name);
+            return thread;
+        });
+        // no thread while nothing is evicted
+        stopper.allowCoreThreadTimeOut(true);
+        this.stopper = stopper;
+        if (routeIdleTimeoutNanos > 0) {
+            long periodMillis = Math.max(1, TimeUnit.NANOSECONDS.toMillis(routeIdleTimeoutNanos) / 2);
+            idleCheck = WorkerScheduler.shared().scheduleWithFixedDelay(this::stopIdleRoutes,
+                    periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+        }
+        resumeSpilledRoutes();
+    }
+
+    // Creates the routes with events spilled before a restart, they send them on their first flush
+    private void resumeSpilledRoutes() {
+        File[] directories = spillDirectory != null ? spillDirectory.listFiles(File::isDirectory) : null;
+        if (directories == null) {
+            return;
+        }
+        for (File directory : directories) {
+            if (!SpillBuffer.hasSegments(directory)) {
+                continue;
+            }
+            String key;
+            try {
+                key = new String(Files.readAllBytes(new File(directory, ROUTE_FILE).toPath()), StandardCharsets.UTF_8);
+            } catch (IOException e) {
+                key = "";
+            }
+            int separator = key.indexOf(':');
+            if (separator < 0 || !directory.getName().equals(spillName(key))) {
+                getAwsLogsAppender().addWarn("Events spilled to " + directory + " cannot be sent, their log stream is unknown");
+                continue;
+            }
+            route(key, key.substring(0, separator), key.substring(separator + 1));
+        }
+    }
+
+    // A readable prefix of the key, and its hash to tell apart the keys with the same prefix
+    static String spillName(String key) {
+        String prefix = key.replaceAll("[^A-Za-z0-9._-]", "_");
+        if (prefix.length() > 64) {
+            prefix = prefix.substring(0, 64);
+        }
+        byte[] hash;
+        try {
+            hash = MessageDigest.getInstance("SHA-256").digest(key.getBytes(StandardCharsets.UTF_8));
+        } catch (NoSuchAlgorithmException e) {
+            // every JVM has SHA-256
+            throw new IllegalStateException(e);
+        }
+        StringBuilder name = new StringBuilder(prefix).append('-');
+        for (int i = 0; i < 16; i++) {
+            name.append(String.format("%02x", hash[i]));
+        }
+        return name.toString();
+    }
+
+    @Override
+    public synchronized void stop() {
+        if (idleCheck != null) {
+            idleCheck.cancel(false);
+            idleCheck = null;
+        }
+        List<Route> stopped = new ArrayList<Route>();
+        synchronized (routes) {
+            for (Route route : routes.values()) {
+                route.stopping();
+                stopped.add(route);
+            }
+            routes.clear();
+        }
+        // the routes already evicted are still stopped, in the meantime
+        ThreadPoolExecutor stopper = this.stopper;
+        if (stopper != null) {
+            stopper.shutdown();
+        }
+        List<Worker> workers = new ArrayList<Worker>();
+        for (Route route : stopped) {
+            route.drain();
+            workers.add(route.worker);
+        }
+        stopAll(workers);
+        if (stopper != null) {
+            try {
+                stopper.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        getAwsLogsAppender().getMetrics().setQueueGauges(null, null, null);
+        if (logGroupLayout != null) {
+            logGroupLayout.stop();
+        }
+        if (logStreamLayout != null) {
+            logStreamLayout.stop();
+        }
+        super.stop();
+    }
+
+    @Override
+    public void append(ILoggingEvent event, long appendNanos) {
+        AWSLogsStub awsLogsStub = getAwsLogsAppender().getAwsLogsStub();
+        String logGroupName = resolve(logGroupLayout, event, awsLogsStub.getLogGroupName(), true);
+        String logStreamName = resolve(logStreamLayout, event, awsLogsStub.getLogStreamName(), false);
+        // log group names cannot contain ':'
+        String key = logGroupName + ":" + logStreamName;
+        while (true) {
+            Route route = route(key, logGroupName, logStreamName);
+            // a route being stopped is not appended to anymore, the event goes to a new one
+            if (route.append(event, appendNanos)) {
+                return;
+            }
+        }
+    }
+
+    // The name resolved by the layout, only with the characters CloudWatch accepts, else the configured one
+    static String resolve(PatternLayout layout, ILoggingEvent event, String configured, boolean logGroup) {
+        if (layout == null) {
+            return configured;
+        }
+        String name = layout.doLayout(event).trim();
+        if (name.isEmpty()) {
+            return configured;
+        }
+        if (name.length() > MAX_NAME_LENGTH) {
+            name = name.substring(0, MAX_NAME_LENGTH);
+        }
+        return logGroup ? name.replaceAll("[^A-Za-z0-9._/#-]", "_") : name.replaceAll("[:*]", "_");
+    }
+
+    private Route route(String key, String logGroupName, String logStreamName) {
+        while (true) {
+            Route route = routes.get(key);
+            if (route != null) {
+                return route;
+            }
+            Route previous;
+            synchronized (routes) {
+                route = routes.get(key);
+                if (route != null) {
+                    return route;
+                }
+                previous = stoppingRoutes.get(key);
+                if (previous == null || stopper.remove(previous.stopTask)) {
+                    if (routes.size() >= maxRoutes) {
+                        Route evicted = leastRecentlyUsed();
+                        routes.remove(evicted.key, evicted);
+                        stopLater(evicted);
+                    }
+                    if (previous != null) {
+                        // its stop did not start, it goes on
+                        stoppingRoutes.remove(key);
+                        previous.resume();
+                        route = previous;
+                    } else {
+                        route = newRoute(key, logGroupName, logStreamName);
+                    }
+                    routes.put(key, route);
+                    return route;
+                }
+            }
+            // its worker must be done with the log stream and the spill directory before the next one starts
+            previous.awaitStopped();
+        }
+    }
+
+    private Route newRoute(String key, String logGroupName, String logStreamName) {
+        File routeSpillDirectory = null;
+        if (spillDirectory != null) {
+            routeSpillDirectory = new File(spillDirectory, spillName(key));
+            File routeFile = new File(routeSpillDirectory, ROUTE_FILE);
+            if (!routeFile.exists()) {
+                try {
+                    Files.createDirectories(routeSpillDirectory.toPath());
+                    Files.write(routeFile.toPath(), key.getBytes(StandardCharsets.UTF_8));
+                } catch (IOException e) {
+                    getAwsLogsAppender().addWarn("Unable to write " + routeFile
+                            + ", events spilled there will not be sent after a restart", e);
+                }
+            }
+        }
+        AWSLogsStub awsLogsStub = getAwsLogsAppender().getAwsLogsStub().forLogStream(logGroupName, logStreamName);
+        Route route = new Route(key, ShardedWorker.newWorker(getAwsLogsAppender(), awsLogsStub,
+                getAwsLogsAppender().getName() + "-" + key, routeSpillDirectory));
+        awsLogsStub.start();
+        route.worker.start();
+        return route;
+    }
+
+    // Under the routes lock, once removed from the routes
+    private void stopLater(Route route) {
+        route.stopping();
+        route.stopTask = new FutureTask<Void>(() -> {
+            route.stop();
+            synchronized (routes) {
+                stoppingRoutes.remove(route.key, route);
+            }
+        }, null);
+        stoppingRoutes.put(route.key, route);
+        try {
+            stopper.execute(route.stopTask);
+        } catch (RejectedExecutionException e) {
+            // already stopped
+            route.stopTask.run();
+        }
+    }
+
+    private Route leastRecentlyUsed() {
+        Route leastRecentlyUsed = null;
+        for (Route route : routes.values()) {
+            if (leastRecentlyUsed == null || route.lastUsedNanos - leastRecentlyUsed.lastUsedNanos < 0) {
+                leastRecentlyUsed = route;
+            }
+        }
+        return leastRecentlyUsed;
+    }
+
+    // Runs on the shared scheduler, so also leaves the flushes to the stopper
+    private void stopIdleRoutes() {
+        long now = System.nanoTime();
+        synchronized (routes) {
+            for (Route route : routes.values()) {
+                if (now - route.lastUsedNanos >= routeIdleTimeoutNanos) {
+                    routes.remove(route.key, route);
+                    stopLater(route);
+                }
+            }
+        }
+    }
+
+    private List<Worker> workers() {
+        List<Worker> workers = new ArrayList<Worker>();
+        for (Route route : routes.values()) {
+            workers.add(route.worker);
+        }
+        return workers;
+    }
+
+    int getRouteCount() {
+        return routes.size();
+    }
+
+    private static final class Route {
+
+        private final String key;
+        private final Worker worker;
+        // appends counted before stopping is checked, so once stopping is set, those still counted are drained
+        // before the worker is stopped, and no event is appended to a stopped worker
+        private final AtomicInteger appending = new AtomicInteger();
+        private volatile boolean stopping;
+        private volatile long lastUsedNanos = System.nanoTime();
+        private volatile FutureTask<Void> stopTask;
+
+        Route(String key, Worker worker) {
+            this.key = key;
+            this.worker = worker;
+        }
+
+        boolean append(ILoggingEvent event, long appendNanos) {
+            appending.incrementAndGet();
+            try {
+                if (stopping) {
+                    return false;
+                }
+                lastUsedNanos = System.nanoTime();
+                worker.append(event, appendNanos);
+                return true;
+            } finally {
+                appending.decrementAndGet();
+            }
+        }
+
+        // Once removed from the routes
+        void stopping() {
+            stopping = true;
+        }
+
+        // Back in the routes before its stop started
+        void resume() {
+            stopping = false;
+        }
+
+        void awaitStopped() {
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    stopTask.get();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    break;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        // Once stopping, waits for the appends already past the check
+        void drain() {
+            while (appending.get() > 0) {
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+            }
+        }
+
+        void stop() {
+            drain();
+            worker.stop();
+            worker.getAwsLogsStub().stop();
+        }
+    }
+}
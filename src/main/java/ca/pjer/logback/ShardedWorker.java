@@ -0,0 +1,93 @@
+package ca.pjer.logback;
+
+import ch.qos.logback.classic.spi.ILoggingEvent;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Spreads the events over several workers, each one with its own log stream, queue and sender, so that one
+// appender is not bound by what a single log stream accepts. Events of the same thread (or with the same key)
+// always go to the same shard, so they keep their order in its log stream. With round robin, only the events
+// within each log stream are in order.
+// Log streams are created with the first PutLogEvents call of their shard, those never used are never created.
+class ShardedWorker extends Worker {
+
+    private static final int BY_THREAD = 0;
+    private static final int BY_KEY = 1;
+    private static final int BY_ROUND_ROBIN = 2;
+
+    private final Worker[] shards;
+    private final int shardBy;
+    private final String shardKey;
+    private final AtomicInteger next = new AtomicInteger();
+
+    ShardedWorker(AwsLogsAppender awsLogsAppender, Worker[] shards) {
+        super(awsLogsAppender);
+        this.shards = shards;
+        String shardBy = awsLogsAppender.getShardBy();
+        this.shardBy = AwsLogsAppender.SHARD_BY_ROUND_ROBIN.equalsIgnoreCase(shardBy) ? BY_ROUND_ROBIN :
+                AwsLogsAppender.SHARD_BY_KEY.equalsIgnoreCase(shardBy) ? BY_KEY :
+                BY_THREAD;
+        this.shardKey = awsLogsAppender.getShardKey();
+    }
+
+    // One shard per log stream, <logStreamName>-<shard>, with the same kind of worker as without sharding
+    static ShardedWorker create(AwsLogsAppender awsLogsAppender) {
+        AWSLogsStub awsLogsStub = awsLogsAppender.getAwsLogsStub();
+        Worker[] shards = new Worker[awsLogsAppender.getShards()];
+        for (int i = 0; i < shards.length; i++) {
+            AWSLogsStub shardStub = awsLogsStub.forLogStream(awsLogsStub.getLogGroupName()
+                    , awsLogsStub.getLogStreamName() + "-" + i);
+            shards[i] = newWorker(awsLogsAppender, shardStub, awsLogsAppender.getName() + "-" + i);
+        }
+        return new ShardedWorker(awsLogsAppender, shards);
+    }
+
+    // A worker for one of the log streams, of the same kind as without sharding
+    static Worker newWorker(AwsLogsAppender awsLogsAppender, AWSLogsStub awsLogsStub, String name) {
+        return newWorker(awsLogsAppender, awsLogsStub, name, null);
+    }
+
+    static Worker newWorker(AwsLogsAppender awsLogsAppender, AWSLogsStub awsLogsStub, String name,
+                            File spillDirectory) {
+        return awsLogsAppender.getMaxFlushTimeMillis() > 0 ?
+                new AsyncWorker(awsLogsAppender, awsLogsStub, name, spillDirectory) :
+                new SyncWorker(awsLogsAppender, awsLogsStub, name);
+    }
+
+    @Override
+    public synchronized void start() {
+        super.start();
+        for (Worker shard : shards) {
+            shard.getAwsLogsStub().start();
+            shard.start();
+        }
+        AsyncWorker.setQueueGauges(getAwsLogsAppender().getMetrics(), () -> Arrays.asList(shards));
+    }
+
+    @Override
+    public synchronized void stop() {
+        stopAll(Arrays.asList(shards));
+        getAwsLogsAppender().getMetrics().setQueueGauges(null, null, null);
+        super.stop();
+    }
+
+    @Override
+    public void append(ILoggingEvent event, long appendNanos) {
+        shards[shardOf(event)].append(event, appendNanos);
+    }
+
+    int shardOf(ILoggingEvent event) {
+        int hash;
+        if (shardBy == BY_ROUND_ROBIN) {
+            hash = next.getAndIncrement();
+        } else {
+            String key = shardBy == BY_KEY && shardKey != null ? event.getMDCPropertyMap().get(shardKey) : null;
+            // without a key, events stay with the shard of their thread
+            hash = key != null ? key.hashCode() : Long.hashCode(Thread.currentThread().getId());
+            hash ^= hash >>> 16;
+        }
+        return Math.floorMod(hash, shards.length);
+    }
+}
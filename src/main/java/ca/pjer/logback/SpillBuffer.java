@@ -0,0 +1,349 @@
+package ca.pjer.logback;
+
+import software.amazon.awssdk.services.cloudwatchlogs.model.InputLogEvent;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.List;
+import java.util.function.Consumer;
+
+// A local write-ahead buffer for events that could not be queued or sent.
+// Events are appended to size-capped, memory-mapped segment files, and read back in order, even after a restart.
+// Segment layout: a header (magic, end of the last complete record, read position), then records
+// (timestamp, message length, UTF-8 message).
+// The directory is locked while the buffer is open, so two appenders (or JVMs) never map the same segments.
+// Segments are deleted on close when everything was read, so a directory with segments may hold events.
+// Segments with an inconsistent header or records are renamed to .corrupt on open, and left aside.
+// A segment is only unmapped once its buffer is garbage collected: its file is deleted as soon as it is read,
+// but where mapped files cannot be deleted (Windows), that is left for the exit or the next open.
+class SpillBuffer {
+
+    private static final int MAGIC = 0x41574c53;
+    private static final int HEADER_SIZE = 12;
+    private static final int WRITE_END_OFFSET = 4;
+    private static final int READ_POSITION_OFFSET = 8;
+    private static final int RECORD_HEADER_SIZE = 12;
+    private static final String SEGMENT_SUFFIX = ".spill";
+    private static final String CORRUPT_SUFFIX = ".corrupt";
+    private static final String LOCK_FILE = ".lock";
+
+    private final File directory;
+    private final int segmentBytes;
+    private final long maxBytes;
+    private final Deque<Segment> segments = new ArrayDeque<Segment>();
+    private long nextSegmentId;
+    private int pendingReadEnd = -1;
+    private final FileChannel lockChannel;
+    private final FileLock lock;
+
+    SpillBuffer(File directory, int segmentBytes, long maxBytes) throws IOException {
+        this(directory, segmentBytes, maxBytes, warning -> {
+        });
+    }
+
+    // warnings are reported to warn, when segments cannot be read back
+    SpillBuffer(File directory, int segmentBytes, long maxBytes, Consumer<String> warn) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create spill directory " + directory);
+        }
+        lockChannel = new RandomAccessFile(new File(directory, LOCK_FILE), "rw").getChannel();
+        FileLock lock;
+        try {
+            lock = lockChannel.tryLock();
+        } catch (OverlappingFileLockException e) {
+            // already locked by this JVM
+            lock = null;
+        }
+        if (lock == null) {
+            lockChannel.close();
+            throw new IOException("Spill directory " + directory + " is already in use");
+        }
+        this.lock = lock;
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.maxBytes = maxBytes;
+        File[] files = directory.listFiles((dir, name) -> name.endsWith(SEGMENT_SUFFIX));
+        if (files != null) {
+            Arrays.sort(files);
+            for (File file : files) {
+                Segment segment;
+                try {
+                    segment = Segment.open(file);
+                } catch (IOException e) {
+                    File corrupt = new File(directory, file.getName() + CORRUPT_SUFFIX);
+                    warn.accept("Spill segment " + file + " cannot be read back (" + e.getMessage() + "), "
+                            + (file.renameTo(corrupt) ? "moved to " + corrupt : "skipped"));
+                    continue;
+                }
+                if (segment.isFullyRead()) {
+                    segment.delete();
+                    continue;
+                }
+                segments.addLast(segment);
+                nextSegmentId = Math.max(nextSegmentId, segment.id + 1);
+            }
+        }
+    }
+
+    // Whether events may be spilled in the directory, without opening it
+    static boolean hasSegments(File directory) {
+        String[] names = directory.list((dir, name) -> name.endsWith(SEGMENT_SUFFIX));
+        return names != null && names.length > 0;
+    }
+
+    synchronized boolean isEmpty() {
+        for (Segment segment : segments) {
+            if (!segment.isFullyRead()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Returns the number of events that did not fit, because maxBytes is reached
+    synchronized int append(Collection<InputLogEvent> events) {
+        int rejected = 0;
+        for (InputLogEvent event : events) {
+            byte[] message = event.message().getBytes(StandardCharsets.UTF_8);
+            int recordSize = RECORD_HEADER_SIZE + message.length;
+            Segment segment = segments.peekLast();
+            if (segment == null || !segment.fits(recordSize)) {
+                if (size() + segmentBytes > maxBytes) {
+                    rejected++;
+                    continue;
+                }
+                try {
+                    segment = Segment.create(new File(directory, String.format("%020d%s", nextSegmentId, SEGMENT_SUFFIX)),
+                            nextSegmentId, Math.max(segmentBytes, HEADER_SIZE + recordSize));
+                } catch (IOException e) {
+                    rejected++;
+                    continue;
+                }
+                nextSegmentId++;
+                segments.addLast(segment);
+            }
+            segment.write(event.timestamp(), message);
+        }
+        return rejected;
+    }
+
+    // Reads the oldest events, they stay in the buffer until commit() is called
+    synchronized List<InputLogEvent> peek(int maxEvents, int maxBatchSize, int eventSizePadding) {
+        List<InputLogEvent> events = new ArrayList<InputLogEvent>();
+        Segment segment = segments.peekFirst();
+        while (segment != null && segment.isFullyRead() && segment != segments.peekLast()) {
+            segments.removeFirst().delete();
+            segment = segments.peekFirst();
+        }
+        if (segment == null) {
+            return events;
+        }
+        int position = segment.readPosition();
+        int batchSize = 0;
+        while (events.size() < maxEvents && position < segment.writeEnd()) {
+            long timestamp = segment.buffer.getLong(position);
+            int length = segment.buffer.getInt(position + 8);
+            if (!events.isEmpty() && batchSize + length + eventSizePadding > maxBatchSize) {
+                break;
+            }
+            byte[] message = new byte[length];
+            ByteBuffer record = segment.buffer.duplicate();
+            record.position(position + RECORD_HEADER_SIZE);
+            record.get(message);
+            events.add(InputLogEvent.builder()
+                    .timestamp(timestamp)
+                    .message(new String(message, StandardCharsets.UTF_8))
+                    .build());
+            batchSize += length + eventSizePadding;
+            position += RECORD_HEADER_SIZE + length;
+        }
+        pendingReadEnd = position;
+        return events;
+    }
+
+    // Forgets the events returned by the last peek()
+    synchronized void commit() {
+        Segment segment = segments.peekFirst();
+        if (segment == null || pendingReadEnd < 0) {
+            return;
+        }
+        segment.buffer.putInt(READ_POSITION_OFFSET, pendingReadEnd);
+        pendingReadEnd = -1;
+        if (segment.isFullyRead() && segments.size() > 1) {
+            segments.removeFirst().delete();
+        }
+    }
+
+    // Forgets the events returned by the last peek(), except those given (some of them, in order): they are
+    // written back just before the new read position, so they are still read first.
+    // Returns the number of events that did not fit, because maxBytes is reached.
+    synchronized int commit(List<InputLogEvent> unsent) {
+        Segment segment = segments.peekFirst();
+        if (segment == null || pendingReadEnd < 0) {
+            return 0;
+        }
+        int readPosition = segment.readPosition();
+        int position = pendingReadEnd;
+        List<byte[]> messages = new ArrayList<byte[]>(unsent.size());
+        for (InputLogEvent event : unsent) {
+            byte[] message = event.message().getBytes(StandardCharsets.UTF_8);
+            messages.add(message);
+            position -= RECORD_HEADER_SIZE + message.length;
+        }
+        if (position < readPosition) {
+            // not what was read, it can only go at the end
+            commit();
+            return append(unsent);
+        }
+        // the events read are forgotten first, so a crash in between cannot leave half written records to read
+        segment.buffer.putInt(READ_POSITION_OFFSET, pendingReadEnd);
+        pendingReadEnd = -1;
+        for (int i = 0, recordPosition = position; i < messages.size(); i++) {
+            segment.put(recordPosition, unsent.get(i).timestamp(), messages.get(i));
+            recordPosition += RECORD_HEADER_SIZE + messages.get(i).length;
+        }
+        segment.buffer.putInt(READ_POSITION_OFFSET, position);
+        return 0;
+    }
+
+    synchronized void close() {
+        boolean empty = isEmpty();
+        for (Segment segment : segments) {
+            if (empty) {
+                segment.delete();
+            } else {
+                segment.buffer.force();
+            }
+        }
+        segments.clear();
+        try {
+            lock.release();
+            lockChannel.close();
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+
+    private long size() {
+        long size = 0;
+        for (Segment segment : segments) {
+            size += segment.buffer.capacity();
+        }
+        return size;
+    }
+
+    private static class Segment {
+
+        private final File file;
+        private final long id;
+        private MappedByteBuffer buffer;
+
+        private Segment(File file, long id, MappedByteBuffer buffer) {
+            this.file = file;
+            this.id = id;
+            this.buffer = buffer;
+        }
+
+        static Segment create(File file, long id, int size) throws IOException {
+            Segment segment = new Segment(file, id, map(file, size));
+            segment.buffer.putInt(WRITE_END_OFFSET, HEADER_SIZE);
+            segment.buffer.putInt(READ_POSITION_OFFSET, HEADER_SIZE);
+            segment.buffer.putInt(0, MAGIC);
+            return segment;
+        }
+
+        // Fails when the file is not a segment, or its header or records are not consistent
+        static Segment open(File file) throws IOException {
+            long id;
+            try {
+                id = Long.parseLong(file.getName().substring(0, file.getName().length() - SEGMENT_SUFFIX.length()));
+            } catch (NumberFormatException e) {
+                throw new IOException("not a segment name");
+            }
+            long length = file.length();
+            if (length < HEADER_SIZE || length > Integer.MAX_VALUE) {
+                throw new IOException("invalid length " + length);
+            }
+            Segment segment = new Segment(file, id, map(file, (int) length));
+            if (segment.buffer.getInt(0) != MAGIC) {
+                segment.buffer = null;
+                throw new IOException("invalid magic number");
+            }
+            int readPosition = segment.readPosition();
+            int writeEnd = segment.writeEnd();
+            if (readPosition < HEADER_SIZE || readPosition > writeEnd || writeEnd > length) {
+                segment.buffer = null;
+                throw new IOException("invalid read position " + readPosition + " or write end " + writeEnd);
+            }
+            // the records left to read must end exactly at the write end
+            int position = readPosition;
+            while (position < writeEnd) {
+                int recordLength = position + RECORD_HEADER_SIZE <= writeEnd ? segment.buffer.getInt(position + 8) : -1;
+                if (recordLength < 0 || recordLength > writeEnd - position - RECORD_HEADER_SIZE) {
+                    segment.buffer = null;
+                    throw new IOException("invalid record at " + position);
+                }
+                position += RECORD_HEADER_SIZE + recordLength;
+            }
+            return segment;
+        }
+
+        private static MappedByteBuffer map(File file, int size) throws IOException {
+            try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+                 FileChannel channel = randomAccessFile.getChannel()) {
+                return channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            }
+        }
+
+        int writeEnd() {
+            return buffer.getInt(WRITE_END_OFFSET);
+        }
+
+        int readPosition() {
+            return buffer.getInt(READ_POSITION_OFFSET);
+        }
+
+        boolean isFullyRead() {
+            return readPosition() >= writeEnd();
+        }
+
+        boolean fits(int recordSize) {
+            return writeEnd() + recordSize <= buffer.capacity();
+        }
+
+        void write(long timestamp, byte[] message) {
+            int position = writeEnd();
+            put(position, timestamp, message);
+            // only make the record visible once complete
+            buffer.putInt(WRITE_END_OFFSET, position + RECORD_HEADER_SIZE + message.length);
+        }
+
+        void put(int position, long timestamp, byte[] message) {
+            buffer.putLong(position, timestamp);
+            buffer.putInt(position + 8, message.length);
+            ByteBuffer record = buffer.duplicate();
+            record.position(position + RECORD_HEADER_SIZE);
+            record.put(message);
+        }
+
+        void delete() {
+            // no way to unmap it before Java 9, at least let it be garbage collected
+            buffer = null;
+            if (!file.delete()) {
+                file.deleteOnExit();
+            }
+        }
+    }
+}
@@ -1,17 +1,122 @@
 package ca.pjer.logback;
 
+import static ca.pjer.logback.AwsLogsAppender.MAX_BATCH_LOG_EVENTS;
+import static ca.pjer.logback.LogEventBatch.MAX_BATCH_SIZE;
+
 import ch.qos.logback.classic.spi.ILoggingEvent;
 
+import java.util.ArrayDeque;
 import java.util.Collections;
+import java.util.Deque;
 
 class SyncWorker extends Worker {
 
+    private final boolean groupCommit;
+
+    // group commit state, guarded by groups
+    private final Deque<Group> groups = new ArrayDeque<Group>();
+    private boolean committing;
+
     SyncWorker(AwsLogsAppender awsLogsAppender) {
-        super(awsLogsAppender);
+        this(awsLogsAppender, null, null);
+    }
+
+    SyncWorker(AwsLogsAppender awsLogsAppender, AWSLogsStub awsLogsStub, String name) {
+        super(awsLogsAppender, awsLogsStub, name);
+        groupCommit = awsLogsAppender.getGroupCommit();
     }
 
     @Override
-    public synchronized void append(ILoggingEvent event) {
-        getAwsLogsAppender().getAwsLogsStub().logEvents(Collections.singleton(asInputLogEvent(event)));
+    public void append(ILoggingEvent event, long appendNanos) {
+        long start = System.nanoTime();
+        try {
+            if (groupCommit) {
+                QueuedLogEvent logEvent = asQueuedLogEvent(event);
+                logEvent.setAppendNanos(appendNanos);
+                appendToGroup(logEvent);
+                return;
+            }
+            AWSLogsStub awsLogsStub = getAwsLogsStub();
+            if (awsLogsStub.allowsConcurrentCalls()) {
+                awsLogsStub.logEvents(Collections.singleton(asInputLogEvent(event)));
+            } else {
+                synchronized (this) {
+                    awsLogsStub.logEvents(Collections.singleton(asInputLogEvent(event)));
+                }
+            }
+            getAwsLogsAppender().getMetrics().recordAppendToAck(System.nanoTime() - appendNanos);
+        } finally {
+            // in synchronous mode, the logging thread waits for the PutLogEvents round trip too
+            getAwsLogsAppender().getMetrics().recordAppendDuration(System.nanoTime() - start);
+        }
+    }
+
+    // Events appended while a request is in flight are grouped, then the first of their threads to get its turn
+    // sends the whole group for the others (oldest group first), and each thread returns once its own group is sent.
+    private void appendToGroup(QueuedLogEvent logEvent) {
+        Group group;
+        synchronized (groups) {
+            // groups are removed from the deque when sent, so the last one is still open
+            group = groups.peekLast();
+            if (group == null || !group.batch.add(logEvent)) {
+                group = new Group();
+                group.batch.add(logEvent);
+                groups.addLast(group);
+            }
+        }
+        boolean interrupted = false;
+        try {
+            while (true) {
+                Group leading;
+                synchronized (groups) {
+                    while (committing && !group.done) {
+                        try {
+                            groups.wait();
+                        } catch (InterruptedException e) {
+                            interrupted = true;
+                        }
+                    }
+                    if (group.done) {
+                        break;
+                    }
+                    committing = true;
+                    leading = groups.pollFirst();
+                }
+                // whatever is thrown, even an Error, the waiting threads must be released
+                Throwable failure = null;
+                try {
+                    getAwsLogsStub().logEvents(leading.batch.getEvents());
+                    acknowledged(leading.batch.getEvents());
+                } catch (Throwable t) {
+                    failure = t;
+                }
+                synchronized (groups) {
+                    leading.failure = failure;
+                    leading.done = true;
+                    committing = false;
+                    groups.notifyAll();
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (group.failure instanceof RuntimeException) {
+            throw (RuntimeException) group.failure;
+        }
+        if (group.failure instanceof Error) {
+            throw (Error) group.failure;
+        }
+        if (group.failure != null) {
+            throw new IllegalStateException(group.failure);
+        }
+    }
+
+    private static class Group {
+
+        private final LogEventBatch batch = new LogEventBatch(MAX_BATCH_LOG_EVENTS, MAX_BATCH_SIZE);
+        private boolean done;
+        private Throwable failure;
     }
 }
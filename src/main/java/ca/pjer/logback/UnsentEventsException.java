@@ -0,0 +1,24 @@
+package ca.pjer.logback;
+
+import software.amazon.awssdk.services.cloudwatchlogs.model.InputLogEvent;
+
+import java.util.List;
+
+// Thrown when a batch failed after some of its events were already sent (or dropped, see BatchPreparer),
+// with the events that were not, so that only those are spilled. The cause is the PutLogEvents failure.
+class UnsentEventsException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    // not serialized, only caught in this JVM
+    private final transient List<InputLogEvent> unsentEvents;
+
+    UnsentEventsException(List<InputLogEvent> unsentEvents, Throwable cause) {
+        super(cause.getMessage(), cause);
+        this.unsentEvents = unsentEvents;
+    }
+
+    List<InputLogEvent> getUnsentEvents() {
+        return unsentEvents;
+    }
+}
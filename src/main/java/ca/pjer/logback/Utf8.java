@@ -0,0 +1,59 @@
+package ca.pjer.logback;
+
+// UTF-8 lengths computed by scanning chars, without encoding (and allocating) anything.
+// Unpaired surrogates count as one byte, like the '?' String.getBytes(UTF_8) replaces them with.
+final class Utf8 {
+
+    private Utf8() {
+    }
+
+    static int encodedLength(CharSequence text) {
+        int length = text.length();
+        int i = 0;
+        // ASCII fast path
+        while (i < length && text.charAt(i) < 0x80) {
+            i++;
+        }
+        long encodedLength = i;
+        while (i < length) {
+            int charLength = charLength(text, i, length);
+            encodedLength += charLength;
+            i += charLength == 4 ? 2 : 1;
+        }
+        return (int) Math.min(encodedLength, Integer.MAX_VALUE);
+    }
+
+    // The number of chars of the longest prefix of text that encodes in at most maxLength bytes,
+    // never splitting a surrogate pair
+    static int prefixLength(CharSequence text, int maxLength) {
+        int length = text.length();
+        int i = 0;
+        int encodedLength = 0;
+        while (i < length) {
+            int charLength = charLength(text, i, length);
+            if (encodedLength + charLength > maxLength) {
+                break;
+            }
+            encodedLength += charLength;
+            i += charLength == 4 ? 2 : 1;
+        }
+        return i;
+    }
+
+    private static int charLength(CharSequence text, int i, int length) {
+        char c = text.charAt(i);
+        if (c < 0x80) {
+            return 1;
+        }
+        if (c < 0x800) {
+            return 2;
+        }
+        if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(text.charAt(i + 1))) {
+            return 4;
+        }
+        if (Character.isSurrogate(c)) {
+            return 1;
+        }
+        return 3;
+    }
+}
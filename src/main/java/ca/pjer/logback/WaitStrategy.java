@@ -0,0 +1,40 @@
+package ca.pjer.logback;
+
+import java.util.Locale;
+import java.util.concurrent.locks.LockSupport;
+
+enum WaitStrategy {
+
+    SPIN {
+        @Override
+        void idle(int attempt) {
+        }
+    },
+
+    YIELD {
+        @Override
+        void idle(int attempt) {
+            Thread.yield();
+        }
+    },
+
+    PARK {
+        @Override
+        void idle(int attempt) {
+            LockSupport.parkNanos(Math.min(MAX_PARK_NANOS, MIN_PARK_NANOS << Math.min(attempt, 16)));
+        }
+    };
+
+    private static final long MIN_PARK_NANOS = 1000L;
+    private static final long MAX_PARK_NANOS = 1000000L;
+
+    abstract void idle(int attempt);
+
+    static WaitStrategy of(String name) {
+        try {
+            return valueOf(name.trim().toUpperCase(Locale.ROOT));
+        } catch (RuntimeException e) {
+            throw new IllegalArgumentException("waitStrategy must be one of spin, yield or park");
+        }
+    }
+}
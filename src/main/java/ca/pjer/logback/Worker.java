@@ -1,71 +1,177 @@
 package ca.pjer.logback;
 
 import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.IThrowableProxy;
 import software.amazon.awssdk.services.cloudwatchlogs.model.InputLogEvent;
 
-import java.nio.charset.Charset;
-
+import java.io.File;
+import java.util.Collection;
+import java.util.List;
 
 abstract class Worker {
 
     private AwsLogsAppender awsLogsAppender;
+    // set for the shards of a ShardedWorker, each one sending to its own log stream
+    private final AWSLogsStub awsLogsStub;
+    private final String name;
+    // set for the routes of a RoutingWorker, whose names are not enough to tell them apart
+    private final File spillDirectory;
 
     Worker(AwsLogsAppender awsLogsAppender) {
+        this(awsLogsAppender, null, null);
+    }
+
+    Worker(AwsLogsAppender awsLogsAppender, AWSLogsStub awsLogsStub, String name) {
+        this(awsLogsAppender, awsLogsStub, name, null);
+    }
+
+    Worker(AwsLogsAppender awsLogsAppender, AWSLogsStub awsLogsStub, String name, File spillDirectory) {
         this.awsLogsAppender = awsLogsAppender;
+        this.awsLogsStub = awsLogsStub;
+        this.name = name;
+        this.spillDirectory = spillDirectory;
     }
 
     AwsLogsAppender getAwsLogsAppender() {
         return awsLogsAppender;
     }
 
+    AWSLogsStub getAwsLogsStub() {
+        return awsLogsStub != null ? awsLogsStub : awsLogsAppender.getAwsLogsStub();
+    }
+
+    // Used to name threads and spill directories
+    String getName() {
+        return name != null ? name : awsLogsAppender.getName();
+    }
+
+    // Where events are spilled, under spillDirectory, null when they are not
+    File getSpillDirectory() {
+        if (awsLogsAppender.getSpillDirectory() == null) {
+            return null;
+        }
+        return spillDirectory != null ? spillDirectory : new File(awsLogsAppender.getSpillDirectory(),
+                String.valueOf(getName()).replaceAll("[^A-Za-z0-9._-]", "_"));
+    }
+
+    // Whether this worker sends to a log stream of its own, as part of a ShardedWorker or a RoutingWorker
+    boolean hasOwnStub() {
+        return awsLogsStub != null;
+    }
+
+    // Each worker can take up to shutdownTimeoutMillis to send what is left, they do it at the same time.
+    // Then the stubs of their own are stopped too.
+    static void stopAll(List<Worker> workers) {
+        Thread[] stopping = new Thread[workers.size()];
+        for (int i = 1; i < stopping.length; i++) {
+            stopping[i] = new Thread(workers.get(i)::stop, workers.get(i).getName() + " Stop");
+            stopping[i].start();
+        }
+        if (!workers.isEmpty()) {
+            workers.get(0).stop();
+        }
+        boolean interrupted = false;
+        for (int i = 1; i < stopping.length; i++) {
+            while (true) {
+                try {
+                    stopping[i].join();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        for (Worker worker : workers) {
+            if (worker.hasOwnStub()) {
+                worker.getAwsLogsStub().stop();
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
     public synchronized void start() {
     }
 
     public synchronized void stop() {
     }
 
-    public abstract void append(ILoggingEvent event);
+    public void append(ILoggingEvent event) {
+        append(event, System.nanoTime());
+    }
+
+    // appendNanos: System.nanoTime() when the event entered the appender
+    public abstract void append(ILoggingEvent event, long appendNanos);
+
+    // Once PutLogEvents succeeded for a batch built by a LogEventBatch
+    void acknowledged(Collection<InputLogEvent> batch) {
+        if (batch instanceof LogEventBatch.Events) {
+            ((LogEventBatch.Events) batch).recordAppendToAck(awsLogsAppender.getMetrics());
+        }
+    }
 
     // See https://github.com/pierredavidbelanger/logback-awslogs-appender/issues/6
     private static final int MAX_EVENT_SIZE = 262144;
 
     InputLogEvent asInputLogEvent(ILoggingEvent event) {
+        return asQueuedLogEvent(event).getInputLogEvent();
+    }
+
+    // Encodes the event, and keeps its size along so it never has to be computed again
+    QueuedLogEvent asQueuedLogEvent(ILoggingEvent event) {
         String message = awsLogsAppender.encode(event);
 
-        if (eventSize(message) > MAX_EVENT_SIZE) {
+        int size = eventSize(message);
+        if (size > MAX_EVENT_SIZE) {
             awsLogsAppender
                     .addWarn(String.format("Log message exceeded Cloudwatch Log's limit of %d bytes", MAX_EVENT_SIZE));
             message = trimMessage(message, MAX_EVENT_SIZE);
+            size = eventSize(message);
         }
 
-        return InputLogEvent.builder()
+        return QueuedLogEvent.encoded(InputLogEvent.builder()
                 .timestamp(event.getTimeStamp())
                 .message(message)
-                .build();
+                .build(), size);
     }
 
     // See http://docs.aws.amazon.com/AmazonCloudWatchLogs/latest/APIReference/API_PutLogEvents.html
-    private static final int EVENT_SIZE_PADDING = 26;
-    private static final Charset EVENT_SIZE_CHARSET = Charset.forName("UTF-8");
+    static final int EVENT_SIZE_PADDING = 26;
 
     static final int eventSize(InputLogEvent event) {
         return eventSize(event.message());
     }
 
     static final int eventSize(String message) {
-        return message.getBytes(EVENT_SIZE_CHARSET).length + EVENT_SIZE_PADDING;
+        return Utf8.encodedLength(message) + EVENT_SIZE_PADDING;
     }
 
-    private static final String ELLIPSIS = "...";
+    // Rough size of one formatted stack trace line
+    private static final int STACK_TRACE_ELEMENT_SIZE_ESTIMATE = 80;
+
+    // The size of a not yet encoded event, from its formatted message and throwable (the layout is not applied)
+    static final int estimateEventSize(ILoggingEvent event) {
+        long size = eventSize(event.getFormattedMessage());
+        for (IThrowableProxy throwable = event.getThrowableProxy(); throwable != null; throwable = throwable.getCause()) {
+            size += throwable.getClassName().length() + STACK_TRACE_ELEMENT_SIZE_ESTIMATE;
+            if (throwable.getMessage() != null) {
+                size += throwable.getMessage().length();
+            }
+            size += (long) throwable.getStackTraceElementProxyArray().length * STACK_TRACE_ELEMENT_SIZE_ESTIMATE;
+            if (size >= MAX_EVENT_SIZE) {
+                return MAX_EVENT_SIZE;
+            }
+        }
+        return (int) Math.min(size, MAX_EVENT_SIZE);
+    }
 
-    private static final String trimMessage(String message, int eventSize) {
-        int trimmedMessageSize = eventSize - EVENT_SIZE_PADDING - ELLIPSIS.getBytes(EVENT_SIZE_CHARSET).length;
-        byte[] messageBytes = message.getBytes(EVENT_SIZE_CHARSET);
+    private static final String ELLIPSIS = "...";
 
-        String unsafeTrimmed = new String(messageBytes, 0, trimmedMessageSize + 1, EVENT_SIZE_CHARSET);
-        // The last character might be a chopped UTF-8 character
-        String trimmed = unsafeTrimmed.substring(0, unsafeTrimmed.length() - 1);
+    static final String trimMessage(String message, int eventSize) {
+        int trimmedMessageSize = eventSize - EVENT_SIZE_PADDING - Utf8.encodedLength(ELLIPSIS);
 
-        return trimmed + ELLIPSIS;
+        // Never chop a multi-byte character
+        return message.substring(0, Utf8.prefixLength(message, trimmedMessageSize)) + ELLIPSIS;
     }
 }
@@ -0,0 +1,95 @@
+package ca.pjer.logback;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Where AsyncWorker flushes run: a dedicated platform thread per appender, a dedicated virtual thread
+// per appender (JDK 21+), or threads shared by all the appenders of the JVM.
+// When shared, a small pool only runs the timers, which never block, and the flushes, which can wait for
+// PutLogEvents, retries or the rate limit, run on a pool growing with the number of appenders flushing at once,
+// so an appender stuck sending does not hold up the others. That pool is bounded by MAX_FLUSHES threads: past it,
+// a flush is rejected and left for the next tick.
+final class WorkerScheduler {
+
+    static final String THREAD = "thread";
+    static final String VIRTUAL = "virtual";
+    static final String SHARED = "shared";
+    static final int MAX_FLUSHES = Math.max(8, 4 * Runtime.getRuntime().availableProcessors());
+
+    private static volatile ScheduledExecutorService shared;
+    private static volatile ExecutorService flushes;
+
+    private WorkerScheduler() {
+    }
+
+    static void validate(String workerScheduler) {
+        if (!THREAD.equalsIgnoreCase(workerScheduler) && !VIRTUAL.equalsIgnoreCase(workerScheduler)
+                && !SHARED.equalsIgnoreCase(workerScheduler)) {
+            throw new IllegalArgumentException("workerScheduler must be one of thread, virtual or shared");
+        }
+    }
+
+    // Created on first use, its daemon threads live as long as the JVM
+    static ScheduledExecutorService shared() {
+        ScheduledExecutorService result = shared;
+        if (result == null) {
+            synchronized (WorkerScheduler.class) {
+                result = shared;
+                if (result == null) {
+                    final AtomicInteger threadNumber = new AtomicInteger();
+                    int threads = Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors()));
+                    ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(threads, runnable -> {
+                        Thread thread = new Thread(runnable);
+                        thread.setDaemon(true);
+                        thread.setName("AwsLogsAppender Shared Worker " + threadNumber.incrementAndGet());
+                        return thread;
+                    });
+                    executor.setRemoveOnCancelPolicy(true);
+                    shared = result = executor;
+                }
+            }
+        }
+        return result;
+    }
+
+    // Created on first use, its daemon threads end after a minute without a flush
+    static ExecutorService flushes() {
+        ExecutorService result = flushes;
+        if (result == null) {
+            synchronized (WorkerScheduler.class) {
+                result = flushes;
+                if (result == null) {
+                    final AtomicInteger threadNumber = new AtomicInteger();
+                    flushes = result = new ThreadPoolExecutor(0, MAX_FLUSHES, 60, TimeUnit.SECONDS,
+                            new SynchronousQueue<Runnable>(), runnable -> {
+                        Thread thread = new Thread(runnable);
+                        thread.setDaemon(true);
+                        thread.setName("AwsLogsAppender Shared Flusher " + threadNumber.incrementAndGet());
+                        return thread;
+                    });
+                }
+            }
+        }
+        return result;
+    }
+
+    // Uses Thread.ofVirtual() through reflection, so this still compiles and runs on Java 8.
+    // Returns null when virtual threads are not available.
+    static Thread newVirtualThread(String name, Runnable runnable) {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            builder = builderClass.getMethod("name", String.class).invoke(builder, name);
+            Method unstarted = builderClass.getMethod("unstarted", Runnable.class);
+            return (Thread) unstarted.invoke(builder, runnable);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+}
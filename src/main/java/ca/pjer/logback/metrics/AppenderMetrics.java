@@ -0,0 +1,305 @@
+package ca.pjer.logback.metrics;
+
+import ch.qos.logback.classic.Level;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+// The metrics of one appender. Every increment is also forwarded to the global AwsLogsMetricsHolder.
+public class AppenderMetrics implements AwsLogsMetrics, AwsLogsAppenderMXBean {
+
+    // the level of the events lost as part of a batch, once encoded
+    private static final String UNKNOWN_LEVEL = "UNKNOWN";
+
+    private final LongAdder logEvents = new LongAdder();
+    private final LongAdder putLogEvents = new LongAdder();
+    private final LongAdder putLogEventsFailed = new LongAdder();
+    private final LongAdder putLogEventsRetried = new LongAdder();
+    private final LongAdder flushFailed = new LongAdder();
+    private final LongAdder lostEvents = new LongAdder();
+    private final Map<String, LongAdder> lostEventsByLevel = new ConcurrentHashMap<String, LongAdder>();
+    private final Histogram putLogEventsLatencyMillis = new Histogram();
+    private final Histogram batchEvents = new Histogram();
+    private final Histogram batchBytes = new Histogram();
+    private final Histogram flushDurationMillis = new Histogram();
+    private final Histogram appendDurationMicros = new Histogram();
+    private final Histogram queueWaitMillis = new Histogram();
+    private final Histogram appendToAckMillis = new Histogram();
+    private final Map<String, LongAdder> circuitBreakerTransitions = new ConcurrentHashMap<String, LongAdder>();
+    private volatile String circuitBreakerState = "DISABLED";
+
+    private volatile LongSupplier queueDepth;
+    private volatile LongSupplier queuedBytes;
+    private volatile LongSupplier oldestQueuedEventAgeMillis;
+    private ObjectName objectName;
+
+    private static AwsLogsMetrics global() {
+        return AwsLogsMetricsHolder.get();
+    }
+
+    @Override
+    public void incrementLostCount() {
+        incrementLostCount(null, 1);
+    }
+
+    @Override
+    public void incrementLostCount(int count) {
+        incrementLostCount(null, count);
+    }
+
+    public void incrementLostCount(Level level, int count) {
+        lostEvents.add(count);
+        lostEventsByLevel.computeIfAbsent(level == null ? UNKNOWN_LEVEL : level.toString(), key -> new LongAdder())
+                .add(count);
+        global().incrementLostCount(count);
+    }
+
+    @Override
+    @Deprecated
+    public void incrementBatchRequeueFailed() {
+        global().incrementBatchRequeueFailed();
+    }
+
+    @Override
+    public void incrementFlushFailed(Throwable exception) {
+        flushFailed.increment();
+        global().incrementFlushFailed(exception);
+    }
+
+    @Override
+    public void incrementPutLogFailed(Throwable exception) {
+        putLogEventsFailed.increment();
+        global().incrementPutLogFailed(exception);
+    }
+
+    @Override
+    public void incrementBatch(int batchSize) {
+        global().incrementBatch(batchSize);
+    }
+
+    public void recordBatch(int events, int bytes) {
+        batchEvents.record(events);
+        batchBytes.record(bytes);
+        incrementBatch(bytes);
+    }
+
+    @Override
+    public void incrementLogEvents(int eventCount) {
+        logEvents.add(eventCount);
+        global().incrementLogEvents(eventCount);
+    }
+
+    @Override
+    public void incrementPutLog() {
+        putLogEvents.increment();
+        global().incrementPutLog();
+    }
+
+    @Override
+    public void incrementPutLogRetried(Throwable exception) {
+        putLogEventsRetried.increment();
+        global().incrementPutLogRetried(exception);
+    }
+
+    // The round trip of a single PutLogEvents call, retries are timed separately
+    public void recordPutLogEventsLatency(long nanos) {
+        putLogEventsLatencyMillis.record(TimeUnit.NANOSECONDS.toMillis(nanos));
+    }
+
+    public void recordFlushDuration(long nanos) {
+        flushDurationMillis.record(TimeUnit.NANOSECONDS.toMillis(nanos));
+    }
+
+    // Time spent by the logging thread in append: encoding and queueing, or sending in synchronous mode
+    public void recordAppendDuration(long nanos) {
+        appendDurationMicros.record(TimeUnit.NANOSECONDS.toMicros(nanos));
+    }
+
+    // Time from queueing an event to adding it to a batch
+    public void recordQueueWait(long nanos) {
+        queueWaitMillis.record(TimeUnit.NANOSECONDS.toMillis(nanos));
+    }
+
+    // Time from AwsLogsAppender.append to the success of the PutLogEvents call sending the event,
+    // not recorded for events sent back from the spill directory
+    public void recordAppendToAck(long nanos) {
+        appendToAckMillis.record(TimeUnit.NANOSECONDS.toMillis(nanos));
+    }
+
+    public void setCircuitBreakerState(String state) {
+        circuitBreakerState = state;
+    }
+
+    // Each time the circuit breaker goes to the given state
+    public void recordCircuitBreakerTransition(String state) {
+        circuitBreakerState = state;
+        circuitBreakerTransitions.computeIfAbsent(state, key -> new LongAdder()).increment();
+    }
+
+    // Set by the asynchronous worker while it runs
+    public void setQueueGauges(LongSupplier queueDepth, LongSupplier queuedBytes,
+                               LongSupplier oldestQueuedEventAgeMillis) {
+        this.queueDepth = queueDepth;
+        this.queuedBytes = queuedBytes;
+        this.oldestQueuedEventAgeMillis = oldestQueuedEventAgeMillis;
+    }
+
+    public synchronized void registerMBean(String appenderName) throws JMException {
+        unregisterMBean();
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName objectName = new ObjectName("ca.pjer.logback:type=AwsLogsAppender,name="
+                + ObjectName.quote(String.valueOf(appenderName)));
+        server.registerMBean(this, objectName);
+        this.objectName = objectName;
+    }
+
+    public synchronized void unregisterMBean() throws JMException {
+        if (objectName != null) {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            objectName = null;
+        }
+    }
+
+    @Override
+    public long getQueueDepth() {
+        LongSupplier queueDepth = this.queueDepth;
+        return queueDepth == null ? 0 : queueDepth.getAsLong();
+    }
+
+    @Override
+    public long getQueuedBytes() {
+        LongSupplier queuedBytes = this.queuedBytes;
+        return queuedBytes == null ? 0 : queuedBytes.getAsLong();
+    }
+
+    @Override
+    public long getOldestQueuedEventAgeMillis() {
+        LongSupplier oldestQueuedEventAgeMillis = this.oldestQueuedEventAgeMillis;
+        return oldestQueuedEventAgeMillis == null ? 0 : oldestQueuedEventAgeMillis.getAsLong();
+    }
+
+    @Override
+    public long getLogEvents() {
+        return logEvents.sum();
+    }
+
+    @Override
+    public long getPutLogEvents() {
+        return putLogEvents.sum();
+    }
+
+    @Override
+    public long getPutLogEventsFailed() {
+        return putLogEventsFailed.sum();
+    }
+
+    @Override
+    public long getPutLogEventsRetried() {
+        return putLogEventsRetried.sum();
+    }
+
+    @Override
+    public long getFlushFailed() {
+        return flushFailed.sum();
+    }
+
+    @Override
+    public long getLostEvents() {
+        return lostEvents.sum();
+    }
+
+    @Override
+    public Map<String, Long> getLostEventsByLevel() {
+        Map<String, Long> lostEventsByLevel = new TreeMap<String, Long>();
+        for (Map.Entry<String, LongAdder> entry : this.lostEventsByLevel.entrySet()) {
+            lostEventsByLevel.put(entry.getKey(), entry.getValue().sum());
+        }
+        return lostEventsByLevel;
+    }
+
+    @Override
+    public String getCircuitBreakerState() {
+        return circuitBreakerState;
+    }
+
+    @Override
+    public Map<String, Long> getCircuitBreakerTransitions() {
+        Map<String, Long> transitions = new TreeMap<String, Long>();
+        for (Map.Entry<String, LongAdder> entry : circuitBreakerTransitions.entrySet()) {
+            transitions.put(entry.getKey(), entry.getValue().sum());
+        }
+        return transitions;
+    }
+
+    @Override
+    public Histogram.Snapshot getPutLogEventsLatencyMillis() {
+        return putLogEventsLatencyMillis.getSnapshot();
+    }
+
+    @Override
+    public Histogram.Snapshot getBatchEvents() {
+        return batchEvents.getSnapshot();
+    }
+
+    @Override
+    public Histogram.Snapshot getBatchBytes() {
+        return batchBytes.getSnapshot();
+    }
+
+    @Override
+    public Histogram.Snapshot getFlushDurationMillis() {
+        return flushDurationMillis.getSnapshot();
+    }
+
+    @Override
+    public Histogram.Snapshot getAppendDurationMicros() {
+        return appendDurationMicros.getSnapshot();
+    }
+
+    @Override
+    public Histogram.Snapshot getQueueWaitMillis() {
+        return queueWaitMillis.getSnapshot();
+    }
+
+    @Override
+    public Histogram.Snapshot getAppendToAckMillis() {
+        return appendToAckMillis.getSnapshot();
+    }
+
+    // The histograms themselves, for metrics libraries that want more than the JMX snapshots
+    public Histogram putLogEventsLatencyMillis() {
+        return putLogEventsLatencyMillis;
+    }
+
+    public Histogram batchEvents() {
+        return batchEvents;
+    }
+
+    public Histogram batchBytes() {
+        return batchBytes;
+    }
+
+    public Histogram flushDurationMillis() {
+        return flushDurationMillis;
+    }
+
+    public Histogram appendDurationMicros() {
+        return appendDurationMicros;
+    }
+
+    public Histogram queueWaitMillis() {
+        return queueWaitMillis;
+    }
+
+    public Histogram appendToAckMillis() {
+        return appendToAckMillis;
+    }
+}
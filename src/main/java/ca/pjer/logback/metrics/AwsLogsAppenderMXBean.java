@@ -0,0 +1,47 @@
+package ca.pjer.logback.metrics;
+
+import java.util.Map;
+
+// What AppenderMetrics exposes through JMX, under ca.pjer.logback:type=AwsLogsAppender,name=<appender name>
+public interface AwsLogsAppenderMXBean {
+
+    long getQueueDepth();
+
+    long getQueuedBytes();
+
+    long getOldestQueuedEventAgeMillis();
+
+    long getLogEvents();
+
+    long getPutLogEvents();
+
+    long getPutLogEventsFailed();
+
+    long getPutLogEventsRetried();
+
+    long getFlushFailed();
+
+    long getLostEvents();
+
+    Map<String, Long> getLostEventsByLevel();
+
+    // CLOSED, OPEN or HALF_OPEN, DISABLED without circuit breaker
+    String getCircuitBreakerState();
+
+    // How many times the circuit breaker went to each state
+    Map<String, Long> getCircuitBreakerTransitions();
+
+    Histogram.Snapshot getPutLogEventsLatencyMillis();
+
+    Histogram.Snapshot getBatchEvents();
+
+    Histogram.Snapshot getBatchBytes();
+
+    Histogram.Snapshot getFlushDurationMillis();
+
+    Histogram.Snapshot getAppendDurationMicros();
+
+    Histogram.Snapshot getQueueWaitMillis();
+
+    Histogram.Snapshot getAppendToAckMillis();
+}
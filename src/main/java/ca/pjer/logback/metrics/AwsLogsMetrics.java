@@ -2,10 +2,19 @@ package ca.pjer.logback.metrics;
 
 public interface AwsLogsMetrics {
     void incrementLostCount();
+    default void incrementLostCount(int count) {
+        for (int i = 0; i < count; i++) {
+            incrementLostCount();
+        }
+    }
+    // no longer called: events left out of a too big batch are kept for the next one instead of being requeued
+    @Deprecated
     void incrementBatchRequeueFailed();
     void incrementFlushFailed(Throwable exception);
     void incrementPutLogFailed(Throwable exception);
     void incrementBatch(int batchSize);
     void incrementLogEvents(int eventCount);
     void incrementPutLog();
+    default void incrementPutLogRetried(Throwable exception) {
+    }
 }
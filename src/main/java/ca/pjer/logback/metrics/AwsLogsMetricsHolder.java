@@ -11,6 +11,12 @@ public class AwsLogsMetricsHolder {
         }
 
         @Override
+        public void incrementLostCount(int count) {
+
+        }
+
+        @Override
+        @Deprecated
         public void incrementBatchRequeueFailed() {
 
         }
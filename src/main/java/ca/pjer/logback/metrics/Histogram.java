@@ -0,0 +1,198 @@
+package ca.pjer.logback.metrics;
+
+import java.beans.ConstructorProperties;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+// A lock-free histogram of non negative values, with power of two buckets: percentiles are approximate
+// (at most 2x the actual value).
+// Count and sum are totals since created, to compute rates. Mean, max and percentiles only cover the last
+// window (one minute by default), so that they follow the current behaviour instead of the whole life of the JVM:
+// the window is made of slices, and the oldest one is cleared as time goes.
+public class Histogram {
+
+    private static final int BUCKETS = 64;
+    private static final int SLICES = 6;
+    private static final long DEFAULT_WINDOW_MILLIS = 60000;
+
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final long sliceNanos;
+    private final long originNanos = System.nanoTime();
+    private final Slice[] slices = new Slice[SLICES];
+
+    public Histogram() {
+        this(DEFAULT_WINDOW_MILLIS);
+    }
+
+    public Histogram(long windowMillis) {
+        if (windowMillis <= 0) {
+            throw new IllegalArgumentException("windowMillis must be greater than 0");
+        }
+        sliceNanos = Math.max(1, TimeUnit.MILLISECONDS.toNanos(windowMillis) / SLICES);
+        for (int i = 0; i < SLICES; i++) {
+            slices[i] = new Slice();
+        }
+    }
+
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        count.increment();
+        sum.add(value);
+        long index = sliceIndex();
+        Slice slice = slices[(int) (index % SLICES)];
+        if (slice.index != index) {
+            slice.reset(index);
+        }
+        slice.record(value);
+    }
+
+    private long sliceIndex() {
+        return (System.nanoTime() - originNanos) / sliceNanos;
+    }
+
+    // The slices of the current window
+    private List<Slice> window() {
+        long index = sliceIndex();
+        List<Slice> window = new ArrayList<Slice>(SLICES);
+        for (Slice slice : slices) {
+            if (slice.index > index - SLICES && slice.index <= index) {
+                window.add(slice);
+            }
+        }
+        return window;
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public long getSum() {
+        return sum.sum();
+    }
+
+    public long getMax() {
+        long max = 0;
+        for (Slice slice : window()) {
+            max = Math.max(max, slice.max.get());
+        }
+        return max;
+    }
+
+    public double getMean() {
+        long count = 0;
+        long sum = 0;
+        for (Slice slice : window()) {
+            count += slice.count.sum();
+            sum += slice.sum.sum();
+        }
+        return count == 0 ? 0 : (double) sum / count;
+    }
+
+    // The upper bound of the bucket holding the given quantile (0 to 1), never above the max
+    public long getPercentile(double quantile) {
+        long count = 0;
+        long max = 0;
+        long[] counts = new long[BUCKETS];
+        for (Slice slice : window()) {
+            for (int i = 0; i < BUCKETS; i++) {
+                long bucket = slice.buckets.get(i);
+                counts[i] += bucket;
+                count += bucket;
+            }
+            max = Math.max(max, slice.max.get());
+        }
+        long rank = (long) Math.ceil(quantile * count);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank && counts[i] > 0) {
+                long upperBound = i == 0 ? 0 : i >= 63 ? Long.MAX_VALUE : (1L << i) - 1;
+                return Math.min(upperBound, max);
+            }
+        }
+        return 0;
+    }
+
+    public Snapshot getSnapshot() {
+        return new Snapshot(getCount(), getMean(), getMax(), getPercentile(0.5), getPercentile(0.99));
+    }
+
+    // What was recorded during a slice of the window, values recorded while it is reset may be lost
+    private static final class Slice {
+
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+        private final AtomicLong max = new AtomicLong();
+        private volatile long index = -1;
+
+        synchronized void reset(long index) {
+            if (this.index >= index) {
+                return;
+            }
+            for (int i = 0; i < BUCKETS; i++) {
+                buckets.set(i, 0);
+            }
+            count.reset();
+            sum.reset();
+            max.set(0);
+            this.index = index;
+        }
+
+        void record(long value) {
+            buckets.incrementAndGet(BUCKETS - Long.numberOfLeadingZeros(value));
+            count.increment();
+            sum.add(value);
+            long current;
+            while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+                // retry
+            }
+        }
+    }
+
+    // A point in time view of a histogram, exposed as a composite value through JMX
+    public static class Snapshot {
+
+        private final long count;
+        private final double mean;
+        private final long max;
+        private final long median;
+        private final long p99;
+
+        @ConstructorProperties({"count", "mean", "max", "median", "p99"})
+        public Snapshot(long count, double mean, long max, long median, long p99) {
+            this.count = count;
+            this.mean = mean;
+            this.max = max;
+            this.median = median;
+            this.p99 = p99;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public double getMean() {
+            return mean;
+        }
+
+        public long getMax() {
+            return max;
+        }
+
+        public long getMedian() {
+            return median;
+        }
+
+        public long getP99() {
+            return p99;
+        }
+    }
+}
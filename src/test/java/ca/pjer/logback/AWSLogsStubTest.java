@@ -0,0 +1,365 @@
+package ca.pjer.logback;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.FutureTask;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import ca.pjer.logback.metrics.AppenderMetrics;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.spi.LoggingEvent;
+import ch.qos.logback.core.layout.EchoLayout;
+import software.amazon.awssdk.services.cloudwatchlogs.model.InputLogEvent;
+
+// Goes through the real SDK clients, against FakeCloudWatchLogsServer
+public class AWSLogsStubTest {
+
+    private FakeCloudWatchLogsServer server;
+
+    @Before
+    public void startServer() throws IOException {
+        server = new FakeCloudWatchLogsServer().start();
+    }
+
+    @After
+    public void stopServer() {
+        server.stop();
+    }
+
+    private AWSLogsStub stub(String logStreamName, boolean async, boolean useSequenceToken) {
+        return async ?
+                new AWSLogsAsyncStub("FakeGroup", logStreamName, "us-east-1", 7, server.getEndpoint(), false,
+                        "fakeAccessKeyId", "fakeSecretAccessKey", useSequenceToken) :
+                new AWSLogsStub("FakeGroup", logStreamName, "us-east-1", 7, server.getEndpoint(), false,
+                        "fakeAccessKeyId", "fakeSecretAccessKey", useSequenceToken);
+    }
+
+    private static InputLogEvent event(long timestamp, String message) {
+        return InputLogEvent.builder().timestamp(timestamp).message(message).build();
+    }
+
+    @Test
+    public void testShouldCreateLogGroupAndStreamThenPutEvents() {
+        AWSLogsStub stub = stub("FakeStream", false, true);
+        long now = System.currentTimeMillis();
+        stub.logEvents(Arrays.asList(event(now + 1, "second"), event(now, "first")));
+        stub.logEvents(Collections.singleton(event(now + 2, "third")));
+        stub.stop();
+        assertEquals(1, server.getRequestCount("CreateLogGroup"));
+        assertEquals(1, server.getRequestCount("CreateLogStream"));
+        assertEquals(Integer.valueOf(7), server.getRetentionInDays("FakeGroup"));
+        assertEquals(Arrays.asList("first", "second", "third"), server.getMessages("FakeGroup", "FakeStream"));
+    }
+
+    @Test
+    public void testShouldRecoverFromInvalidSequenceToken() {
+        server.setEnforceSequenceToken(true);
+        AWSLogsStub stub = stub("FakeStream", false, true);
+        AWSLogsStub otherStub = stub("FakeStream", false, true);
+        long now = System.currentTimeMillis();
+        stub.logEvents(Collections.singleton(event(now, "first")));
+        otherStub.logEvents(Collections.singleton(event(now, "second")));
+        stub.logEvents(Collections.singleton(event(now, "third")));
+        stub.stop();
+        otherStub.stop();
+        assertEquals(Arrays.asList("first", "second", "third"), server.getMessages("FakeGroup", "FakeStream"));
+    }
+
+    @Test
+    public void testShouldRetryServerErrors() {
+        AWSLogsStub stub = stub("FakeStream", false, false);
+        stub.setRetryEngine(new RetryEngine(3, 1, 1, 100, new AppenderMetrics()));
+        stub.logEvents(Collections.singleton(event(System.currentTimeMillis(), "created")));
+        server.failNextPutLogEvents(2, 503, "ServiceUnavailableException");
+        stub.logEvents(Collections.singleton(event(System.currentTimeMillis(), "retried")));
+        stub.stop();
+        assertEquals(4, server.getRequestCount("PutLogEvents"));
+        assertEquals(Arrays.asList("created", "retried"), server.getMessages("FakeGroup", "FakeStream"));
+    }
+
+    @Test
+    public void testShouldFailOnRejectedBatch() {
+        AWSLogsStub stub = stub("FakeStream", false, false);
+        stub.setRetryEngine(new RetryEngine(3, 1, 1, 100, new AppenderMetrics()));
+        server.failNextPutLogEvents(1, 400, "InvalidParameterException");
+        try {
+            stub.logEvents(Collections.singleton(event(System.currentTimeMillis(), "rejected")));
+            fail("Invalid parameters are not retried");
+        } catch (RuntimeException e) {
+            // expected
+        } finally {
+            stub.stop();
+        }
+        assertEquals(1, server.getRequestCount("PutLogEvents"));
+    }
+
+    @Test
+    public void testShouldReportOnlyUnsentEventsWhenABatchFailsAfterAnother() {
+        for (boolean async : new boolean[]{false, true}) {
+            for (boolean useSequenceToken : new boolean[]{false, true}) {
+                String logStreamName = "Partial" + async + useSequenceToken;
+                AWSLogsStub stub = stub(logStreamName, async, useSequenceToken);
+                long now = System.currentTimeMillis();
+                server.failPutLogEvents(1, 1, 400, "InvalidParameterException");
+                try {
+                    stub.logEvents(Arrays.asList(event(now, "now"), event(now - 25 * 3600 * 1000L, "yesterday")));
+                    fail("The second batch is rejected");
+                } catch (UnsentEventsException e) {
+                    List<String> messages = server.getMessages("FakeGroup", logStreamName);
+                    assertEquals(1, messages.size());
+                    assertEquals(1, e.getUnsentEvents().size());
+                    assertNotEquals(messages.get(0), e.getUnsentEvents().get(0).message());
+                } finally {
+                    stub.stop();
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testShouldRateLimitEachLogStreamOnItsOwn() throws Exception {
+        AWSLogsStub stub = stub("FakeStream", false, false);
+        stub.setRateLimiter(new RateLimiter(20, 1));
+        AWSLogsStub[] shards = {stub.forLogStream("FakeGroup", "FakeStream-0"), stub.forLogStream("FakeGroup", "FakeStream-1")};
+        CyclicBarrier warmedUp = new CyclicBarrier(shards.length);
+        List<FutureTask<Long>> elapsedMillis = new ArrayList<FutureTask<Long>>();
+        for (AWSLogsStub shard : shards) {
+            FutureTask<Long> task = new FutureTask<Long>(() -> {
+                // creates the client, the log group and the log stream
+                shard.logEvents(Collections.singleton(event(System.currentTimeMillis(), "Warm up")));
+                warmedUp.await();
+                long start = System.nanoTime();
+                for (int i = 0; i < 20; i++) {
+                    shard.logEvents(Collections.singleton(event(System.currentTimeMillis(), "Event " + i)));
+                }
+                return (System.nanoTime() - start) / 1000000;
+            });
+            elapsedMillis.add(task);
+            new Thread(task).start();
+        }
+        for (FutureTask<Long> task : elapsedMillis) {
+            // 20 calls at 20 per second, sharing one limiter would take two seconds
+            long millis = task.get();
+            assertTrue("Took " + millis + "ms", millis >= 800 && millis < 1500);
+        }
+        for (AWSLogsStub shard : shards) {
+            shard.stop();
+        }
+        stub.stop();
+        assertEquals(21, server.getMessages("FakeGroup", "FakeStream-0").size());
+        assertEquals(21, server.getMessages("FakeGroup", "FakeStream-1").size());
+    }
+
+    @Test
+    public void testShouldNotDelayRetriesOfOthersWhileThrottled() throws Exception {
+        AWSLogsStub throttled = stub("Throttled", true, false);
+        throttled.setRetryEngine(new RetryEngine(3, 1, 1, 100, new AppenderMetrics()));
+        AWSLogsStub other = stub("Other", true, false);
+        other.setRetryEngine(new RetryEngine(3, 1, 1, 100, new AppenderMetrics()));
+        long now = System.currentTimeMillis();
+        throttled.logEvents(Collections.singleton(event(now, "Warm up")));
+        other.logEvents(Collections.singleton(event(now, "Warm up")));
+        // one permit, the next one in 2 seconds
+        throttled.setRateLimiter(new RateLimiter(0.5, 1));
+        // the retry of the throttled stub waits for its permit
+        int requests = server.getRequestCount("PutLogEvents");
+        server.failNextPutLogEvents(1, 503, "ServiceUnavailableException");
+        CompletableFuture<Void> delayed = throttled.logEventsAsync(Collections.singleton(event(now + 1, "Delayed")));
+        while (server.getRequestCount("PutLogEvents") == requests) {
+            Thread.sleep(1);
+        }
+        Thread.sleep(100);
+        server.failNextPutLogEvents(1, 503, "ServiceUnavailableException");
+        long start = System.nanoTime();
+        other.logEvents(Collections.singleton(event(now + 1, "Retried")));
+        long millis = (System.nanoTime() - start) / 1000000;
+        assertTrue("Took " + millis + "ms", millis < 1000);
+        assertFalse(delayed.isDone());
+        delayed.join();
+        throttled.stop();
+        other.stop();
+        assertEquals(Arrays.asList("Warm up", "Delayed"), server.getMessages("FakeGroup", "Throttled"));
+        assertEquals(Arrays.asList("Warm up", "Retried"), server.getMessages("FakeGroup", "Other"));
+    }
+
+    @Test
+    public void testShouldSplitBatchesSpanningMoreThan24Hours() {
+        for (boolean async : new boolean[]{false, true}) {
+            for (boolean useSequenceToken : new boolean[]{false, true}) {
+                String logStreamName = "FakeStream" + async + useSequenceToken;
+                AWSLogsStub stub = stub(logStreamName, async, useSequenceToken);
+                long now = System.currentTimeMillis();
+                int before = server.getRequestCount("PutLogEvents");
+                stub.logEvents(Arrays.asList(event(now, "now"), event(now - 25 * 3600 * 1000L, "yesterday")));
+                stub.stop();
+                assertEquals(2, server.getRequestCount("PutLogEvents") - before);
+                assertEquals(Arrays.asList("yesterday", "now"), server.getMessages("FakeGroup", logStreamName));
+            }
+        }
+    }
+
+    @Test
+    public void testShouldDropOrClampEventsOutOfRange() {
+        AWSLogsStub stub = stub("Dropped", false, false);
+        long now = System.currentTimeMillis();
+        stub.logEvents(Arrays.asList(event(now - 8 * 24 * 3600 * 1000L, "older than retention"),
+                event(now + 3 * 3600 * 1000L, "future"), event(now, "now")));
+        stub.stop();
+        assertEquals(Collections.singletonList("now"), server.getMessages("FakeGroup", "Dropped"));
+        assertEquals(2, stub.getMetrics().getLostEvents());
+
+        stub = stub("Clamped", false, false);
+        stub.setOutOfRangeHandler(BatchPreparer.CLAMP);
+        stub.logEvents(Arrays.asList(event(now + 3 * 3600 * 1000L, "future"), event(now, "now")));
+        stub.stop();
+        assertEquals(Arrays.asList("now", "future"), server.getMessages("FakeGroup", "Clamped"));
+    }
+
+    @Test
+    public void testShouldPutEventsInSequenceWithAsyncClient() {
+        server.setEnforceSequenceToken(true);
+        AWSLogsStub stub = stub("FakeStream", true, true);
+        long now = System.currentTimeMillis();
+        stub.logEventsAsync(Collections.singleton(event(now, "first")));
+        stub.logEventsAsync(Collections.singleton(event(now + 1, "second"))).join();
+        stub.stop();
+        assertEquals(Arrays.asList("first", "second"), server.getMessages("FakeGroup", "FakeStream"));
+    }
+
+    @Test
+    public void testShouldDeliverEverythingThroughAsyncAppender() {
+        server.setLatencyMillis(5);
+        server.setThrottlingRate(0.2);
+        AwsLogsAppender awsLogsAppender = new AwsLogsAppender();
+        awsLogsAppender.setContext(new LoggerContext());
+        awsLogsAppender.setLayout(new EchoLayout<>());
+        awsLogsAppender.setLogGroupName("FakeGroup");
+        awsLogsAppender.setLogStreamName("FakeStream");
+        awsLogsAppender.setLogRegion("us-east-1");
+        awsLogsAppender.setCloudWatchEndpoint(server.getEndpoint());
+        awsLogsAppender.setAccessKeyId("fakeAccessKeyId");
+        awsLogsAppender.setSecretAccessKey("fakeSecretAccessKey");
+        awsLogsAppender.setVerbose(false);
+        awsLogsAppender.setMaxFlushTimeMillis(10);
+        awsLogsAppender.setMaxBatchLogEvents(10);
+        awsLogsAppender.setMaxRetries(10);
+        awsLogsAppender.setRetryBaseDelayMillis(1);
+        awsLogsAppender.setRetryMaxDelayMillis(5);
+        awsLogsAppender.setRetryBudgetPercent(100);
+        awsLogsAppender.start();
+        LoggerContext loggerContext = new LoggerContext();
+        for (int i = 0; i < 100; i++) {
+            awsLogsAppender.doAppend(new LoggingEvent(AWSLogsStubTest.class.getName(),
+                    loggerContext.getLogger(AWSLogsStubTest.class.getName()), Level.WARN, "Event " + i, null, null));
+        }
+        awsLogsAppender.stop();
+        assertEquals(100, server.getMessages("FakeGroup", "FakeStream").size());
+    }
+
+    private AwsLogsAppender shardedAppender(String shardBy) {
+        AwsLogsAppender awsLogsAppender = new AwsLogsAppender();
+        awsLogsAppender.setContext(new LoggerContext());
+        awsLogsAppender.setName("Sharded");
+        awsLogsAppender.setLayout(new EchoLayout<>());
+        awsLogsAppender.setLogGroupName("FakeGroup");
+        awsLogsAppender.setLogStreamName("FakeStream");
+        awsLogsAppender.setLogRegion("us-east-1");
+        awsLogsAppender.setCloudWatchEndpoint(server.getEndpoint());
+        awsLogsAppender.setAccessKeyId("fakeAccessKeyId");
+        awsLogsAppender.setSecretAccessKey("fakeSecretAccessKey");
+        awsLogsAppender.setVerbose(false);
+        awsLogsAppender.setMaxFlushTimeMillis(10);
+        awsLogsAppender.setMaxBatchLogEvents(10);
+        awsLogsAppender.setShards(3);
+        awsLogsAppender.setShardBy(shardBy);
+        awsLogsAppender.start();
+        return awsLogsAppender;
+    }
+
+    @Test
+    public void testShouldSpreadEventsOverLogStreams() {
+        AwsLogsAppender awsLogsAppender = shardedAppender(AwsLogsAppender.SHARD_BY_ROUND_ROBIN);
+        LoggerContext loggerContext = new LoggerContext();
+        for (int i = 0; i < 30; i++) {
+            awsLogsAppender.doAppend(new LoggingEvent(AWSLogsStubTest.class.getName(),
+                    loggerContext.getLogger(AWSLogsStubTest.class.getName()), Level.WARN, "Event " + i, null, null));
+        }
+        awsLogsAppender.stop();
+        for (int shard = 0; shard < 3; shard++) {
+            List<String> messages = server.getMessages("FakeGroup", "FakeStream-" + shard);
+            assertEquals(10, messages.size());
+            for (int i = 0; i < messages.size(); i++) {
+                assertEquals("[WARN] Event " + (i * 3 + shard), messages.get(i).trim());
+            }
+        }
+    }
+
+    @Test
+    public void testShouldOnlyCreateLogStreamsOfUsedShards() {
+        AwsLogsAppender awsLogsAppender = shardedAppender(AwsLogsAppender.SHARD_BY_THREAD);
+        LoggerContext loggerContext = new LoggerContext();
+        for (int i = 0; i < 30; i++) {
+            awsLogsAppender.doAppend(new LoggingEvent(AWSLogsStubTest.class.getName(),
+                    loggerContext.getLogger(AWSLogsStubTest.class.getName()), Level.WARN, "Event " + i, null, null));
+        }
+        awsLogsAppender.stop();
+        // all from this thread, so all in one log stream
+        assertEquals(1, server.getRequestCount("CreateLogStream"));
+        int logged = 0;
+        for (int shard = 0; shard < 3; shard++) {
+            logged += server.getMessages("FakeGroup", "FakeStream-" + shard).size();
+        }
+        assertEquals(30, logged);
+    }
+
+    @Test
+    public void testShouldRouteEventsByMdcAndCreateEachLogStreamOnce() {
+        AwsLogsAppender awsLogsAppender = new AwsLogsAppender();
+        LoggerContext loggerContext = new LoggerContext();
+        awsLogsAppender.setContext(loggerContext);
+        awsLogsAppender.setName("Routing");
+        awsLogsAppender.setLayout(new EchoLayout<>());
+        awsLogsAppender.setLogGroupName("FakeGroup");
+        awsLogsAppender.setLogStreamName("FakeStream");
+        awsLogsAppender.setLogStreamPattern("tenant-%X{tenant}");
+        awsLogsAppender.setMaxRoutes(2);
+        awsLogsAppender.setLogRegion("us-east-1");
+        awsLogsAppender.setCloudWatchEndpoint(server.getEndpoint());
+        awsLogsAppender.setAccessKeyId("fakeAccessKeyId");
+        awsLogsAppender.setSecretAccessKey("fakeSecretAccessKey");
+        awsLogsAppender.setVerbose(false);
+        awsLogsAppender.setMaxFlushTimeMillis(10);
+        awsLogsAppender.setWorkerScheduler("shared");
+        awsLogsAppender.start();
+        String[] tenants = {"a", "b", "c"};
+        for (int i = 0; i < 30; i++) {
+            LoggingEvent event = new LoggingEvent(AWSLogsStubTest.class.getName(),
+                    loggerContext.getLogger(AWSLogsStubTest.class.getName()), Level.WARN, "Event " + i, null, null);
+            event.setMDCPropertyMap(Collections.singletonMap("tenant", tenants[i % tenants.length]));
+            awsLogsAppender.doAppend(event);
+        }
+        awsLogsAppender.stop();
+        for (int t = 0; t < tenants.length; t++) {
+            // a log stream coming back waits for its evicted route, so the order is kept
+            List<String> messages = server.getMessages("FakeGroup", "tenant-" + tenants[t]);
+            assertEquals(10, messages.size());
+            for (int i = 0; i < messages.size(); i++) {
+                assertEquals("[WARN] Event " + (i * 3 + t), messages.get(i).trim());
+            }
+        }
+        // with 2 routes for 3 tenants, routes were evicted and created again, but not the log streams
+        assertEquals(3, server.getRequestCount("CreateLogStream"));
+    }
+}
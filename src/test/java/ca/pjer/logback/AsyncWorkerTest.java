@@ -2,16 +2,35 @@ package ca.pjer.logback;
 
 import ch.qos.logback.classic.Level;
 import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.PatternLayout;
 import ch.qos.logback.classic.spi.ILoggingEvent;
 import ch.qos.logback.classic.spi.LoggingEvent;
+import ch.qos.logback.core.CoreConstants;
 import ch.qos.logback.core.layout.EchoLayout;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import ca.pjer.logback.metrics.AppenderMetrics;
+import software.amazon.awssdk.services.cloudwatchlogs.model.CloudWatchLogsException;
 import software.amazon.awssdk.services.cloudwatchlogs.model.InputLogEvent;
 
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
 import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.Mockito.*;
 
 public class AsyncWorkerTest {
@@ -29,7 +48,27 @@ public class AsyncWorkerTest {
         return event;
     }
 
+    private static ILoggingEvent event(Level level) {
+        LoggerContext loggerContext = new LoggerContext();
+        LoggingEvent event = new LoggingEvent(AsyncWorkerTest.class.getName(), loggerContext.getLogger(AsyncWorkerTest.class.getName()), level, "Dummy " + UUID.randomUUID().toString(), null, null);
+        event.setTimeStamp(timestamp.getAndIncrement());
+        return event;
+    }
+
+    private static ILoggingEvent bigEvent() {
+        LoggerContext loggerContext = new LoggerContext();
+        char[] message = new char[200000];
+        Arrays.fill(message, 'x');
+        LoggingEvent event = new LoggingEvent(AsyncWorkerTest.class.getName(), loggerContext.getLogger(AsyncWorkerTest.class.getName()), Level.WARN, new String(message), null, null);
+        event.setTimeStamp(timestamp.getAndIncrement());
+        return event;
+    }
+
     private static AsyncWorker asyncWorker(AWSLogsStub mockedAwsLogsStub, int maxBatchLogEvents, long maxFlushTimeMillis, long maxBlockTimeMillis) {
+        return asyncWorker(awsLogsAppender(mockedAwsLogsStub, maxBatchLogEvents, maxFlushTimeMillis, maxBlockTimeMillis));
+    }
+
+    private static AwsLogsAppender awsLogsAppender(AWSLogsStub mockedAwsLogsStub, int maxBatchLogEvents, long maxFlushTimeMillis, long maxBlockTimeMillis) {
         AwsLogsAppender awsLogsAppender = new AwsLogsAppender();
         awsLogsAppender.setLayout(new EchoLayout<ILoggingEvent>());
         awsLogsAppender.setLogGroupName("FakeGroup");
@@ -38,11 +77,91 @@ public class AsyncWorkerTest {
         awsLogsAppender.setMaxFlushTimeMillis(maxFlushTimeMillis);
         awsLogsAppender.setMaxBlockTimeMillis(maxBlockTimeMillis);
         awsLogsAppender.setAwsLogsStub(mockedAwsLogsStub);
+        return awsLogsAppender;
+    }
+
+    private static AsyncWorker asyncWorker(AwsLogsAppender awsLogsAppender) {
         AsyncWorker asyncWorker = new AsyncWorker(awsLogsAppender);
         awsLogsAppender.setWorker(asyncWorker);
         return asyncWorker;
     }
 
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void testShouldOnlySpillUnsentEvents() throws IOException {
+        final List<String> logged = new ArrayList<String>();
+        final AtomicInteger calls = new AtomicInteger();
+        AWSLogsStub mockedAwsLogsStub = mock(AWSLogsStub.class);
+        doAnswer(invocation -> {
+            List<InputLogEvent> events = new ArrayList<InputLogEvent>(invocation.<Collection<InputLogEvent>>getArgument(0));
+            if (calls.getAndIncrement() == 0) {
+                // the first event went through, not the others
+                logged.add(events.get(0).message());
+                throw new UnsentEventsException(events.subList(1, events.size()), new IllegalStateException());
+            }
+            for (InputLogEvent event : events) {
+                logged.add(event.message());
+            }
+            return null;
+        }).when(mockedAwsLogsStub).logEvents(anyInputLogEvents());
+        AwsLogsAppender awsLogsAppender = awsLogsAppender(mockedAwsLogsStub, 3, Long.MAX_VALUE, 0);
+        awsLogsAppender.setVerbose(false);
+        awsLogsAppender.setSpillDirectory(temporaryFolder.newFolder().getPath());
+        AsyncWorker asyncWorker = asyncWorker(awsLogsAppender);
+        asyncWorker.start();
+        for (int i = 0; i < 3; i++) {
+            asyncWorker.append(dummyEvent());
+        }
+        asyncWorker.stop();
+        asyncWorker.start();
+        asyncWorker.stop();
+        assertEquals(3, logged.size());
+        assertEquals(3, new HashSet<String>(logged).size());
+    }
+
+    @Test
+    public void testShouldSendQueueWhileSpilledEventsFail() throws IOException {
+        final List<String> logged = new ArrayList<String>();
+        final HashSet<String> rejected = new HashSet<String>();
+        AWSLogsStub mockedAwsLogsStub = mock(AWSLogsStub.class);
+        doAnswer(invocation -> {
+            Collection<InputLogEvent> events = invocation.getArgument(0);
+            for (InputLogEvent event : events) {
+                if (rejected.contains(event.message())) {
+                    throw new IllegalArgumentException("Rejected");
+                }
+            }
+            for (InputLogEvent event : events) {
+                logged.add(event.message());
+            }
+            return null;
+        }).when(mockedAwsLogsStub).logEvents(anyInputLogEvents());
+        AwsLogsAppender awsLogsAppender = awsLogsAppender(mockedAwsLogsStub, 3, Long.MAX_VALUE, 0);
+        awsLogsAppender.setVerbose(false);
+        awsLogsAppender.setSpillDirectory(temporaryFolder.newFolder().getPath());
+        AsyncWorker asyncWorker = asyncWorker(awsLogsAppender);
+        asyncWorker.start();
+        for (int i = 0; i < 3; i++) {
+            ILoggingEvent event = dummyEvent();
+            rejected.add("[WARN] " + event.getFormattedMessage() + CoreConstants.LINE_SEPARATOR);
+            asyncWorker.append(event);
+        }
+        // spilled, and rejected from now on
+        asyncWorker.stop();
+        assertTrue(logged.isEmpty());
+        asyncWorker.start();
+        List<String> expected = new ArrayList<String>();
+        for (int i = 0; i < 3; i++) {
+            ILoggingEvent event = dummyEvent();
+            expected.add("[WARN] " + event.getFormattedMessage() + CoreConstants.LINE_SEPARATOR);
+            asyncWorker.append(event);
+        }
+        asyncWorker.stop();
+        assertEquals(expected, logged);
+    }
+
     @Test
     public void testShouldNotLogWhenStopped() {
         AWSLogsStub mockedAwsLogsStub = mock(AWSLogsStub.class);
@@ -99,4 +218,513 @@ public class AsyncWorkerTest {
         asyncWorker.append(dummyEvent());
         verify(mockedAwsLogsStub, after(1500)).logEvents(anyInputLogEvents());
     }
+
+    @Test
+    public void testShouldLogAfterMaxBatchSizeOnSharedScheduler() {
+        AWSLogsStub mockedAwsLogsStub = mock(AWSLogsStub.class);
+        AwsLogsAppender awsLogsAppender = awsLogsAppender(mockedAwsLogsStub, 2, Long.MAX_VALUE, 5000);
+        awsLogsAppender.setWorkerScheduler("shared");
+        AsyncWorker asyncWorker = asyncWorker(awsLogsAppender);
+        asyncWorker.start();
+        asyncWorker.append(dummyEvent());
+        verify(mockedAwsLogsStub, after(200).never()).logEvents(anyInputLogEvents());
+        asyncWorker.append(dummyEvent());
+        verify(mockedAwsLogsStub, timeout(1000)).logEvents(argThat(events -> events.size() == 2));
+        asyncWorker.append(dummyEvent());
+        asyncWorker.stop();
+        verify(mockedAwsLogsStub, times(2)).logEvents(anyInputLogEvents());
+    }
+
+    @Test
+    public void testShouldLogAfterMaxFlushTimeMillisOnSharedScheduler() {
+        AWSLogsStub mockedAwsLogsStub = mock(AWSLogsStub.class);
+        AwsLogsAppender awsLogsAppender = awsLogsAppender(mockedAwsLogsStub, 5, 500, 5000);
+        awsLogsAppender.setWorkerScheduler("shared");
+        AsyncWorker asyncWorker = asyncWorker(awsLogsAppender);
+        asyncWorker.start();
+        asyncWorker.append(dummyEvent());
+        verify(mockedAwsLogsStub, timeout(1500)).logEvents(anyInputLogEvents());
+        asyncWorker.stop();
+    }
+
+    @Test
+    public void testShouldFlushWhileOtherAppendersAreBlockedOnSharedScheduler() throws InterruptedException {
+        CountDownLatch release = new CountDownLatch(1);
+        AWSLogsStub blockedAwsLogsStub = mock(AWSLogsStub.class);
+        doAnswer(invocation -> {
+            release.await();
+            return null;
+        }).when(blockedAwsLogsStub).logEvents(anyInputLogEvents());
+        // as many blocked appenders as the shared timers have threads at most
+        List<AsyncWorker> blocked = new ArrayList<AsyncWorker>();
+        for (int i = 0; i < 4; i++) {
+            AwsLogsAppender awsLogsAppender = awsLogsAppender(blockedAwsLogsStub, 1, 50, 0);
+            awsLogsAppender.setWorkerScheduler("shared");
+            AsyncWorker asyncWorker = asyncWorker(awsLogsAppender);
+            asyncWorker.start();
+            asyncWorker.append(dummyEvent());
+            blocked.add(asyncWorker);
+        }
+        verify(blockedAwsLogsStub, timeout(1000).times(4)).logEvents(anyInputLogEvents());
+        AWSLogsStub mockedAwsLogsStub = mock(AWSLogsStub.class);
+        AwsLogsAppender awsLogsAppender = awsLogsAppender(mockedAwsLogsStub, 5, 50, 5000);
+        awsLogsAppender.setWorkerScheduler("shared");
+        AsyncWorker asyncWorker = asyncWorker(awsLogsAppender);
+        asyncWorker.start();
+        asyncWorker.append(dummyEvent());
+        verify(mockedAwsLogsStub, timeout(1000)).logEvents(anyInputLogEvents());
+        asyncWorker.stop();
+        release.countDown();
+        for (AsyncWorker worker : blocked) {
+            worker.stop();
+        }
+    }
+
+    @Test
+    public void testShouldFlushLaterWhenSharedFlushersAreBusy() throws InterruptedException {
+        CountDownLatch release = new CountDownLatch(1);
+        AWSLogsStub blockedAwsLogsStub = mock(AWSLogsStub.class);
+        doAnswer(invocation -> {
+            release.await();
+            return null;
+        }).when(blockedAwsLogsStub).logEvents(anyInputLogEvents());
+        List<AsyncWorker> blocked = new ArrayList<AsyncWorker>();
+        AWSLogsStub mockedAwsLogsStub = mock(AWSLogsStub.class);
+        AsyncWorker asyncWorker = null;
+        try {
+            // every shared flusher is taken
+            for (int i = 0; i < WorkerScheduler.MAX_FLUSHES; i++) {
+                AwsLogsAppender awsLogsAppender = awsLogsAppender(blockedAwsLogsStub, 1, 50, 0);
+                awsLogsAppender.setWorkerScheduler("shared");
+                AsyncWorker worker = asyncWorker(awsLogsAppender);
+                worker.start();
+                worker.append(dummyEvent());
+                blocked.add(worker);
+            }
+            verify(blockedAwsLogsStub, timeout(1000).times(WorkerScheduler.MAX_FLUSHES)).logEvents(anyInputLogEvents());
+            AwsLogsAppender awsLogsAppender = awsLogsAppender(mockedAwsLogsStub, 1, 50, 0);
+            awsLogsAppender.setWorkerScheduler("shared");
+            asyncWorker = asyncWorker(awsLogsAppender);
+            asyncWorker.start();
+            asyncWorker.append(dummyEvent());
+            Thread.sleep(200);
+            verify(mockedAwsLogsStub, never()).logEvents(anyInputLogEvents());
+        } finally {
+            release.countDown();
+        }
+        // once a flusher is free, the next tick flushes
+        verify(mockedAwsLogsStub, timeout(1000)).logEvents(anyInputLogEvents());
+        asyncWorker.stop();
+        for (AsyncWorker worker : blocked) {
+            worker.stop();
+        }
+    }
+
+    @Test
+    public void testShouldLogOnVirtualOrFallbackThread() {
+        AWSLogsStub mockedAwsLogsStub = mock(AWSLogsStub.class);
+        AwsLogsAppender awsLogsAppender = awsLogsAppender(mockedAwsLogsStub, 1, Long.MAX_VALUE, 5000);
+        awsLogsAppender.setWorkerScheduler("virtual");
+        AsyncWorker asyncWorker = asyncWorker(awsLogsAppender);
+        asyncWorker.start();
+        asyncWorker.append(dummyEvent());
+        verify(mockedAwsLogsStub, timeout(1000)).logEvents(anyInputLogEvents());
+        asyncWorker.stop();
+    }
+
+    @Test
+    public void testShouldRecordMetricsOfItsOwnAppender() {
+        AWSLogsStub mockedAwsLogsStub = mock(AWSLogsStub.class);
+        AwsLogsAppender awsLogsAppender = awsLogsAppender(mockedAwsLogsStub, 2, Long.MAX_VALUE, 5000);
+        AsyncWorker asyncWorker = asyncWorker(awsLogsAppender);
+        asyncWorker.start();
+        asyncWorker.append(dummyEvent());
+        assertEquals(1, awsLogsAppender.getMetrics().getQueueDepth());
+        asyncWorker.append(dummyEvent());
+        asyncWorker.stop();
+        assertEquals(1, awsLogsAppender.getMetrics().getBatchEvents().getCount());
+        assertEquals(2, awsLogsAppender.getMetrics().getBatchEvents().getMax());
+        assertEquals(1, awsLogsAppender.getMetrics().getFlushDurationMillis().getCount());
+        assertEquals(0, awsLogsAppender.getMetrics().getQueueDepth());
+    }
+
+    @Test
+    public void testShouldTrackEventLatency() throws InterruptedException {
+        AWSLogsStub mockedAwsLogsStub = mock(AWSLogsStub.class);
+        AwsLogsAppender awsLogsAppender = awsLogsAppender(mockedAwsLogsStub, 5, Long.MAX_VALUE, 5000);
+        awsLogsAppender.setDeferEncoding(true);
+        AsyncWorker asyncWorker = asyncWorker(awsLogsAppender);
+        asyncWorker.start();
+        assertEquals(0, awsLogsAppender.getMetrics().getOldestQueuedEventAgeMillis());
+        asyncWorker.append(dummyEvent());
+        Thread.sleep(100);
+        assertTrue(awsLogsAppender.getMetrics().getOldestQueuedEventAgeMillis() >= 100);
+        asyncWorker.stop();
+        assertEquals(1, awsLogsAppender.getMetrics().getAppendDurationMicros().getCount());
+        assertEquals(1, awsLogsAppender.getMetrics().getQueueWaitMillis().getCount());
+        assertTrue(awsLogsAppender.getMetrics().getQueueWaitMillis().getMax() >= 100);
+        assertEquals(1, awsLogsAppender.getMetrics().getAppendToAckMillis().getCount());
+        assertTrue(awsLogsAppender.getMetrics().getAppendToAckMillis().getMax() >= 100);
+    }
+
+    @Test
+    public void testShouldTrackAppendToAckWhenAsync() {
+        final List<CompletableFuture<Void>> outstanding = Collections.synchronizedList(new ArrayList<CompletableFuture<Void>>());
+        AWSLogsStub mockedAwsLogsStub = mock(AWSLogsStub.class);
+        when(mockedAwsLogsStub.isAsync()).thenReturn(true);
+        when(mockedAwsLogsStub.logEventsAsync(anyInputLogEvents())).thenAnswer(invocation -> {
+            CompletableFuture<Void> future = new CompletableFuture<Void>();
+            outstanding.add(future);
+            return future;
+        });
+        AwsLogsAppender awsLogsAppender = awsLogsAppender(mockedAwsLogsStub, 2, Long.MAX_VALUE, 5000);
+        AsyncWorker asyncWorker = asyncWorker(awsLogsAppender);
+        asyncWorker.start();
+        asyncWorker.append(dummyEvent());
+        asyncWorker.append(dummyEvent());
+        verify(mockedAwsLogsStub, timeout(1000)).logEventsAsync(anyInputLogEvents());
+        // only once acknowledged
+        assertEquals(0, awsLogsAppender.getMetrics().getAppendToAckMillis().getCount());
+        outstanding.get(0).complete(null);
+        // the sender may only be watching the future once the test completed it
+        long deadline = System.currentTimeMillis() + 1000;
+        while (awsLogsAppender.getMetrics().getAppendToAckMillis().getCount() < 2 && System.currentTimeMillis() < deadline) {
+            Thread.yield();
+        }
+        assertEquals(2, awsLogsAppender.getMetrics().getAppendToAckMillis().getCount());
+        asyncWorker.stop();
+    }
+
+    @Test
+    public void testShouldSendPriorityEventsRightAway() {
+        AWSLogsStub mockedAwsLogsStub = mock(AWSLogsStub.class);
+        AwsLogsAppender awsLogsAppender = awsLogsAppender(mockedAwsLogsStub, 100, Long.MAX_VALUE, 5000);
+        awsLogsAppender.setPriorityQueueSize(10);
+        AsyncWorker asyncWorker = asyncWorker(awsLogsAppender);
+        asyncWorker.start();
+        asyncWorker.append(event(Level.INFO));
+        verify(mockedAwsLogsStub, after(300).never()).logEvents(anyInputLogEvents());
+        asyncWorker.append(event(Level.ERROR));
+        verify(mockedAwsLogsStub, timeout(1000)).logEvents(argThat(events -> events.size() == 2));
+        asyncWorker.stop();
+    }
+
+    @Test
+    public void testShouldKeepPriorityEventsWhenQueueIsFull() {
+        final List<String> logged = new ArrayList<String>();
+        AWSLogsStub mockedAwsLogsStub = mock(AWSLogsStub.class);
+        doAnswer(invocation -> {
+            Collection<InputLogEvent> events = invocation.getArgument(0);
+            for (InputLogEvent event : events) {
+                logged.add(event.message());
+            }
+            return null;
+        }).when(mockedAwsLogsStub).logEvents(anyInputLogEvents());
+        AwsLogsAppender awsLogsAppender = awsLogsAppender(mockedAwsLogsStub, 1, Long.MAX_VALUE, 0);
+        awsLogsAppender.setPriorityQueueSize(10);
+        AsyncWorker asyncWorker = asyncWorker(awsLogsAppender);
+        // not started yet, so nothing is drained
+        for (int i = 0; i < 3; i++) {
+            asyncWorker.append(event(Level.INFO));
+        }
+        asyncWorker.append(event(Level.ERROR));
+        asyncWorker.start();
+        asyncWorker.stop();
+        assertEquals(3, logged.size());
+        assertTrue(logged.get(0).startsWith("[ERROR]"));
+        assertEquals(1, awsLogsAppender.getMetrics().getLostEvents());
+    }
+
+    @Test
+    public void testShouldNotBlockWhileCircuitBreakerIsOpen() {
+        AWSLogsStub mockedAwsLogsStub = mock(AWSLogsStub.class);
+        CircuitBreaker circuitBreaker = new CircuitBreaker(1, 60000, new AppenderMetrics());
+        circuitBreaker.onFailure(CloudWatchLogsException.builder().statusCode(503).message("Unavailable").build());
+        when(mockedAwsLogsStub.getCircuitBreaker()).thenReturn(circuitBreaker);
+        AwsLogsAppender awsLogsAppender = awsLogsAppender(mockedAwsLogsStub, 1, Long.MAX_VALUE, 5000);
+        awsLogsAppender.setDegradedMode(AwsLogsAppender.DEGRADED_MODE_SAMPLE);
+        AsyncWorker asyncWorker = asyncWorker(awsLogsAppender);
+        asyncWorker.start();
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < 10; i++) {
+            asyncWorker.append(event(Level.INFO));
+            asyncWorker.append(event(Level.ERROR));
+        }
+        assertTrue(System.currentTimeMillis() - start < 1000);
+        // nothing is sent while it is open
+        verify(mockedAwsLogsStub, never()).logEvents(anyInputLogEvents());
+        // the first INFO event was kept by sampling, then the queue (2 events) was full
+        assertEquals(18, awsLogsAppender.getMetrics().getLostEvents());
+        asyncWorker.stop();
+    }
+
+    @Test
+    public void testShouldSampleAndSummarizeUnderPressure() {
+        final List<String> logged = new ArrayList<String>();
+        AWSLogsStub mockedAwsLogsStub = mock(AWSLogsStub.class);
+        doAnswer(invocation -> {
+            Collection<InputLogEvent> events = invocation.getArgument(0);
+            for (InputLogEvent event : events) {
+                logged.add(event.message());
+            }
+            return null;
+        }).when(mockedAwsLogsStub).logEvents(anyInputLogEvents());
+        AwsLogsAppender awsLogsAppender = awsLogsAppender(mockedAwsLogsStub, 10, Long.MAX_VALUE, 0);
+        awsLogsAppender.setLoadShedding("sample");
+        awsLogsAppender.setSheddingSummaryIntervalMillis(1);
+        AsyncWorker asyncWorker = asyncWorker(awsLogsAppender);
+        // not started yet, so nothing is drained and the pressure builds up
+        for (int i = 0; i < 100; i++) {
+            asyncWorker.append(event(Level.INFO));
+        }
+        asyncWorker.start();
+        asyncWorker.stop();
+        long lost = awsLogsAppender.getMetrics().getLostEvents();
+        assertTrue(lost > 0);
+        assertTrue(logged.contains("Dropped " + lost + " events from logger " + AsyncWorkerTest.class.getName()
+                + " at level INFO"));
+    }
+
+    @Test
+    public void testShouldNotPileUpSummariesWhileNothingIsSent() throws InterruptedException {
+        final List<String> logged = Collections.synchronizedList(new ArrayList<String>());
+        AWSLogsStub mockedAwsLogsStub = mock(AWSLogsStub.class);
+        doAnswer(invocation -> {
+            Collection<InputLogEvent> events = invocation.getArgument(0);
+            for (InputLogEvent event : events) {
+                logged.add(event.message());
+            }
+            return null;
+        }).when(mockedAwsLogsStub).logEvents(anyInputLogEvents());
+        CircuitBreaker circuitBreaker = new CircuitBreaker(1, 300, new AppenderMetrics());
+        circuitBreaker.onFailure(CloudWatchLogsException.builder().statusCode(503).message("Unavailable").build());
+        when(mockedAwsLogsStub.getCircuitBreaker()).thenReturn(circuitBreaker);
+        AwsLogsAppender awsLogsAppender = awsLogsAppender(mockedAwsLogsStub, 1000, 1, 0);
+        awsLogsAppender.setDegradedMode(AwsLogsAppender.DEGRADED_MODE_SAMPLE);
+        awsLogsAppender.setSheddingSummaryIntervalMillis(1);
+        AsyncWorker asyncWorker = asyncWorker(awsLogsAppender);
+        asyncWorker.start();
+        // events are dropped in every summary interval, while the circuit breaker stays open
+        long end = System.currentTimeMillis() + 200;
+        while (System.currentTimeMillis() < end) {
+            asyncWorker.append(event(Level.INFO));
+            asyncWorker.append(event(Level.INFO));
+            Thread.sleep(1);
+        }
+        // until the probe went through, and what waited was sent
+        verify(mockedAwsLogsStub, timeout(1000).atLeastOnce()).logEvents(anyInputLogEvents());
+        asyncWorker.stop();
+        int summaries = 0;
+        for (String message : logged) {
+            if (message.startsWith("Dropped ")) {
+                summaries++;
+            }
+        }
+        assertTrue("Sent " + summaries + " summaries", summaries <= 3);
+    }
+
+    @Test
+    public void testShouldDrainInParallelOnStop() {
+        final AtomicInteger concurrentCalls = new AtomicInteger();
+        final AtomicInteger maxConcurrentCalls = new AtomicInteger();
+        AWSLogsStub mockedAwsLogsStub = mock(AWSLogsStub.class);
+        when(mockedAwsLogsStub.allowsConcurrentCalls()).thenReturn(true);
+        doAnswer(invocation -> {
+            maxConcurrentCalls.accumulateAndGet(concurrentCalls.incrementAndGet(), Math::max);
+            Thread.sleep(300);
+            concurrentCalls.decrementAndGet();
+            return null;
+        }).when(mockedAwsLogsStub).logEvents(anyInputLogEvents());
+        AwsLogsAppender awsLogsAppender = awsLogsAppender(mockedAwsLogsStub, 100, Long.MAX_VALUE, 0);
+        awsLogsAppender.setShutdownTimeoutMillis(5000);
+        AsyncWorker asyncWorker = asyncWorker(awsLogsAppender);
+        // 3 batches, at most 5 of these fit in one
+        for (int i = 0; i < 12; i++) {
+            asyncWorker.append(bigEvent());
+        }
+        asyncWorker.start();
+        asyncWorker.stop();
+        verify(mockedAwsLogsStub, times(3)).logEvents(anyInputLogEvents());
+        assertTrue(maxConcurrentCalls.get() > 1);
+        assertEquals(12, asyncWorker.getShutdownFlushedEvents());
+        assertEquals(0, asyncWorker.getShutdownAbandonedEvents());
+    }
+
+    @Test
+    public void testShouldAbandonEventsAfterShutdownDeadline() {
+        AWSLogsStub mockedAwsLogsStub = mock(AWSLogsStub.class);
+        doAnswer(invocation -> {
+            Thread.sleep(5000);
+            return null;
+        }).when(mockedAwsLogsStub).logEvents(anyInputLogEvents());
+        AwsLogsAppender awsLogsAppender = awsLogsAppender(mockedAwsLogsStub, 100, Long.MAX_VALUE, 0);
+        awsLogsAppender.setShutdownTimeoutMillis(300);
+        AsyncWorker asyncWorker = asyncWorker(awsLogsAppender);
+        for (int i = 0; i < 12; i++) {
+            asyncWorker.append(bigEvent());
+        }
+        asyncWorker.start();
+        long start = System.currentTimeMillis();
+        asyncWorker.stop();
+        assertTrue(System.currentTimeMillis() - start < 1500);
+        assertEquals(0, asyncWorker.getShutdownFlushedEvents());
+        assertEquals(12, asyncWorker.getShutdownAbandonedEvents());
+        // the first batch was in flight, it may still make it
+        assertEquals(7, awsLogsAppender.getMetrics().getLostEvents());
+    }
+
+    @Test
+    public void testShouldEncodeDeferredEventsWhenAppenderStops() {
+        final List<String> logged = Collections.synchronizedList(new ArrayList<String>());
+        AWSLogsStub mockedAwsLogsStub = mock(AWSLogsStub.class);
+        doAnswer(invocation -> {
+            Collection<InputLogEvent> events = invocation.getArgument(0);
+            for (InputLogEvent event : events) {
+                logged.add(event.message());
+            }
+            return null;
+        }).when(mockedAwsLogsStub).logEvents(anyInputLogEvents());
+        LoggerContext loggerContext = new LoggerContext();
+        PatternLayout layout = new PatternLayout();
+        layout.setContext(loggerContext);
+        layout.setPattern("%msg");
+        AwsLogsAppender awsLogsAppender = awsLogsAppender(mockedAwsLogsStub, 100, Long.MAX_VALUE, 5000);
+        awsLogsAppender.setContext(loggerContext);
+        awsLogsAppender.setLayout(layout);
+        awsLogsAppender.setDeferEncoding(true);
+        awsLogsAppender.start();
+        awsLogsAppender.doAppend(dummyEvent());
+        awsLogsAppender.doAppend(dummyEvent());
+        // the events are only encoded and sent while stopping
+        awsLogsAppender.stop();
+        assertEquals(2, logged.size());
+        for (String message : logged) {
+            assertTrue(message.startsWith("Dummy "));
+        }
+    }
+
+    @Test
+    public void testShouldEncodeOnWorkerWhenDeferred() {
+        AWSLogsStub mockedAwsLogsStub = mock(AWSLogsStub.class);
+        AwsLogsAppender awsLogsAppender = awsLogsAppender(mockedAwsLogsStub, 5, Long.MAX_VALUE, 5000);
+        awsLogsAppender.setDeferEncoding(true);
+        AsyncWorker asyncWorker = asyncWorker(awsLogsAppender);
+        asyncWorker.start();
+        ILoggingEvent event = dummyEvent();
+        asyncWorker.append(event);
+        asyncWorker.stop();
+        verify(mockedAwsLogsStub).logEvents(argThat(events -> events.size() == 1
+                && events.iterator().next().message().equals("[WARN] " + event.getFormattedMessage() + CoreConstants.LINE_SEPARATOR)
+                && events.iterator().next().timestamp() == event.getTimeStamp()));
+    }
+
+    @Test
+    public void testShouldLogAfterFlushThresholdBytes() {
+        AWSLogsStub mockedAwsLogsStub = mock(AWSLogsStub.class);
+        AwsLogsAppender awsLogsAppender = awsLogsAppender(mockedAwsLogsStub, 100, Long.MAX_VALUE, 5000);
+        awsLogsAppender.setMaxQueueBytes(1000);
+        awsLogsAppender.setFlushThresholdBytes(150);
+        AsyncWorker asyncWorker = asyncWorker(awsLogsAppender);
+        asyncWorker.start();
+        asyncWorker.append(dummyEvent());
+        verify(mockedAwsLogsStub, after(500).never()).logEvents(anyInputLogEvents());
+        asyncWorker.append(dummyEvent());
+        asyncWorker.append(dummyEvent());
+        verify(mockedAwsLogsStub, timeout(1000)).logEvents(anyInputLogEvents());
+        asyncWorker.stop();
+    }
+
+    @Test
+    public void testShouldSplitTooBigBatchesInOrder() {
+        final List<InputLogEvent> logged = new ArrayList<InputLogEvent>();
+        AWSLogsStub mockedAwsLogsStub = mock(AWSLogsStub.class);
+        doAnswer(invocation -> {
+            Collection<InputLogEvent> events = invocation.getArgument(0);
+            int batchSize = 0;
+            for (InputLogEvent event : events) {
+                batchSize += event.message().getBytes(StandardCharsets.UTF_8).length + 26;
+            }
+            assertTrue(batchSize <= 1048576);
+            logged.addAll(events);
+            return null;
+        }).when(mockedAwsLogsStub).logEvents(anyInputLogEvents());
+        AsyncWorker asyncWorker = asyncWorker(mockedAwsLogsStub, 10, Long.MAX_VALUE, 5000);
+        asyncWorker.start();
+        List<Long> timestamps = new ArrayList<Long>();
+        for (int i = 0; i < 10; i++) {
+            ILoggingEvent event = bigEvent();
+            timestamps.add(event.getTimeStamp());
+            asyncWorker.append(event);
+        }
+        asyncWorker.stop();
+        verify(mockedAwsLogsStub, atLeast(2)).logEvents(anyInputLogEvents());
+        List<Long> loggedTimestamps = new ArrayList<Long>();
+        for (InputLogEvent event : logged) {
+            loggedTimestamps.add(event.timestamp());
+        }
+        assertEquals(timestamps, loggedTimestamps);
+    }
+
+    @Test
+    public void testShouldSendAllBatchesInOrderWhenPipelined() {
+        final List<InputLogEvent> logged = Collections.synchronizedList(new ArrayList<InputLogEvent>());
+        AWSLogsStub mockedAwsLogsStub = mock(AWSLogsStub.class);
+        doAnswer(invocation -> {
+            Thread.sleep(20);
+            logged.addAll(invocation.getArgument(0));
+            return null;
+        }).when(mockedAwsLogsStub).logEvents(anyInputLogEvents());
+        AwsLogsAppender awsLogsAppender = awsLogsAppender(mockedAwsLogsStub, 1, 1, 5000);
+        awsLogsAppender.setMaxInFlightBatches(3);
+        AsyncWorker asyncWorker = asyncWorker(awsLogsAppender);
+        asyncWorker.start();
+        List<Long> timestamps = new ArrayList<Long>();
+        for (int i = 0; i < 20; i++) {
+            ILoggingEvent event = dummyEvent();
+            timestamps.add(event.getTimeStamp());
+            asyncWorker.append(event);
+        }
+        asyncWorker.stop();
+        List<Long> loggedTimestamps = new ArrayList<Long>();
+        for (InputLogEvent event : logged) {
+            loggedTimestamps.add(event.timestamp());
+        }
+        assertEquals(timestamps, loggedTimestamps);
+    }
+
+    @Test
+    public void testShouldWaitForOutstandingRequestsWhenAsync() {
+        final List<CompletableFuture<Void>> outstanding = Collections.synchronizedList(new ArrayList<CompletableFuture<Void>>());
+        AWSLogsStub mockedAwsLogsStub = mock(AWSLogsStub.class);
+        when(mockedAwsLogsStub.isAsync()).thenReturn(true);
+        when(mockedAwsLogsStub.logEventsAsync(anyInputLogEvents())).thenAnswer(invocation -> {
+            CompletableFuture<Void> future = new CompletableFuture<Void>();
+            outstanding.add(future);
+            return future;
+        });
+        AwsLogsAppender awsLogsAppender = awsLogsAppender(mockedAwsLogsStub, 1, 1, 5000);
+        awsLogsAppender.setMaxInFlightBatches(2);
+        final AsyncWorker asyncWorker = asyncWorker(awsLogsAppender);
+        asyncWorker.start();
+        asyncWorker.append(dummyEvent());
+        verify(mockedAwsLogsStub, timeout(1000).times(1)).logEventsAsync(anyInputLogEvents());
+        asyncWorker.append(dummyEvent());
+        verify(mockedAwsLogsStub, timeout(1000).times(2)).logEventsAsync(anyInputLogEvents());
+        // only 2 requests may be outstanding
+        asyncWorker.append(dummyEvent());
+        verify(mockedAwsLogsStub, after(200).times(2)).logEventsAsync(anyInputLogEvents());
+        Thread stopper = new Thread(asyncWorker::stop);
+        stopper.start();
+        outstanding.get(0).complete(null);
+        verify(mockedAwsLogsStub, timeout(1000).times(3)).logEventsAsync(anyInputLogEvents());
+        outstanding.get(1).complete(null);
+        outstanding.get(2).complete(null);
+        try {
+            stopper.join(1000);
+        } catch (InterruptedException e) {
+            return;
+        }
+        assertFalse(stopper.isAlive());
+        verify(mockedAwsLogsStub, never()).logEvents(anyInputLogEvents());
+    }
 }
@@ -0,0 +1,91 @@
+package ca.pjer.logback;
+
+import org.junit.Test;
+import software.amazon.awssdk.services.cloudwatchlogs.model.InputLogEvent;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class BatchPreparerTest {
+
+    private static final long NOW = 1600000000000L;
+    private static final long HOUR = TimeUnit.HOURS.toMillis(1);
+
+    private static InputLogEvent event(long timestamp) {
+        return InputLogEvent.builder().timestamp(timestamp).message("at " + timestamp).build();
+    }
+
+    private static List<Long> timestamps(List<InputLogEvent> events) {
+        List<Long> timestamps = new ArrayList<Long>();
+        for (InputLogEvent event : events) {
+            timestamps.add(event.timestamp());
+        }
+        return timestamps;
+    }
+
+    @Test
+    public void testShouldKeepSortedBatchAsIs() {
+        List<InputLogEvent> events = Arrays.asList(event(NOW - 2), event(NOW - 1), event(NOW - 1), event(NOW));
+        List<List<InputLogEvent>> batches = new BatchPreparer(0, BatchPreparer.DROP).prepare(events, NOW);
+        assertEquals(1, batches.size());
+        assertSame(events, batches.get(0));
+    }
+
+    @Test
+    public void testShouldSortWithoutCopyingEvents() {
+        List<InputLogEvent> events = Arrays.asList(event(NOW), event(NOW - 2), event(NOW - 1));
+        List<List<InputLogEvent>> batches = new BatchPreparer(0, BatchPreparer.DROP).prepare(events, NOW);
+        assertEquals(1, batches.size());
+        assertEquals(Arrays.asList(NOW - 2, NOW - 1, NOW), timestamps(batches.get(0)));
+        assertEquals(new HashSet<InputLogEvent>(events), new HashSet<InputLogEvent>(batches.get(0)));
+        assertEquals(Arrays.asList(NOW, NOW - 2, NOW - 1), timestamps(events));
+    }
+
+    @Test
+    public void testShouldSplitAlong24Hours() {
+        List<InputLogEvent> events = Arrays.asList(event(NOW), event(NOW - 50 * HOUR), event(NOW - 30 * HOUR),
+                event(NOW - 26 * HOUR), event(NOW - 24 * HOUR));
+        List<List<InputLogEvent>> batches = new BatchPreparer(0, BatchPreparer.DROP).prepare(events, NOW);
+        assertEquals(3, batches.size());
+        assertEquals(Arrays.asList(NOW - 50 * HOUR, NOW - 30 * HOUR), timestamps(batches.get(0)));
+        assertEquals(Arrays.asList(NOW - 26 * HOUR, NOW - 24 * HOUR), timestamps(batches.get(1)));
+        assertEquals(Collections.singletonList(NOW), timestamps(batches.get(2)));
+    }
+
+    @Test
+    public void testShouldDropEventsOutOfRange() {
+        List<InputLogEvent> events = Arrays.asList(event(NOW - 15 * 24 * HOUR), event(NOW), event(NOW + 3 * HOUR));
+        List<List<InputLogEvent>> batches = new BatchPreparer(0, BatchPreparer.DROP).prepare(events, NOW);
+        assertEquals(1, batches.size());
+        assertEquals(Collections.singletonList(NOW), timestamps(batches.get(0)));
+
+        // or older than the retention period
+        events = Arrays.asList(event(NOW - 4 * 24 * HOUR), event(NOW - 2 * 24 * HOUR));
+        batches = new BatchPreparer(3, BatchPreparer.DROP).prepare(events, NOW);
+        assertEquals(1, batches.size());
+        assertEquals(Collections.singletonList(NOW - 2 * 24 * HOUR), timestamps(batches.get(0)));
+
+        events = Collections.singletonList(event(NOW + 3 * HOUR));
+        assertTrue(new BatchPreparer(0, BatchPreparer.DROP).prepare(events, NOW).isEmpty());
+    }
+
+    @Test
+    public void testShouldClampEventsOutOfRange() {
+        InputLogEvent now = event(NOW);
+        List<InputLogEvent> events = Arrays.asList(event(NOW + 3 * HOUR), now, event(NOW - 15 * 24 * HOUR));
+        List<List<InputLogEvent>> batches = new BatchPreparer(0, BatchPreparer.CLAMP).prepare(events, NOW);
+        long oldest = NOW - BatchPreparer.MAX_AGE_MILLIS + BatchPreparer.MARGIN_MILLIS;
+        long newest = NOW + BatchPreparer.MAX_FUTURE_MILLIS - BatchPreparer.MARGIN_MILLIS;
+        // clamping to the oldest accepted timestamp makes the batch span 14 days
+        assertEquals(2, batches.size());
+        assertEquals(Collections.singletonList(oldest), timestamps(batches.get(0)));
+        assertEquals(Arrays.asList(NOW, newest), timestamps(batches.get(1)));
+        assertSame(now, batches.get(1).get(0));
+    }
+}
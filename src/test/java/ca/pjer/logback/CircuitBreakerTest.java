@@ -0,0 +1,72 @@
+package ca.pjer.logback;
+
+import ca.pjer.logback.metrics.AppenderMetrics;
+import org.junit.Test;
+import software.amazon.awssdk.services.cloudwatchlogs.model.CloudWatchLogsException;
+import software.amazon.awssdk.services.cloudwatchlogs.model.InvalidParameterException;
+
+import static org.junit.Assert.*;
+
+public class CircuitBreakerTest {
+
+    private static Exception serverError() {
+        return CloudWatchLogsException.builder().statusCode(503).message("Unavailable").build();
+    }
+
+    @Test
+    public void testShouldOpenAfterConsecutiveFailures() {
+        AppenderMetrics metrics = new AppenderMetrics();
+        CircuitBreaker circuitBreaker = new CircuitBreaker(3, 60000, metrics);
+        assertEquals("CLOSED", metrics.getCircuitBreakerState());
+        circuitBreaker.onFailure(serverError());
+        circuitBreaker.onFailure(serverError());
+        circuitBreaker.onSuccess();
+        circuitBreaker.onFailure(serverError());
+        circuitBreaker.onFailure(serverError());
+        assertTrue(circuitBreaker.isClosed());
+        assertTrue(circuitBreaker.allowRequest());
+
+        circuitBreaker.onFailure(serverError());
+        assertEquals(CircuitBreaker.OPEN, circuitBreaker.getState());
+        assertFalse(circuitBreaker.allowRequest());
+        assertFalse(circuitBreaker.canProbe());
+        assertEquals("OPEN", metrics.getCircuitBreakerState());
+        assertEquals(Long.valueOf(1), metrics.getCircuitBreakerTransitions().get("OPEN"));
+    }
+
+    @Test
+    public void testShouldNotOpenOnRejectedRequests() {
+        CircuitBreaker circuitBreaker = new CircuitBreaker(1, 60000, new AppenderMetrics());
+        circuitBreaker.onFailure(InvalidParameterException.builder().statusCode(400).message("Invalid").build());
+        assertTrue(circuitBreaker.isClosed());
+    }
+
+    @Test
+    public void testShouldProbeOnceWhenHalfOpen() throws InterruptedException {
+        AppenderMetrics metrics = new AppenderMetrics();
+        CircuitBreaker circuitBreaker = new CircuitBreaker(1, 50, metrics);
+        circuitBreaker.onFailure(serverError());
+        assertFalse(circuitBreaker.allowRequest());
+
+        Thread.sleep(60);
+        assertTrue(circuitBreaker.canProbe());
+        assertTrue(circuitBreaker.allowRequest());
+        assertEquals(CircuitBreaker.HALF_OPEN, circuitBreaker.getState());
+        // only one probe at a time
+        assertFalse(circuitBreaker.allowRequest());
+
+        // a failed probe opens it again
+        circuitBreaker.onFailure(serverError());
+        assertEquals(CircuitBreaker.OPEN, circuitBreaker.getState());
+        assertFalse(circuitBreaker.allowRequest());
+
+        Thread.sleep(60);
+        assertTrue(circuitBreaker.allowRequest());
+        circuitBreaker.onSuccess();
+        assertTrue(circuitBreaker.isClosed());
+        assertEquals("CLOSED", metrics.getCircuitBreakerState());
+        assertEquals(Long.valueOf(2), metrics.getCircuitBreakerTransitions().get("OPEN"));
+        assertEquals(Long.valueOf(2), metrics.getCircuitBreakerTransitions().get("HALF_OPEN"));
+        assertEquals(Long.valueOf(1), metrics.getCircuitBreakerTransitions().get("CLOSED"));
+    }
+}
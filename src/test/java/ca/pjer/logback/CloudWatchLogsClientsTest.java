@@ -0,0 +1,40 @@
+package ca.pjer.logback;
+
+import org.junit.Test;
+import software.amazon.awssdk.utils.SdkAutoCloseable;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class CloudWatchLogsClientsTest {
+
+    @Test
+    public void testShouldShareClientUntilLastRelease() {
+        CloudWatchLogsClients.Key key = new CloudWatchLogsClients.Key(false, "us-east-1", null, "id", "secret", true);
+        CloudWatchLogsClients.Key sameKey = new CloudWatchLogsClients.Key(false, "us-east-1", null, "id", "secret", true);
+        SdkAutoCloseable client = mock(SdkAutoCloseable.class);
+        assertSame(client, CloudWatchLogsClients.acquire(key, () -> client));
+        assertSame(client, CloudWatchLogsClients.acquire(sameKey, () -> mock(SdkAutoCloseable.class)));
+        CloudWatchLogsClients.release(key);
+        verify(client, never()).close();
+        CloudWatchLogsClients.release(sameKey);
+        verify(client).close();
+        assertNotSame(client, CloudWatchLogsClients.acquire(key, () -> mock(SdkAutoCloseable.class)));
+        CloudWatchLogsClients.release(key);
+    }
+
+    @Test
+    public void testShouldNotShareClientAcrossConfigurations() {
+        CloudWatchLogsClients.Key key = new CloudWatchLogsClients.Key(false, "us-east-1", null, null, null, true);
+        CloudWatchLogsClients.Key otherRegion = new CloudWatchLogsClients.Key(false, "eu-west-1", null, null, null, true);
+        CloudWatchLogsClients.Key async = new CloudWatchLogsClients.Key(true, "us-east-1", null, null, null, true);
+        SdkAutoCloseable client = mock(SdkAutoCloseable.class);
+        CloudWatchLogsClients.acquire(key, () -> client);
+        assertNotSame(client, CloudWatchLogsClients.acquire(otherRegion, () -> mock(SdkAutoCloseable.class)));
+        assertNotSame(client, CloudWatchLogsClients.acquire(async, () -> mock(SdkAutoCloseable.class)));
+        CloudWatchLogsClients.release(key);
+        CloudWatchLogsClients.release(otherRegion);
+        CloudWatchLogsClients.release(async);
+        verify(client).close();
+    }
+}
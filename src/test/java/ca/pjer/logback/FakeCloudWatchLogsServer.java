@@ -0,0 +1,509 @@
+package ca.pjer.logback;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// An in-process stand-in for the CloudWatch Logs JSON endpoint, to point cloudWatchEndpoint at.
+// It handles CreateLogGroup, CreateLogStream, PutRetentionPolicy and PutLogEvents, enforces the PutLogEvents
+// limits (and optionally the sequence tokens), and can add latency, throttling and server errors.
+class FakeCloudWatchLogsServer {
+
+    private static final String TARGET_PREFIX = "Logs_20140328.";
+    private static final int MAX_BATCH_EVENTS = 10000;
+    private static final int MAX_BATCH_SIZE = 1048576;
+    private static final int EVENT_SIZE_PADDING = 26;
+    private static final long MAX_BATCH_SPAN_MILLIS = TimeUnit.HOURS.toMillis(24);
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final Map<String, Map<String, LogStream>> logGroups = new HashMap<String, Map<String, LogStream>>();
+    private final Map<String, Integer> retentionInDays = new HashMap<String, Integer>();
+    private final Map<String, AtomicInteger> requestCounts = new ConcurrentHashMap<String, AtomicInteger>();
+    private final Random random = new Random(42);
+
+    private volatile long latencyMillis;
+    private volatile double throttlingRate;
+    private volatile double serverErrorRate;
+    private volatile boolean enforceSequenceToken;
+    private int callsBeforeFailures;
+    private int failuresLeft;
+    private int failureStatus;
+    private String failureType;
+
+    FakeCloudWatchLogsServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        executor = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable);
+            thread.setDaemon(true);
+            thread.setName("Fake CloudWatch Logs");
+            return thread;
+        });
+        server.setExecutor(executor);
+        server.createContext("/", this::handle);
+    }
+
+    FakeCloudWatchLogsServer start() {
+        server.start();
+        return this;
+    }
+
+    void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    String getEndpoint() {
+        return "http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort();
+    }
+
+    void setLatencyMillis(long latencyMillis) {
+        this.latencyMillis = latencyMillis;
+    }
+
+    // Fraction of the PutLogEvents calls answered with a ThrottlingException
+    void setThrottlingRate(double throttlingRate) {
+        this.throttlingRate = throttlingRate;
+    }
+
+    // Fraction of the PutLogEvents calls answered with a ServiceUnavailableException
+    void setServerErrorRate(double serverErrorRate) {
+        this.serverErrorRate = serverErrorRate;
+    }
+
+    void setEnforceSequenceToken(boolean enforceSequenceToken) {
+        this.enforceSequenceToken = enforceSequenceToken;
+    }
+
+    // Answers the next PutLogEvents calls with the given error, whatever the rates
+    synchronized void failNextPutLogEvents(int count, int status, String errorType) {
+        failPutLogEvents(0, count, status, errorType);
+    }
+
+    // Same, once the given number of calls went through
+    synchronized void failPutLogEvents(int after, int count, int status, String errorType) {
+        callsBeforeFailures = after;
+        failuresLeft = count;
+        failureStatus = status;
+        failureType = errorType;
+    }
+
+    int getRequestCount(String action) {
+        AtomicInteger count = requestCounts.get(action);
+        return count == null ? 0 : count.get();
+    }
+
+    synchronized List<String> getMessages(String logGroupName, String logStreamName) {
+        LogStream logStream = logStream(logGroupName, logStreamName);
+        List<String> messages = new ArrayList<String>();
+        if (logStream != null) {
+            for (Map<String, Object> event : logStream.events) {
+                messages.add((String) event.get("message"));
+            }
+        }
+        return messages;
+    }
+
+    synchronized Integer getRetentionInDays(String logGroupName) {
+        return retentionInDays.get(logGroupName);
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            String target = exchange.getRequestHeaders().getFirst("X-Amz-Target");
+            String action = target != null && target.startsWith(TARGET_PREFIX) ?
+                    target.substring(TARGET_PREFIX.length()) :
+                    String.valueOf(target);
+            requestCounts.computeIfAbsent(action, key -> new AtomicInteger()).incrementAndGet();
+            Map<String, Object> request = Json.parseObject(readBody(exchange.getRequestBody()));
+            if (latencyMillis > 0) {
+                Thread.sleep(latencyMillis);
+            }
+            respond(exchange, 200, dispatch(action, request));
+        } catch (Failure failure) {
+            Map<String, Object> error = new LinkedHashMap<String, Object>();
+            error.put("__type", failure.type);
+            error.put("message", failure.getMessage());
+            error.putAll(failure.fields);
+            exchange.getResponseHeaders().set("x-amzn-ErrorType", failure.type);
+            respond(exchange, failure.status, error);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (RuntimeException e) {
+            respond(exchange, 400, Collections.<String, Object>singletonMap("__type", "SerializationException"));
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private Map<String, Object> dispatch(String action, Map<String, Object> request) throws Failure {
+        switch (action) {
+            case "CreateLogGroup":
+                return createLogGroup(request);
+            case "PutRetentionPolicy":
+                return putRetentionPolicy(request);
+            case "CreateLogStream":
+                return createLogStream(request);
+            case "PutLogEvents":
+                injectFailure();
+                return putLogEvents(request);
+            default:
+                throw new Failure(400, "UnknownOperationException", "Unknown operation " + action);
+        }
+    }
+
+    private synchronized Map<String, Object> createLogGroup(Map<String, Object> request) throws Failure {
+        String logGroupName = (String) request.get("logGroupName");
+        if (logGroups.containsKey(logGroupName)) {
+            throw new Failure(400, "ResourceAlreadyExistsException", "The specified log group already exists");
+        }
+        logGroups.put(logGroupName, new HashMap<String, LogStream>());
+        return Collections.emptyMap();
+    }
+
+    private synchronized Map<String, Object> putRetentionPolicy(Map<String, Object> request) throws Failure {
+        String logGroupName = (String) request.get("logGroupName");
+        if (!logGroups.containsKey(logGroupName)) {
+            throw new Failure(400, "ResourceNotFoundException", "The specified log group does not exist");
+        }
+        retentionInDays.put(logGroupName, ((Number) request.get("retentionInDays")).intValue());
+        return Collections.emptyMap();
+    }
+
+    private synchronized Map<String, Object> createLogStream(Map<String, Object> request) throws Failure {
+        Map<String, LogStream> logStreams = logGroups.get(request.get("logGroupName"));
+        if (logStreams == null) {
+            throw new Failure(400, "ResourceNotFoundException", "The specified log group does not exist");
+        }
+        String logStreamName = (String) request.get("logStreamName");
+        if (logStreams.containsKey(logStreamName)) {
+            throw new Failure(400, "ResourceAlreadyExistsException", "The specified log stream already exists");
+        }
+        logStreams.put(logStreamName, new LogStream());
+        return Collections.emptyMap();
+    }
+
+    private void injectFailure() throws Failure {
+        synchronized (this) {
+            if (callsBeforeFailures > 0) {
+                callsBeforeFailures--;
+            } else if (failuresLeft > 0) {
+                failuresLeft--;
+                throw new Failure(failureStatus, failureType, "Injected failure");
+            }
+        }
+        double draw;
+        synchronized (random) {
+            draw = random.nextDouble();
+        }
+        if (draw < throttlingRate) {
+            throw new Failure(400, "ThrottlingException", "Rate exceeded");
+        }
+        if (draw < throttlingRate + serverErrorRate) {
+            throw new Failure(503, "ServiceUnavailableException", "Service unavailable");
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private synchronized Map<String, Object> putLogEvents(Map<String, Object> request) throws Failure {
+        LogStream logStream = logStream((String) request.get("logGroupName"), (String) request.get("logStreamName"));
+        if (logStream == null) {
+            throw new Failure(400, "ResourceNotFoundException", "The specified log group or stream does not exist");
+        }
+        List<Map<String, Object>> events = (List<Map<String, Object>>) request.get("logEvents");
+        if (events == null || events.isEmpty()) {
+            throw new Failure(400, "InvalidParameterException", "logEvents must not be empty");
+        }
+        if (events.size() > MAX_BATCH_EVENTS) {
+            throw new Failure(400, "InvalidParameterException", "Too many log events in the batch");
+        }
+        long size = 0;
+        long previousTimestamp = Long.MIN_VALUE;
+        for (Map<String, Object> event : events) {
+            long timestamp = ((Number) event.get("timestamp")).longValue();
+            if (timestamp < previousTimestamp) {
+                throw new Failure(400, "InvalidParameterException", "Log events in a single PutLogEvents request must be in chronological order");
+            }
+            previousTimestamp = timestamp;
+            size += ((String) event.get("message")).getBytes(StandardCharsets.UTF_8).length + EVENT_SIZE_PADDING;
+        }
+        if (size > MAX_BATCH_SIZE) {
+            throw new Failure(400, "InvalidParameterException", "Upload too large: " + size + " bytes exceeds limit of " + MAX_BATCH_SIZE);
+        }
+        long firstTimestamp = ((Number) events.get(0).get("timestamp")).longValue();
+        if (previousTimestamp - firstTimestamp > MAX_BATCH_SPAN_MILLIS) {
+            throw new Failure(400, "InvalidParameterException", "The batch of log events in a single PutLogEvents request cannot span more than 24 hours");
+        }
+        if (enforceSequenceToken && !logStream.events.isEmpty()
+                && !String.valueOf(logStream.sequenceToken).equals(request.get("sequenceToken"))) {
+            throw new Failure(400, "InvalidSequenceTokenException", "The given sequenceToken is invalid",
+                    Collections.<String, Object>singletonMap("expectedSequenceToken", logStream.sequenceToken));
+        }
+        logStream.events.addAll(events);
+        logStream.sequenceToken = String.format("%056d", logStream.events.size());
+        return Collections.<String, Object>singletonMap("nextSequenceToken", logStream.sequenceToken);
+    }
+
+    private LogStream logStream(String logGroupName, String logStreamName) {
+        Map<String, LogStream> logStreams = logGroups.get(logGroupName);
+        return logStreams == null ? null : logStreams.get(logStreamName);
+    }
+
+    private static String readBody(InputStream inputStream) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = inputStream.read(buffer)) != -1) {
+            body.write(buffer, 0, read);
+        }
+        return new String(body.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private static void respond(HttpExchange exchange, int status, Map<String, Object> body) throws IOException {
+        byte[] bytes = Json.write(body).getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/x-amz-json-1.1");
+        exchange.getResponseHeaders().set("x-amzn-RequestId", java.util.UUID.randomUUID().toString());
+        exchange.sendResponseHeaders(status, bytes.length);
+        OutputStream outputStream = exchange.getResponseBody();
+        outputStream.write(bytes);
+        outputStream.close();
+    }
+
+    private static class LogStream {
+
+        private final List<Map<String, Object>> events = new ArrayList<Map<String, Object>>();
+        private String sequenceToken;
+    }
+
+    private static class Failure extends Exception {
+
+        private final int status;
+        private final String type;
+        private final Map<String, Object> fields;
+
+        private Failure(int status, String type, String message) {
+            this(status, type, message, Collections.<String, Object>emptyMap());
+        }
+
+        private Failure(int status, String type, String message, Map<String, Object> fields) {
+            super(message);
+            this.status = status;
+            this.type = type;
+            this.fields = fields;
+        }
+    }
+
+    // Just enough JSON for the CloudWatch Logs requests and responses
+    static final class Json {
+
+        private final String text;
+        private int position;
+
+        private Json(String text) {
+            this.text = text;
+        }
+
+        @SuppressWarnings("unchecked")
+        static Map<String, Object> parseObject(String text) {
+            Json json = new Json(text);
+            Object value = json.parseValue();
+            json.skipWhitespace();
+            if (json.position != text.length() || !(value instanceof Map)) {
+                throw new IllegalArgumentException("Not a JSON object");
+            }
+            return (Map<String, Object>) value;
+        }
+
+        private Object parseValue() {
+            skipWhitespace();
+            char c = peek();
+            switch (c) {
+                case '{':
+                    return parseMap();
+                case '[':
+                    return parseList();
+                case '"':
+                    return parseString();
+                case 't':
+                    expect("true");
+                    return Boolean.TRUE;
+                case 'f':
+                    expect("false");
+                    return Boolean.FALSE;
+                case 'n':
+                    expect("null");
+                    return null;
+                default:
+                    return parseNumber();
+            }
+        }
+
+        private Map<String, Object> parseMap() {
+            Map<String, Object> map = new LinkedHashMap<String, Object>();
+            position++;
+            skipWhitespace();
+            if (peek() == '}') {
+                position++;
+                return map;
+            }
+            while (true) {
+                skipWhitespace();
+                String key = parseString();
+                skipWhitespace();
+                expect(":");
+                map.put(key, parseValue());
+                skipWhitespace();
+                if (peek() == '}') {
+                    position++;
+                    return map;
+                }
+                expect(",");
+            }
+        }
+
+        private List<Object> parseList() {
+            List<Object> list = new ArrayList<Object>();
+            position++;
+            skipWhitespace();
+            if (peek() == ']') {
+                position++;
+                return list;
+            }
+            while (true) {
+                list.add(parseValue());
+                skipWhitespace();
+                if (peek() == ']') {
+                    position++;
+                    return list;
+                }
+                expect(",");
+            }
+        }
+
+        private String parseString() {
+            expect("\"");
+            StringBuilder builder = new StringBuilder();
+            while (true) {
+                char c = text.charAt(position++);
+                if (c == '"') {
+                    return builder.toString();
+                }
+                if (c != '\\') {
+                    builder.append(c);
+                    continue;
+                }
+                char escaped = text.charAt(position++);
+                switch (escaped) {
+                    case 'b':
+                        builder.append('\b');
+                        break;
+                    case 'f':
+                        builder.append('\f');
+                        break;
+                    case 'n':
+                        builder.append('\n');
+                        break;
+                    case 'r':
+                        builder.append('\r');
+                        break;
+                    case 't':
+                        builder.append('\t');
+                        break;
+                    case 'u':
+                        builder.append((char) Integer.parseInt(text.substring(position, position + 4), 16));
+                        position += 4;
+                        break;
+                    default:
+                        builder.append(escaped);
+                }
+            }
+        }
+
+        private Number parseNumber() {
+            int start = position;
+            while (position < text.length() && "+-0123456789.eE".indexOf(text.charAt(position)) >= 0) {
+                position++;
+            }
+            String number = text.substring(start, position);
+            if (number.isEmpty()) {
+                throw new IllegalArgumentException("Unexpected character at " + start);
+            }
+            if (number.indexOf('.') >= 0 || number.indexOf('e') >= 0 || number.indexOf('E') >= 0) {
+                return Double.valueOf(number);
+            }
+            return Long.valueOf(number);
+        }
+
+        private char peek() {
+            if (position >= text.length()) {
+                throw new IllegalArgumentException("Unexpected end of JSON");
+            }
+            return text.charAt(position);
+        }
+
+        private void expect(String expected) {
+            if (!text.startsWith(expected, position)) {
+                throw new IllegalArgumentException("Expected " + expected + " at " + position);
+            }
+            position += expected.length();
+        }
+
+        private void skipWhitespace() {
+            while (position < text.length() && Character.isWhitespace(text.charAt(position))) {
+                position++;
+            }
+        }
+
+        static String write(Map<String, Object> map) {
+            StringBuilder builder = new StringBuilder("{");
+            for (Map.Entry<String, Object> entry : map.entrySet()) {
+                if (builder.length() > 1) {
+                    builder.append(',');
+                }
+                writeString(builder, entry.getKey());
+                builder.append(':');
+                Object value = entry.getValue();
+                if (value instanceof String) {
+                    writeString(builder, (String) value);
+                } else {
+                    builder.append(value);
+                }
+            }
+            return builder.append('}').toString();
+        }
+
+        private static void writeString(StringBuilder builder, String value) {
+            builder.append('"');
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                if (c == '"' || c == '\\') {
+                    builder.append('\\').append(c);
+                } else if (c < 0x20) {
+                    builder.append(String.format("\\u%04x", (int) c));
+                } else {
+                    builder.append(c);
+                }
+            }
+            builder.append('"');
+        }
+    }
+}
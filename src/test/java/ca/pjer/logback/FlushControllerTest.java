@@ -0,0 +1,78 @@
+package ca.pjer.logback;
+
+import ca.pjer.logback.metrics.AppenderMetrics;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class FlushControllerTest {
+
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    @Test
+    public void testShouldStayFixedWhenNotAdaptive() {
+        FlushController controller = new FlushController(false, new AppenderMetrics(), 100, 0, 1000);
+        controller.onFlush(100, SECOND / 100, true);
+        assertEquals(100, controller.getBatchThreshold());
+        assertEquals(1000, controller.getLingerMillis());
+        assertEquals(1000, controller.getMinLingerMillis());
+    }
+
+    @Test
+    public void testShouldGrowBatchesWhenTheyFillUp() {
+        FlushController controller = new FlushController(true, new AppenderMetrics(), 100, 0, 1000);
+        for (int i = 0; i < 20; i++) {
+            controller.onFlush(controller.getBatchThreshold(), SECOND / 100, true);
+        }
+        assertEquals(AwsLogsAppender.MAX_BATCH_LOG_EVENTS, controller.getBatchThreshold());
+        assertEquals(1000, controller.getLingerMillis());
+    }
+
+    @Test
+    public void testShouldShrinkLingerWhenTrafficIsLight() {
+        FlushController controller = new FlushController(true, new AppenderMetrics(), 100, 0, 1000);
+        for (int i = 0; i < 20; i++) {
+            controller.onFlush(1, TimeUnit.MILLISECONDS.toNanos(controller.getLingerMillis()), false);
+        }
+        assertEquals(100, controller.getBatchThreshold());
+        assertEquals(100, controller.getLingerMillis());
+
+        // and come back when traffic picks up again
+        for (int i = 0; i < 20; i++) {
+            controller.onFlush(150, TimeUnit.MILLISECONDS.toNanos(controller.getLingerMillis()), false);
+        }
+        assertEquals(1000, controller.getLingerMillis());
+    }
+
+    @Test
+    public void testShouldBackOffWhenPutLogEventsIsRetried() {
+        AppenderMetrics metrics = new AppenderMetrics();
+        FlushController controller = new FlushController(true, metrics, 100, 50, 1000);
+        for (int i = 0; i < 20; i++) {
+            controller.onFlush(1, TimeUnit.MILLISECONDS.toNanos(controller.getLingerMillis()), false);
+        }
+        assertEquals(50, controller.getLingerMillis());
+
+        metrics.incrementPutLogRetried(new RuntimeException("throttled"));
+        controller.onFlush(1, TimeUnit.MILLISECONDS.toNanos(controller.getLingerMillis()), false);
+        assertEquals(200, controller.getBatchThreshold());
+        assertEquals(100, controller.getLingerMillis());
+    }
+
+    @Test
+    public void testShouldBackOffWhenPutLogEventsGetsSlow() {
+        AppenderMetrics metrics = new AppenderMetrics();
+        FlushController controller = new FlushController(true, metrics, 100, 0, 1000);
+        metrics.recordPutLogEventsLatency(TimeUnit.MILLISECONDS.toNanos(10));
+        controller.onFlush(100, SECOND, false);
+        assertEquals(100, controller.getBatchThreshold());
+
+        for (int i = 0; i < 5; i++) {
+            metrics.recordPutLogEventsLatency(TimeUnit.MILLISECONDS.toNanos(200));
+        }
+        controller.onFlush(100, SECOND, false);
+        assertEquals(200, controller.getBatchThreshold());
+    }
+}
@@ -0,0 +1,84 @@
+package ca.pjer.logback;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.LoggingEvent;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class LoadShedderTest {
+
+    private static final LoggerContext loggerContext = new LoggerContext();
+
+    private static ILoggingEvent event(String loggerName, Level level) {
+        return new LoggingEvent(LoadShedderTest.class.getName(), loggerContext.getLogger(loggerName), level, "Dummy", null, null);
+    }
+
+    @Test
+    public void testShouldNotDropImportantEventsOrWithoutPressure() {
+        LoadShedder loadShedder = new LoadShedder(10000);
+        for (int i = 0; i < 100; i++) {
+            assertFalse(loadShedder.shouldDrop(event("a", Level.WARN), 1));
+            assertFalse(loadShedder.shouldDrop(event("a", Level.ERROR), 1));
+            assertFalse(loadShedder.shouldDrop(event("a", Level.INFO), 0));
+        }
+    }
+
+    @Test
+    public void testShouldSampleWithPressure() {
+        LoadShedder loadShedder = new LoadShedder(10000);
+        int dropped = 0;
+        for (int i = 0; i < 10000; i++) {
+            if (loadShedder.shouldDrop(event("a", Level.INFO), 0.5)) {
+                dropped++;
+            }
+        }
+        assertTrue("dropped " + dropped, dropped > 4000 && dropped < 6000);
+    }
+
+    @Test
+    public void testShouldKeepFirstEventOfEachLoggerAndSummarize() throws InterruptedException {
+        LoadShedder loadShedder = new LoadShedder(50);
+        assertFalse(loadShedder.shouldDrop(event("a", Level.INFO), 1));
+        assertFalse(loadShedder.shouldDrop(event("b", Level.DEBUG), 1));
+        for (int i = 0; i < 3; i++) {
+            assertTrue(loadShedder.shouldDrop(event("a", Level.INFO), 1));
+            assertTrue(loadShedder.shouldDrop(event("b", Level.DEBUG), 1));
+        }
+        assertTrue(loadShedder.shouldDrop(event("a", Level.DEBUG), 1));
+        assertNull(loadShedder.takeSummary());
+
+        Thread.sleep(60);
+        List<String> summary = loadShedder.takeSummary();
+        assertEquals(3, summary.size());
+        assertTrue(summary.contains("Dropped 3 events from logger a at level INFO"));
+        assertTrue(summary.contains("Dropped 1 events from logger a at level DEBUG"));
+        assertTrue(summary.contains("Dropped 3 events from logger b at level DEBUG"));
+
+        // a new interval, each logger gets its first event through again
+        assertFalse(loadShedder.shouldDrop(event("a", Level.INFO), 1));
+        assertTrue(loadShedder.shouldDrop(event("a", Level.INFO), 1));
+    }
+
+    @Test
+    public void testShouldCapSummaryLines() throws InterruptedException {
+        LoadShedder loadShedder = new LoadShedder(1);
+        for (int logger = 0; logger < 100; logger++) {
+            loadShedder.shouldDrop(event("logger" + logger, Level.INFO), 1);
+            for (int i = 0; i <= logger; i++) {
+                assertTrue(loadShedder.shouldDrop(event("logger" + logger, Level.INFO), 1));
+            }
+        }
+        Thread.sleep(5);
+        List<String> summary = loadShedder.takeSummary();
+        assertEquals(LoadShedder.MAX_SUMMARY_LINES, summary.size());
+        // the loggers that dropped the most come first
+        assertEquals("Dropped 100 events from logger logger99 at level INFO", summary.get(0));
+        // the 51 others dropped 1 + 2 + ... + 51 events
+        assertEquals("Dropped 1326 events from 51 other loggers and levels", summary.get(summary.size() - 1));
+    }
+}
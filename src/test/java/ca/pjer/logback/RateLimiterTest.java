@@ -0,0 +1,32 @@
+package ca.pjer.logback;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class RateLimiterTest {
+
+    @Test
+    public void testShouldReservePermitsInAdvanceWithoutWaiting() {
+        RateLimiter rateLimiter = new RateLimiter(10, 2);
+        long start = System.nanoTime();
+        assertEquals(0, rateLimiter.reserveNanos());
+        assertEquals(0, rateLimiter.reserveNanos());
+        // the burst is spent, the next permits are 100ms apart
+        long first = rateLimiter.reserveNanos();
+        long second = rateLimiter.reserveNanos();
+        assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(50));
+        assertTrue("Wait " + first, first > TimeUnit.MILLISECONDS.toNanos(50) && first <= TimeUnit.MILLISECONDS.toNanos(100));
+        assertTrue("Wait " + second, second - first > TimeUnit.MILLISECONDS.toNanos(90));
+    }
+
+    @Test
+    public void testShouldNotShareCopies() {
+        RateLimiter rateLimiter = new RateLimiter(1, 1);
+        assertEquals(0, rateLimiter.reserveNanos());
+        assertTrue(rateLimiter.reserveNanos() > 0);
+        assertEquals(0, rateLimiter.copy().reserveNanos());
+    }
+}
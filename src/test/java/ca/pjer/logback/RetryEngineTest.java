@@ -0,0 +1,111 @@
+package ca.pjer.logback;
+
+import ca.pjer.logback.metrics.AppenderMetrics;
+import org.junit.Test;
+import software.amazon.awssdk.awscore.exception.AwsErrorDetails;
+import software.amazon.awssdk.core.exception.SdkClientException;
+import software.amazon.awssdk.services.cloudwatchlogs.model.CloudWatchLogsException;
+import software.amazon.awssdk.services.cloudwatchlogs.model.InvalidParameterException;
+import software.amazon.awssdk.services.cloudwatchlogs.model.ServiceUnavailableException;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class RetryEngineTest {
+
+    private static RuntimeException throttling() {
+        return CloudWatchLogsException.builder()
+                .statusCode(400)
+                .awsErrorDetails(AwsErrorDetails.builder().errorCode("ThrottlingException").build())
+                .build();
+    }
+
+    @Test
+    public void testShouldClassifyFailures() {
+        assertTrue(RetryEngine.isRetryable(throttling()));
+        assertTrue(RetryEngine.isRetryable(ServiceUnavailableException.builder().statusCode(503).build()));
+        assertTrue(RetryEngine.isRetryable(CloudWatchLogsException.builder().statusCode(500).build()));
+        assertTrue(RetryEngine.isRetryable(SdkClientException.create("io", new IOException("reset"))));
+        assertFalse(RetryEngine.isRetryable(InvalidParameterException.builder().statusCode(400).build()));
+        assertFalse(RetryEngine.isRetryable(SdkClientException.create("not io")));
+        assertFalse(RetryEngine.isRetryable(new IllegalStateException()));
+    }
+
+    @Test
+    public void testShouldRetryUntilSuccess() {
+        RetryEngine retryEngine = new RetryEngine(3, 1, 1, 10, new AppenderMetrics());
+        final AtomicInteger attempts = new AtomicInteger();
+        String result = retryEngine.call(() -> {
+            if (attempts.incrementAndGet() < 3) {
+                throw throttling();
+            }
+            return "ok";
+        });
+        assertEquals("ok", result);
+        assertEquals(3, attempts.get());
+    }
+
+    @Test
+    public void testShouldNotRetryPastMaxRetriesOrNotRetryable() {
+        RetryEngine retryEngine = new RetryEngine(2, 1, 1, 10, new AppenderMetrics());
+        final AtomicInteger attempts = new AtomicInteger();
+        try {
+            retryEngine.run(() -> {
+                attempts.incrementAndGet();
+                throw throttling();
+            });
+            fail();
+        } catch (CloudWatchLogsException e) {
+            assertEquals(3, attempts.get());
+        }
+        attempts.set(0);
+        try {
+            retryEngine.run(() -> {
+                attempts.incrementAndGet();
+                throw InvalidParameterException.builder().statusCode(400).build();
+            });
+            fail();
+        } catch (InvalidParameterException e) {
+            assertEquals(1, attempts.get());
+        }
+    }
+
+    @Test
+    public void testShouldStopRetryingWhenBudgetIsExhausted() {
+        RetryEngine retryEngine = new RetryEngine(Integer.MAX_VALUE, 0, 0, 0, new AppenderMetrics());
+        final AtomicInteger attempts = new AtomicInteger();
+        try {
+            retryEngine.run(() -> {
+                attempts.incrementAndGet();
+                throw throttling();
+            });
+            fail();
+        } catch (CloudWatchLogsException e) {
+            // the initial burst of 10 retries, and nothing earned back
+            assertEquals(11, attempts.get());
+        }
+    }
+
+    @Test
+    public void testBackoffShouldStayWithinBounds() {
+        RetryEngine retryEngine = new RetryEngine(10, 100, 1000, 10, new AppenderMetrics());
+        for (int retries = 0; retries < 10; retries++) {
+            long backoff = retryEngine.backoffMillis(retries);
+            assertTrue(backoff >= 0);
+            assertTrue(backoff <= Math.min(1000, 100L << retries));
+        }
+    }
+
+    @Test
+    public void testRateLimiterShouldSpaceRequests() {
+        RateLimiter rateLimiter = new RateLimiter(20, 1);
+        long start = System.nanoTime();
+        for (int i = 0; i < 5; i++) {
+            rateLimiter.acquire();
+        }
+        // the first permit is free, the next 4 are spaced by 50ms
+        assertTrue(System.nanoTime() - start >= 190000000L);
+    }
+}
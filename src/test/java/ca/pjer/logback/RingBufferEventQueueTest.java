@@ -0,0 +1,96 @@
+package ca.pjer.logback;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class RingBufferEventQueueTest {
+
+    @Test
+    public void testCapacityIsRoundedUpToPowerOfTwo() {
+        assertEquals(1, new RingBufferEventQueue<Integer>(1, WaitStrategy.PARK).capacity());
+        assertEquals(128, new RingBufferEventQueue<Integer>(100, WaitStrategy.PARK).capacity());
+        assertEquals(128, new RingBufferEventQueue<Integer>(128, WaitStrategy.PARK).capacity());
+    }
+
+    @Test
+    public void testShouldRejectPastTheCapacityAskedFor() {
+        RingBufferEventQueue<Integer> queue = new RingBufferEventQueue<Integer>(100, WaitStrategy.PARK);
+        assertEquals(100, queue.limit());
+        for (int i = 0; i < 100; i++) {
+            assertTrue(queue.offer(i));
+        }
+        assertFalse(queue.offer(100));
+        assertEquals(100, queue.size());
+        assertEquals(Integer.valueOf(0), queue.poll());
+        assertTrue(queue.offer(100));
+        assertFalse(queue.offer(101));
+    }
+
+    @Test
+    public void testShouldRejectWhenFull() throws InterruptedException {
+        RingBufferEventQueue<Integer> queue = new RingBufferEventQueue<Integer>(4, WaitStrategy.PARK);
+        for (int i = 0; i < 4; i++) {
+            assertTrue(queue.offer(i));
+        }
+        assertEquals(4, queue.size());
+        assertFalse(queue.offer(4));
+        assertFalse(queue.offer(4, 10, TimeUnit.MILLISECONDS));
+        assertEquals(Integer.valueOf(0), queue.poll());
+        assertTrue(queue.offer(4));
+        List<Integer> drained = new ArrayList<Integer>();
+        assertEquals(4, queue.drainTo(drained, 10));
+        assertEquals(Arrays.asList(1, 2, 3, 4), drained);
+        assertTrue(queue.isEmpty());
+        assertNull(queue.poll());
+    }
+
+    @Test
+    public void testShouldKeepPerProducerOrderWithConcurrentProducers() throws InterruptedException {
+        final int producers = 8;
+        final int perProducer = 20000;
+        final RingBufferEventQueue<long[]> queue = new RingBufferEventQueue<long[]>(64, WaitStrategy.YIELD);
+        final CountDownLatch startLatch = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int p = 0; p < producers; p++) {
+            final int producer = p;
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        startLatch.await();
+                        for (int i = 0; i < perProducer; i++) {
+                            assertTrue(queue.offer(new long[]{producer, i}, 10, TimeUnit.SECONDS));
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        startLatch.countDown();
+        long[] next = new long[producers];
+        int received = 0;
+        while (received < producers * perProducer) {
+            long[] e = queue.poll();
+            if (e == null) {
+                Thread.yield();
+                continue;
+            }
+            assertEquals(next[(int) e[0]]++, e[1]);
+            received++;
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertTrue(queue.isEmpty());
+    }
+}
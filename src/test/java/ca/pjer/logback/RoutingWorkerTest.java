@@ -0,0 +1,285 @@
+package ca.pjer.logback;
+
+import static org.junit.Assert.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.PatternLayout;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.LoggingEvent;
+import ch.qos.logback.core.layout.EchoLayout;
+import ch.qos.logback.core.status.Status;
+import software.amazon.awssdk.services.cloudwatchlogs.model.InputLogEvent;
+
+public class RoutingWorkerTest {
+
+    private static final LoggerContext loggerContext = new LoggerContext();
+
+    private static ILoggingEvent event(String message, String tenant) {
+        LoggingEvent event = new LoggingEvent(RoutingWorkerTest.class.getName(), loggerContext.getLogger(RoutingWorkerTest.class.getName()), Level.INFO, message, null, null);
+        event.setMDCPropertyMap(tenant == null ?
+                Collections.<String, String>emptyMap() :
+                Collections.singletonMap("tenant", tenant));
+        return event;
+    }
+
+    // Each log stream gets its own mocked stub, what it logged is recorded in logged, by log stream name
+    // (a log stream can have several stubs at once, while the one of an evicted route is stopping)
+    private static AwsLogsAppender awsLogsAppender(final Map<String, AWSLogsStub> stubs,
+                                                   final Map<String, List<String>> logged) {
+        return awsLogsAppender(stubs, logged, new AtomicBoolean());
+    }
+
+    // While unavailable is set, nothing is sent
+    private static AwsLogsAppender awsLogsAppender(final Map<String, AWSLogsStub> stubs,
+                                                   final Map<String, List<String>> logged,
+                                                   final AtomicBoolean unavailable) {
+        AWSLogsStub mockedAwsLogsStub = mock(AWSLogsStub.class);
+        when(mockedAwsLogsStub.getLogGroupName()).thenReturn("FakeGroup");
+        when(mockedAwsLogsStub.getLogStreamName()).thenReturn("FakeStream");
+        when(mockedAwsLogsStub.forLogStream(anyString(), anyString())).thenAnswer(invocation -> {
+            String logStreamName = invocation.getArgument(1);
+            AWSLogsStub stub = mock(AWSLogsStub.class);
+            doAnswer(logEvents -> {
+                Collection<InputLogEvent> events = logEvents.getArgument(0);
+                if (unavailable.get()) {
+                    throw new UnsentEventsException(new ArrayList<InputLogEvent>(events), new IllegalStateException());
+                }
+                for (InputLogEvent event : events) {
+                    logged.computeIfAbsent(logStreamName, name -> Collections.synchronizedList(new ArrayList<String>())).add(event.message().trim());
+                }
+                return null;
+            }).when(stub).logEvents(anyCollection());
+            stubs.put(logStreamName, stub);
+            return stub;
+        });
+        AwsLogsAppender awsLogsAppender = new AwsLogsAppender();
+        awsLogsAppender.setContext(loggerContext);
+        awsLogsAppender.setLayout(new EchoLayout<ILoggingEvent>());
+        awsLogsAppender.setAwsLogsStub(mockedAwsLogsStub);
+        awsLogsAppender.setLogStreamPattern("%X{tenant}");
+        return awsLogsAppender;
+    }
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void testShouldRouteEventsToTheirLogStream() {
+        Map<String, AWSLogsStub> stubs = new ConcurrentHashMap<String, AWSLogsStub>();
+        Map<String, List<String>> logged = new ConcurrentHashMap<String, List<String>>();
+        RoutingWorker routingWorker = new RoutingWorker(awsLogsAppender(stubs, logged));
+        routingWorker.start();
+        routingWorker.append(event("Event 1", "a"));
+        routingWorker.append(event("Event 2", "b"));
+        routingWorker.append(event("Event 3", "a"));
+        routingWorker.append(event("Event 4", null));
+        assertEquals(3, routingWorker.getRouteCount());
+        routingWorker.stop();
+        assertEquals(0, routingWorker.getRouteCount());
+        assertEquals(3, logged.size());
+        assertEquals(Arrays.asList("[INFO] Event 1", "[INFO] Event 3"), logged.get("a"));
+        assertEquals(Collections.singletonList("[INFO] Event 2"), logged.get("b"));
+        // without a tenant, the configured log stream
+        assertEquals(Collections.singletonList("[INFO] Event 4"), logged.get("FakeStream"));
+        for (AWSLogsStub stub : stubs.values()) {
+            verify(stub).stop();
+        }
+    }
+
+    @Test
+    public void testShouldEvictLeastRecentlyUsedRoute() {
+        Map<String, AWSLogsStub> stubs = new ConcurrentHashMap<String, AWSLogsStub>();
+        Map<String, List<String>> logged = new ConcurrentHashMap<String, List<String>>();
+        AwsLogsAppender awsLogsAppender = awsLogsAppender(stubs, logged);
+        awsLogsAppender.setMaxRoutes(2);
+        RoutingWorker routingWorker = new RoutingWorker(awsLogsAppender);
+        routingWorker.start();
+        routingWorker.append(event("Event 1", "a"));
+        routingWorker.append(event("Event 2", "b"));
+        routingWorker.append(event("Event 3", "a"));
+        routingWorker.append(event("Event 4", "c"));
+        assertEquals(2, routingWorker.getRouteCount());
+        // evicted routes are stopped in the background
+        verify(stubs.get("b"), timeout(1000)).stop();
+        verify(stubs.get("a"), never()).stop();
+        // a route comes back when needed
+        routingWorker.append(event("Event 5", "b"));
+        verify(stubs.get("a"), timeout(1000)).stop();
+        routingWorker.stop();
+        assertEquals(Arrays.asList("[INFO] Event 1", "[INFO] Event 3"), logged.get("a"));
+        assertEquals(Arrays.asList("[INFO] Event 2", "[INFO] Event 5"), logged.get("b"));
+    }
+
+    @Test(timeout = 10000)
+    public void testShouldNotWaitForEvictedRoutesToStop() throws InterruptedException {
+        Map<String, AWSLogsStub> stubs = new ConcurrentHashMap<String, AWSLogsStub>();
+        Map<String, List<String>> logged = new ConcurrentHashMap<String, List<String>>();
+        AwsLogsAppender awsLogsAppender = awsLogsAppender(stubs, logged);
+        awsLogsAppender.setMaxRoutes(1);
+        RoutingWorker routingWorker = new RoutingWorker(awsLogsAppender);
+        routingWorker.start();
+        routingWorker.append(event("Event 1", "a"));
+        CountDownLatch stopping = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        doAnswer(invocation -> {
+            stopping.countDown();
+            release.await();
+            return null;
+        }).when(stubs.get("a")).stop();
+        // evicts a, whose stop blocks
+        routingWorker.append(event("Event 2", "b"));
+        assertTrue(stopping.await(5, TimeUnit.SECONDS));
+        routingWorker.append(event("Event 3", "b"));
+        assertEquals(Arrays.asList("[INFO] Event 2", "[INFO] Event 3"), logged.get("b"));
+        release.countDown();
+        routingWorker.stop();
+        verify(stubs.get("a")).stop();
+        verify(stubs.get("b")).stop();
+    }
+
+    @Test
+    public void testShouldNotLoseEventsWhileEvicting() throws InterruptedException {
+        Map<String, AWSLogsStub> stubs = new ConcurrentHashMap<String, AWSLogsStub>();
+        Map<String, List<String>> logged = new ConcurrentHashMap<String, List<String>>();
+        AwsLogsAppender awsLogsAppender = awsLogsAppender(stubs, logged);
+        awsLogsAppender.setMaxRoutes(2);
+        RoutingWorker routingWorker = new RoutingWorker(awsLogsAppender);
+        routingWorker.start();
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            final int thread = i;
+            threads[i] = new Thread(() -> {
+                for (int j = 0; j < 500; j++) {
+                    routingWorker.append(event("Event " + thread + "-" + j, String.valueOf((thread + j) % 5)));
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        routingWorker.stop();
+        int count = 0;
+        for (List<String> messages : logged.values()) {
+            count += messages.size();
+        }
+        assertEquals(2000, count);
+    }
+
+    @Test
+    public void testShouldStopIdleRoutes() throws InterruptedException {
+        Map<String, AWSLogsStub> stubs = new ConcurrentHashMap<String, AWSLogsStub>();
+        Map<String, List<String>> logged = new ConcurrentHashMap<String, List<String>>();
+        AwsLogsAppender awsLogsAppender = awsLogsAppender(stubs, logged);
+        awsLogsAppender.setRouteIdleTimeoutMillis(50);
+        RoutingWorker routingWorker = new RoutingWorker(awsLogsAppender);
+        routingWorker.start();
+        routingWorker.append(event("Event 1", "a"));
+        assertEquals(1, routingWorker.getRouteCount());
+        long deadline = System.currentTimeMillis() + 5000;
+        while (routingWorker.getRouteCount() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, routingWorker.getRouteCount());
+        verify(stubs.get("a"), timeout(1000)).stop();
+        routingWorker.stop();
+    }
+
+    @Test
+    public void testShouldOnlyResolveValidNames() {
+        PatternLayout layout = new PatternLayout();
+        layout.setContext(loggerContext);
+        layout.setPattern("%X{tenant}");
+        layout.start();
+        assertEquals("a_b_c d", RoutingWorker.resolve(layout, event("", "a:b*c d"), "FakeStream", false));
+        assertEquals("a_b_c_d", RoutingWorker.resolve(layout, event("", "a:b*c d"), "FakeGroup", true));
+        assertEquals("FakeStream", RoutingWorker.resolve(layout, event("", null), "FakeStream", false));
+        assertEquals("FakeStream", RoutingWorker.resolve(null, event("", "a"), "FakeStream", false));
+    }
+
+    @Test
+    public void testShouldSpillEachRouteToItsOwnDirectory() {
+        assertNotEquals(RoutingWorker.spillName("a:b_c"), RoutingWorker.spillName("a_b:c"));
+        assertTrue(RoutingWorker.spillName("a:b_c").startsWith("a_b_c-"));
+        assertEquals(RoutingWorker.spillName("a:b_c"), RoutingWorker.spillName("a:b_c"));
+    }
+
+    @Test
+    public void testShouldKeepSpillingWhenARouteComesBack() throws IOException {
+        Map<String, AWSLogsStub> stubs = new ConcurrentHashMap<String, AWSLogsStub>();
+        Map<String, List<String>> logged = new ConcurrentHashMap<String, List<String>>();
+        AwsLogsAppender awsLogsAppender = awsLogsAppender(stubs, logged);
+        awsLogsAppender.setMaxRoutes(1);
+        awsLogsAppender.setMaxFlushTimeMillis(Long.MAX_VALUE);
+        awsLogsAppender.setSpillDirectory(temporaryFolder.newFolder().getPath());
+        RoutingWorker routingWorker = new RoutingWorker(awsLogsAppender);
+        int errors = errorCount();
+        routingWorker.start();
+        // every event evicts the route of the previous one, which comes back with the next
+        for (int i = 0; i < 20; i++) {
+            routingWorker.append(event("Event " + i, i % 2 == 0 ? "a" : "b"));
+        }
+        routingWorker.stop();
+        assertEquals(errors, errorCount());
+        assertEquals(10, logged.get("a").size());
+        assertEquals(10, logged.get("b").size());
+    }
+
+    @Test
+    public void testShouldSendEventsSpilledByRoutesBeforeARestart() throws IOException {
+        Map<String, AWSLogsStub> stubs = new ConcurrentHashMap<String, AWSLogsStub>();
+        Map<String, List<String>> logged = new ConcurrentHashMap<String, List<String>>();
+        AtomicBoolean unavailable = new AtomicBoolean(true);
+        AwsLogsAppender awsLogsAppender = awsLogsAppender(stubs, logged, unavailable);
+        awsLogsAppender.setMaxFlushTimeMillis(Long.MAX_VALUE);
+        awsLogsAppender.setSpillDirectory(temporaryFolder.newFolder().getPath());
+        awsLogsAppender.setVerbose(false);
+        RoutingWorker routingWorker = new RoutingWorker(awsLogsAppender);
+        routingWorker.start();
+        routingWorker.append(event("Event 1", "a"));
+        routingWorker.append(event("Event 2", "b"));
+        routingWorker.stop();
+        assertTrue(logged.isEmpty());
+        File[] directories = new File(awsLogsAppender.getSpillDirectory()).listFiles();
+        assertEquals(1, directories.length);
+        assertEquals(2, directories[0].listFiles(File::isDirectory).length);
+        // no event comes to these routes after the restart, they are created for what they spilled
+        unavailable.set(false);
+        routingWorker = new RoutingWorker(awsLogsAppender);
+        routingWorker.start();
+        assertEquals(2, routingWorker.getRouteCount());
+        routingWorker.stop();
+        assertEquals(Collections.singletonList("[INFO] Event 1"), logged.get("a"));
+        assertEquals(Collections.singletonList("[INFO] Event 2"), logged.get("b"));
+    }
+
+    private static int errorCount() {
+        int errors = 0;
+        for (Status status : loggerContext.getStatusManager().getCopyOfStatusList()) {
+            if (status.getLevel() == Status.ERROR) {
+                errors++;
+            }
+        }
+        return errors;
+    }
+}
@@ -0,0 +1,123 @@
+package ca.pjer.logback;
+
+import static org.junit.Assert.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.LoggingEvent;
+import ch.qos.logback.core.layout.EchoLayout;
+import software.amazon.awssdk.services.cloudwatchlogs.model.InputLogEvent;
+
+public class ShardedWorkerTest {
+
+    private static final LoggerContext loggerContext = new LoggerContext();
+
+    private static ILoggingEvent event(String message, String tenant) {
+        LoggingEvent event = new LoggingEvent(ShardedWorkerTest.class.getName(), loggerContext.getLogger(ShardedWorkerTest.class.getName()), Level.INFO, message, null, null);
+        event.setMDCPropertyMap(tenant == null ?
+                Collections.<String, String>emptyMap() :
+                Collections.singletonMap("tenant", tenant));
+        return event;
+    }
+
+    // Each shard logs synchronously to its own mocked stub, what it logged is recorded in logged
+    private static ShardedWorker shardedWorker(String shardBy, final List<List<String>> logged) {
+        AwsLogsAppender awsLogsAppender = new AwsLogsAppender();
+        awsLogsAppender.setLayout(new EchoLayout<ILoggingEvent>());
+        awsLogsAppender.setShardBy(shardBy);
+        awsLogsAppender.setShardKey("tenant");
+        Worker[] shards = new Worker[3];
+        for (int i = 0; i < shards.length; i++) {
+            final List<String> messages = new ArrayList<String>();
+            logged.add(messages);
+            AWSLogsStub mockedAwsLogsStub = mock(AWSLogsStub.class);
+            doAnswer(invocation -> {
+                Collection<InputLogEvent> events = invocation.getArgument(0);
+                for (InputLogEvent event : events) {
+                    messages.add(event.message().trim());
+                }
+                return null;
+            }).when(mockedAwsLogsStub).logEvents(anyCollection());
+            shards[i] = new SyncWorker(awsLogsAppender, mockedAwsLogsStub, "Shard-" + i);
+        }
+        ShardedWorker shardedWorker = new ShardedWorker(awsLogsAppender, shards);
+        shardedWorker.start();
+        return shardedWorker;
+    }
+
+    @Test
+    public void testShouldKeepEventsOfAThreadInOneShard() {
+        List<List<String>> logged = new ArrayList<List<String>>();
+        ShardedWorker shardedWorker = shardedWorker(AwsLogsAppender.SHARD_BY_THREAD, logged);
+        List<String> expected = new ArrayList<String>();
+        for (int i = 0; i < 10; i++) {
+            expected.add("[INFO] Event " + i);
+            shardedWorker.append(event("Event " + i, "a"));
+        }
+        shardedWorker.stop();
+        int used = 0;
+        for (List<String> messages : logged) {
+            if (!messages.isEmpty()) {
+                used++;
+                assertEquals(expected, messages);
+            }
+        }
+        assertEquals(1, used);
+    }
+
+    @Test
+    public void testShouldShardByKey() {
+        List<List<String>> logged = new ArrayList<List<String>>();
+        ShardedWorker shardedWorker = shardedWorker(AwsLogsAppender.SHARD_BY_KEY, logged);
+        String[] tenants = {"a", "b", "c", "d", "e", null};
+        for (int i = 0; i < 30; i++) {
+            String tenant = tenants[i % tenants.length];
+            shardedWorker.append(event(tenant + " " + i, tenant));
+        }
+        shardedWorker.stop();
+        for (String tenant : tenants) {
+            // all the events of a tenant, in order, in one shard
+            int shard = -1;
+            int previous = -1;
+            for (int i = 0; i < logged.size(); i++) {
+                for (String message : logged.get(i)) {
+                    String[] parts = message.substring("[INFO] ".length()).split(" ");
+                    if (parts[0].equals(String.valueOf(tenant))) {
+                        assertTrue(shard == -1 || shard == i);
+                        shard = i;
+                        assertTrue(Integer.parseInt(parts[1]) > previous);
+                        previous = Integer.parseInt(parts[1]);
+                    }
+                }
+            }
+            assertTrue(shard >= 0);
+        }
+    }
+
+    @Test
+    public void testShouldShardRoundRobin() {
+        List<List<String>> logged = new ArrayList<List<String>>();
+        ShardedWorker shardedWorker = shardedWorker(AwsLogsAppender.SHARD_BY_ROUND_ROBIN, logged);
+        for (int i = 0; i < 9; i++) {
+            shardedWorker.append(event("Event " + i, null));
+        }
+        shardedWorker.stop();
+        for (int i = 0; i < logged.size(); i++) {
+            List<String> messages = logged.get(i);
+            assertEquals(3, messages.size());
+            for (int j = 0; j < messages.size(); j++) {
+                assertEquals("[INFO] Event " + (j * 3 + i), messages.get(j));
+            }
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package ca.pjer.logback;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import software.amazon.awssdk.services.cloudwatchlogs.model.InputLogEvent;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class SpillBufferTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private static List<InputLogEvent> events(int from, int count) {
+        List<InputLogEvent> events = new ArrayList<InputLogEvent>();
+        for (int i = from; i < from + count; i++) {
+            events.add(InputLogEvent.builder().timestamp((long) i).message("Dummy ö " + i).build());
+        }
+        return events;
+    }
+
+    private static int segments(File directory) {
+        return directory.listFiles((dir, name) -> name.endsWith(".spill")).length;
+    }
+
+    @Test
+    public void testShouldReplayInOrderAcrossSegments() throws IOException {
+        SpillBuffer spillBuffer = new SpillBuffer(temporaryFolder.getRoot(), 256, Long.MAX_VALUE);
+        assertTrue(spillBuffer.isEmpty());
+        assertEquals(0, spillBuffer.append(events(0, 50)));
+        assertTrue(segments(temporaryFolder.getRoot()) > 1);
+        List<InputLogEvent> replayed = new ArrayList<InputLogEvent>();
+        while (!spillBuffer.isEmpty()) {
+            List<InputLogEvent> batch = spillBuffer.peek(7, 1048576, 26);
+            assertFalse(batch.isEmpty());
+            replayed.addAll(batch);
+            spillBuffer.commit();
+        }
+        assertEquals(events(0, 50), replayed);
+        assertEquals(1, segments(temporaryFolder.getRoot()));
+    }
+
+    @Test
+    public void testShouldKeepUncommittedEvents() throws IOException {
+        SpillBuffer spillBuffer = new SpillBuffer(temporaryFolder.getRoot(), 4096, Long.MAX_VALUE);
+        spillBuffer.append(events(0, 10));
+        assertEquals(events(0, 5), spillBuffer.peek(5, 1048576, 26));
+        assertEquals(events(0, 5), spillBuffer.peek(5, 1048576, 26));
+        spillBuffer.commit();
+        assertEquals(events(5, 5), spillBuffer.peek(5, 1048576, 26));
+    }
+
+    @Test
+    public void testShouldKeepUnsentEventsFirst() throws IOException {
+        File directory = temporaryFolder.getRoot();
+        SpillBuffer spillBuffer = new SpillBuffer(directory, 4096, Long.MAX_VALUE);
+        spillBuffer.append(events(0, 10));
+        List<InputLogEvent> batch = spillBuffer.peek(5, 1048576, 26);
+        assertEquals(0, spillBuffer.commit(Arrays.asList(batch.get(1), batch.get(3))));
+        List<InputLogEvent> expected = new ArrayList<InputLogEvent>(Arrays.asList(batch.get(1), batch.get(3)));
+        expected.addAll(events(5, 5));
+        assertEquals(expected, spillBuffer.peek(100, 1048576, 26));
+        spillBuffer.close();
+
+        SpillBuffer reopened = new SpillBuffer(directory, 4096, Long.MAX_VALUE);
+        assertEquals(expected, reopened.peek(100, 1048576, 26));
+        // events that were not read can only go at the end
+        assertEquals(0, reopened.commit(events(20, 1)));
+        assertEquals(events(20, 1), reopened.peek(100, 1048576, 26));
+    }
+
+    @Test
+    public void testShouldReplayAfterRestart() throws IOException {
+        File directory = temporaryFolder.getRoot();
+        SpillBuffer spillBuffer = new SpillBuffer(directory, 256, Long.MAX_VALUE);
+        spillBuffer.append(events(0, 20));
+        spillBuffer.peek(3, 1048576, 26);
+        spillBuffer.commit();
+        spillBuffer.close();
+
+        SpillBuffer reopened = new SpillBuffer(directory, 256, Long.MAX_VALUE);
+        reopened.append(events(20, 5));
+        List<InputLogEvent> replayed = new ArrayList<InputLogEvent>();
+        while (!reopened.isEmpty()) {
+            replayed.addAll(reopened.peek(100, 1048576, 26));
+            reopened.commit();
+        }
+        assertEquals(events(3, 22), replayed);
+    }
+
+    @Test
+    public void testShouldSetCorruptSegmentsAside() throws IOException {
+        File directory = temporaryFolder.getRoot();
+        SpillBuffer spillBuffer = new SpillBuffer(directory, 4096, Long.MAX_VALUE);
+        spillBuffer.append(events(0, 5));
+        spillBuffer.close();
+        File[] files = directory.listFiles((dir, name) -> name.endsWith(".spill"));
+        assertEquals(1, files.length);
+        // read position past the write end
+        try (RandomAccessFile file = new RandomAccessFile(files[0], "rw")) {
+            file.seek(8);
+            file.writeInt(4000);
+        }
+        List<String> warnings = new ArrayList<String>();
+        spillBuffer = new SpillBuffer(directory, 4096, Long.MAX_VALUE, warnings::add);
+        assertTrue(spillBuffer.isEmpty());
+        assertEquals(1, warnings.size());
+        assertTrue(new File(directory, files[0].getName() + ".corrupt").isFile());
+        assertEquals(0, segments(directory));
+
+        // a record longer than what was written
+        spillBuffer.append(events(0, 5));
+        spillBuffer.close();
+        files = directory.listFiles((dir, name) -> name.endsWith(".spill"));
+        try (RandomAccessFile file = new RandomAccessFile(files[0], "rw")) {
+            file.seek(12 + 8);
+            file.writeInt(1000);
+        }
+        spillBuffer = new SpillBuffer(directory, 4096, Long.MAX_VALUE, warnings::add);
+        assertTrue(spillBuffer.isEmpty());
+        assertEquals(2, warnings.size());
+        spillBuffer.append(events(5, 1));
+        assertEquals(events(5, 1), spillBuffer.peek(100, 1048576, 26));
+    }
+
+    @Test
+    public void testShouldRejectPastMaxBytes() throws IOException {
+        SpillBuffer spillBuffer = new SpillBuffer(temporaryFolder.getRoot(), 256, 512);
+        int rejected = spillBuffer.append(events(0, 50));
+        assertTrue(rejected > 0);
+        assertTrue(rejected < 50);
+        assertEquals(Collections.emptyList(), new SpillBuffer(temporaryFolder.newFolder(), 256, 0).peek(10, 1048576, 26));
+    }
+
+    @Test
+    public void testShouldLockDirectoryUntilClosed() throws IOException {
+        File directory = temporaryFolder.getRoot();
+        SpillBuffer spillBuffer = new SpillBuffer(directory, 256, Long.MAX_VALUE);
+        try {
+            new SpillBuffer(directory, 256, Long.MAX_VALUE);
+            fail("Expected the directory to be locked");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("already in use"));
+        }
+        spillBuffer.close();
+        new SpillBuffer(directory, 256, Long.MAX_VALUE).close();
+    }
+}
@@ -0,0 +1,156 @@
+package ca.pjer.logback;
+
+import static org.junit.Assert.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.LoggingEvent;
+import ch.qos.logback.core.layout.EchoLayout;
+import software.amazon.awssdk.services.cloudwatchlogs.model.InputLogEvent;
+
+public class SyncWorkerTest {
+
+    private static final LoggerContext loggerContext = new LoggerContext();
+
+    private static ILoggingEvent dummyEvent() {
+        return new LoggingEvent(SyncWorkerTest.class.getName(), loggerContext.getLogger(SyncWorkerTest.class.getName()), Level.INFO, "Dummy " + UUID.randomUUID().toString(), null, null);
+    }
+
+    private static SyncWorker groupCommitWorker(AWSLogsStub mockedAwsLogsStub) {
+        AwsLogsAppender awsLogsAppender = new AwsLogsAppender();
+        awsLogsAppender.setLayout(new EchoLayout<ILoggingEvent>());
+        awsLogsAppender.setGroupCommit(true);
+        awsLogsAppender.setAwsLogsStub(mockedAwsLogsStub);
+        return new SyncWorker(awsLogsAppender);
+    }
+
+    @Test
+    public void testShouldLogEachEventWhenAlone() {
+        AWSLogsStub mockedAwsLogsStub = mock(AWSLogsStub.class);
+        SyncWorker syncWorker = groupCommitWorker(mockedAwsLogsStub);
+        syncWorker.append(dummyEvent());
+        syncWorker.append(dummyEvent());
+        verify(mockedAwsLogsStub, times(2)).logEvents(argThat(events -> events.size() == 1));
+        assertEquals(2, syncWorker.getAwsLogsAppender().getMetrics().getAppendToAckMillis().getCount());
+    }
+
+    @Test
+    public void testShouldTrackAppendToAck() {
+        AWSLogsStub mockedAwsLogsStub = mock(AWSLogsStub.class);
+        AwsLogsAppender awsLogsAppender = new AwsLogsAppender();
+        awsLogsAppender.setLayout(new EchoLayout<ILoggingEvent>());
+        awsLogsAppender.setAwsLogsStub(mockedAwsLogsStub);
+        SyncWorker syncWorker = new SyncWorker(awsLogsAppender);
+        syncWorker.append(dummyEvent(), System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(100));
+        assertEquals(1, awsLogsAppender.getMetrics().getAppendToAckMillis().getCount());
+        assertTrue(awsLogsAppender.getMetrics().getAppendToAckMillis().getMax() >= 100);
+        // not acknowledged
+        doThrow(new IllegalStateException()).when(mockedAwsLogsStub).logEvents(anyCollection());
+        try {
+            syncWorker.append(dummyEvent());
+            fail();
+        } catch (IllegalStateException e) {
+            assertEquals(1, awsLogsAppender.getMetrics().getAppendToAckMillis().getCount());
+        }
+    }
+
+    @Test
+    public void testShouldGroupEventsAppendedWhileSending() throws InterruptedException {
+        AWSLogsStub mockedAwsLogsStub = mock(AWSLogsStub.class);
+        final CountDownLatch sending = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final List<Integer> batchSizes = new ArrayList<Integer>();
+        doAnswer(invocation -> {
+            Collection<InputLogEvent> events = invocation.getArgument(0);
+            synchronized (batchSizes) {
+                batchSizes.add(events.size());
+            }
+            sending.countDown();
+            release.await();
+            return null;
+        }).when(mockedAwsLogsStub).logEvents(anyCollection());
+        final SyncWorker syncWorker = groupCommitWorker(mockedAwsLogsStub);
+        List<Thread> threads = new ArrayList<Thread>();
+        Thread first = new Thread(() -> syncWorker.append(dummyEvent()));
+        first.start();
+        assertTrue(sending.await(1, TimeUnit.SECONDS));
+        for (int i = 0; i < 3; i++) {
+            Thread thread = new Thread(() -> syncWorker.append(dummyEvent()));
+            thread.start();
+            threads.add(thread);
+        }
+        // the followers must still be waiting for their group to be sent
+        Thread.sleep(200);
+        for (Thread thread : threads) {
+            assertTrue(thread.isAlive());
+        }
+        release.countDown();
+        first.join(1000);
+        for (Thread thread : threads) {
+            thread.join(1000);
+            assertFalse(thread.isAlive());
+        }
+        assertEquals(2, batchSizes.size());
+        assertEquals(Integer.valueOf(1), batchSizes.get(0));
+        assertEquals(Integer.valueOf(3), batchSizes.get(1));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testShouldFailCallerWhenGroupFails() {
+        AWSLogsStub mockedAwsLogsStub = mock(AWSLogsStub.class);
+        doThrow(new IllegalStateException()).when(mockedAwsLogsStub).logEvents(anyCollection());
+        groupCommitWorker(mockedAwsLogsStub).append(dummyEvent());
+    }
+
+    @Test
+    public void testShouldReleaseGroupWhenSendingThrowsError() throws InterruptedException {
+        AWSLogsStub mockedAwsLogsStub = mock(AWSLogsStub.class);
+        final CountDownLatch sending = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        doAnswer(invocation -> {
+            sending.countDown();
+            release.await();
+            throw new StackOverflowError();
+        }).when(mockedAwsLogsStub).logEvents(anyCollection());
+        final SyncWorker syncWorker = groupCommitWorker(mockedAwsLogsStub);
+        final AtomicInteger errors = new AtomicInteger();
+        Runnable append = () -> {
+            try {
+                syncWorker.append(dummyEvent());
+            } catch (StackOverflowError e) {
+                errors.incrementAndGet();
+            }
+        };
+        List<Thread> threads = new ArrayList<Thread>();
+        Thread first = new Thread(append);
+        first.start();
+        threads.add(first);
+        assertTrue(sending.await(1, TimeUnit.SECONDS));
+        for (int i = 0; i < 3; i++) {
+            Thread thread = new Thread(append);
+            thread.start();
+            threads.add(thread);
+        }
+        Thread.sleep(100);
+        release.countDown();
+        for (Thread thread : threads) {
+            thread.join(1000);
+            assertFalse(thread.isAlive());
+        }
+        // the leader and the members of the failed group all get the error
+        assertEquals(4, errors.get());
+    }
+}
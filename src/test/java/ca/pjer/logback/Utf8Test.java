@@ -0,0 +1,50 @@
+package ca.pjer.logback;
+
+import org.junit.experimental.theories.DataPoints;
+import org.junit.experimental.theories.Theories;
+import org.junit.experimental.theories.Theory;
+import org.junit.runner.RunWith;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(Theories.class)
+public class Utf8Test {
+
+    @DataPoints
+    public static final String[] TEXTS = {
+            "",
+            "ascii only",
+            "ö",
+            "xöx",
+            "€uro",
+            "😀 emoji",
+            "x😀😀",
+            "lone \uD83D surrogate",
+            "lone \uDE00 low surrogate",
+            "ends with \uD83D" };
+
+    @Theory
+    public void encodedLengthShouldMatchStringGetBytes(String text) {
+        assertEquals(text.getBytes(StandardCharsets.UTF_8).length, Utf8.encodedLength(text));
+    }
+
+    @Theory
+    public void prefixShouldBeTheLongestFittingPrefix(String text) {
+        int encodedLength = Utf8.encodedLength(text);
+        for (int maxLength = 0; maxLength <= encodedLength; maxLength++) {
+            int prefixLength = Utf8.prefixLength(text, maxLength);
+            String prefix = text.substring(0, prefixLength);
+            assertTrue(Utf8.encodedLength(prefix) <= maxLength);
+            assertTrue(prefixLength == 0 || !Character.isHighSurrogate(prefix.charAt(prefixLength - 1))
+                    || prefixLength == text.length() || !Character.isLowSurrogate(text.charAt(prefixLength)));
+            if (prefixLength < text.length()) {
+                int next = Character.isHighSurrogate(text.charAt(prefixLength)) && prefixLength + 1 < text.length()
+                        && Character.isLowSurrogate(text.charAt(prefixLength + 1)) ? prefixLength + 2 : prefixLength + 1;
+                assertTrue(Utf8.encodedLength(text.substring(0, next)) > maxLength);
+            }
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package ca.pjer.logback.metrics;
+
+import static org.junit.Assert.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.TabularData;
+
+import org.junit.Test;
+
+import ch.qos.logback.classic.Level;
+
+public class AppenderMetricsTest {
+
+    @Test
+    public void testShouldComputeHistogram() {
+        Histogram histogram = new Histogram();
+        assertEquals(0, histogram.getPercentile(0.99));
+        for (int i = 1; i <= 100; i++) {
+            histogram.record(i);
+        }
+        assertEquals(100, histogram.getCount());
+        assertEquals(5050, histogram.getSum());
+        assertEquals(100, histogram.getMax());
+        assertEquals(50.5, histogram.getMean(), 0.001);
+        // power of two buckets: within 2x of the actual value
+        long median = histogram.getPercentile(0.5);
+        assertTrue(median >= 50 && median < 100);
+        assertEquals(100, histogram.getPercentile(0.99));
+        histogram.record(0);
+        assertEquals(0, histogram.getPercentile(0));
+    }
+
+    @Test
+    public void testShouldOnlyKeepTheLastWindow() throws InterruptedException {
+        Histogram histogram = new Histogram(60);
+        histogram.record(1000);
+        assertEquals(1000, histogram.getMax());
+        Thread.sleep(100);
+        assertEquals(0, histogram.getMax());
+        assertEquals(0, histogram.getPercentile(0.99));
+        histogram.record(1);
+        assertEquals(1, histogram.getMax());
+        assertEquals(1, histogram.getPercentile(0.99));
+        assertEquals(1, histogram.getMean(), 0.001);
+        // totals are kept, for rates
+        assertEquals(2, histogram.getCount());
+        assertEquals(1001, histogram.getSum());
+    }
+
+    @Test
+    public void testShouldKeepAppendersApart() {
+        AppenderMetrics metrics = new AppenderMetrics();
+        AppenderMetrics otherMetrics = new AppenderMetrics();
+        metrics.incrementLostCount(Level.INFO, 2);
+        metrics.incrementLostCount(null, 1);
+        metrics.incrementPutLog();
+        assertEquals(3, metrics.getLostEvents());
+        assertEquals(Long.valueOf(2), metrics.getLostEventsByLevel().get("INFO"));
+        assertEquals(Long.valueOf(1), metrics.getLostEventsByLevel().get("UNKNOWN"));
+        assertEquals(1, metrics.getPutLogEvents());
+        assertEquals(0, otherMetrics.getLostEvents());
+        assertEquals(0, otherMetrics.getPutLogEvents());
+    }
+
+    @Test
+    public void testShouldForwardLostCountInOneCall() {
+        final AtomicInteger calls = new AtomicInteger();
+        final AtomicInteger lost = new AtomicInteger();
+        AwsLogsMetrics global = mock(AwsLogsMetrics.class);
+        doAnswer(invocation -> {
+            calls.incrementAndGet();
+            lost.addAndGet(invocation.<Integer>getArgument(0));
+            return null;
+        }).when(global).incrementLostCount(anyInt());
+        AwsLogsMetrics previous = AwsLogsMetricsHolder.get();
+        AwsLogsMetricsHolder.set(global);
+        try {
+            new AppenderMetrics().incrementLostCount(Level.INFO, 5000);
+        } finally {
+            AwsLogsMetricsHolder.set(previous);
+        }
+        assertEquals(1, calls.get());
+        assertEquals(5000, lost.get());
+        verify(global, never()).incrementLostCount();
+    }
+
+    @Test
+    public void testShouldExposeMBean() throws Exception {
+        AppenderMetrics metrics = new AppenderMetrics();
+        metrics.setQueueGauges(() -> 7, () -> 700, () -> 70);
+        metrics.recordPutLogEventsLatency(TimeUnit.MILLISECONDS.toNanos(40));
+        metrics.incrementLostCount(Level.DEBUG, 3);
+        metrics.registerMBean("Test \"Appender\"");
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName objectName = new ObjectName("ca.pjer.logback:type=AwsLogsAppender,name="
+                    + ObjectName.quote("Test \"Appender\""));
+            assertEquals(7L, server.getAttribute(objectName, "QueueDepth"));
+            assertEquals(700L, server.getAttribute(objectName, "QueuedBytes"));
+            assertEquals(70L, server.getAttribute(objectName, "OldestQueuedEventAgeMillis"));
+            CompositeData latency = (CompositeData) server.getAttribute(objectName, "PutLogEventsLatencyMillis");
+            assertEquals(1L, latency.get("count"));
+            assertEquals(40L, latency.get("max"));
+            TabularData lostEventsByLevel = (TabularData) server.getAttribute(objectName, "LostEventsByLevel");
+            assertEquals(3L, lostEventsByLevel.get(new Object[]{"DEBUG"}).get("value"));
+        } finally {
+            metrics.unregisterMBean();
+        }
+        assertFalse(ManagementFactory.getPlatformMBeanServer().queryNames(
+                new ObjectName("ca.pjer.logback:type=AwsLogsAppender,*"), null).iterator().hasNext());
+    }
+}